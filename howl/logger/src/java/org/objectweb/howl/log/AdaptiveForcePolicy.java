@@ -0,0 +1,201 @@
+/*
+ * JOnAS: Java(TM) Open Application Server
+ * Copyright (C) 2004 Bull S.A.
+ * All rights reserved.
+ * 
+ * Contact: howl@objectweb.org
+ * 
+ * This software is licensed under the BSD license.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *     
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *     
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * ------------------------------------------------------------------------------
+ * $Id$
+ * ------------------------------------------------------------------------------
+ */
+package org.objectweb.howl.log;
+
+import java.util.Arrays;
+
+/**
+ * ForcePolicy that holds forces so that more commits
+ * share each force, while keeping the 99th percentile
+ * commit latency below a configured target.
+ * 
+ * <p>The policy measures the recent force time and the
+ * rate at which commits arrive.  When commits arrive faster
+ * than a force completes, holding the force for a short time
+ * allows more commits to share it.  The hold time is increased
+ * by HOLD_STEP after each force while the observed 99th percentile
+ * latency is within the target, and is cut in half whenever
+ * the target is exceeded or commits are too sparse to benefit.
+ * 
+ * <p>Times are measured with System.nanoTime() so hold
+ * times shorter than a millisecond can be used with
+ * fast devices.
+ * 
+ * <p>A force is never held beyond the point where the oldest
+ * unforced record would exceed the latency target.
+ * 
+ * @see Configuration#setCommitLatencyTarget(int)
+ */
+public class AdaptiveForcePolicy implements ForcePolicy
+{
+  /**
+   * number of latency samples used to compute the 99th percentile.
+   */
+  private static final int SAMPLES = 128;
+  
+  /**
+   * weight of a new observation in the moving averages.
+   */
+  private static final double ALPHA = 0.2;
+  
+  /**
+   * amount in ns by which the hold time grows after each
+   * force that is within the latency target.
+   */
+  static final long HOLD_STEP = 100000L;
+  
+  /**
+   * commit latency target in ns.
+   */
+  private final long target;
+  
+  /**
+   * recent commit latencies.
+   */
+  private final long[] latency = new long[SAMPLES];
+  
+  /**
+   * number of latency samples collected (up to SAMPLES).
+   */
+  private int sampleCount = 0;
+  
+  /**
+   * index of the next latency sample.
+   */
+  private int nextSample = 0;
+  
+  /**
+   * moving average of the time spent in force.
+   */
+  private double avgForceTime = 0.0;
+  
+  /**
+   * moving average of the time between commits.
+   */
+  private double avgArrivalInterval = Double.MAX_VALUE;
+  
+  /**
+   * System.nanoTime() of the last force.
+   */
+  private long lastForceNanos = 0;
+  
+  /**
+   * current hold time in ns.
+   */
+  private long holdTime = 0;
+  
+  /**
+   * @param config Configuration object
+   */
+  public AdaptiveForcePolicy(Configuration config)
+  {
+    target = config.getCommitLatencyTarget() * 1000000L;
+  }
+  
+  /**
+   * waiting threads are flushed before the latency target
+   * is exceeded.
+   */
+  public synchronized long getFlushDelay(boolean threadsWaiting)
+  {
+    if (!threadsWaiting) return 250;
+    
+    long budget = (target - (long)avgForceTime) / 1000000L;
+    return Math.max(1, Math.min(50, budget));
+  }
+  
+  public synchronized long getHoldTime(long age)
+  {
+    long budget = target - (long)avgForceTime - age;
+    return Math.max(0, Math.min(holdTime, budget));
+  }
+  
+  public synchronized void forceComplete(long forceTime, long latency, int threadsWaiting)
+  {
+    long now = System.nanoTime();
+    
+    avgForceTime += ALPHA * (forceTime - avgForceTime);
+    
+    if (lastForceNanos != 0 && threadsWaiting > 0)
+    {
+      double interval = (double)(now - lastForceNanos) / threadsWaiting;
+      if (avgArrivalInterval == Double.MAX_VALUE)
+        avgArrivalInterval = interval;
+      else
+        avgArrivalInterval += ALPHA * (interval - avgArrivalInterval);
+    }
+    lastForceNanos = now;
+    
+    this.latency[nextSample] = latency;
+    nextSample = (nextSample + 1) % SAMPLES;
+    if (sampleCount < SAMPLES) ++sampleCount;
+    
+    long p99 = getLatencyPercentile(99);
+    if (p99 > target || avgArrivalInterval >= avgForceTime)
+    {
+      // target exceeded, or commits are too sparse to share a force
+      holdTime /= 2;
+    }
+    else if (holdTime < target - (long)avgForceTime)
+    {
+      holdTime = Math.min(holdTime + HOLD_STEP, target - (long)avgForceTime);
+    }
+  }
+  
+  /**
+   * @param percentile percentile to be computed (1 - 100)
+   * @return latency at <i> percentile </i> of the recent samples.
+   */
+  synchronized long getLatencyPercentile(int percentile)
+  {
+    if (sampleCount == 0) return 0;
+    
+    long[] sorted = new long[sampleCount];
+    System.arraycopy(latency, 0, sorted, 0, sampleCount);
+    Arrays.sort(sorted);
+    int index = (sampleCount * percentile + 99) / 100 - 1;
+    return sorted[Math.max(0, Math.min(sampleCount - 1, index))];
+  }
+  
+  /**
+   * @return the current hold time in ns.
+   */
+  public synchronized long getHoldTime()
+  {
+    return holdTime;
+  }
+}
@@ -42,7 +42,11 @@ import org.objectweb.howl.log.LogBufferStatus;
 import java.io.IOException;
 
 import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.nio.InvalidMarkException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 /**
  * An implementation of LogBuffer that
@@ -61,7 +65,7 @@ class BlockLogBuffer extends LogBuffer
    * <p>This field is used by shouldForce() to determine if the buffer
    * should be forced.
    */
-  long todPut = 0;
+  volatile long todPut = 0;
   
   /**
    * number of times this buffer was used.
@@ -75,7 +79,8 @@ class BlockLogBuffer extends LogBuffer
    * <b>buffer Header format</b>
    * byte[]  HEADER_ID              [4] "HOWL"
    * int     block_sequence_number  [4]
-   * int     block_size             [4] in bytes
+   * int     block_size             [4] in bytes, with the COMPRESSED
+   *                                    and CRC32C_CHECKSUM flags
    * int     bytes used             [4]
    * int     checkSum               [4] 
    * long    currentTimeMillis      [8]
@@ -131,6 +136,13 @@ class BlockLogBuffer extends LogBuffer
   
   private byte[] footerId = new byte[FOOTER_ID.length];
   
+  /**
+   * offset of the first record in a block.
+   * <p>HEADER_ID, bsn, block_size, bytes_used, checkSum,
+   * currentTimeMillis and CRLF.
+   */
+  private final int recordsOffset = HEADER_ID.length + 24 + CRLF.length;
+  
   /**
    * switch to disable writes.
    * <p>Used to measure performance of implementation sans physical writes.
@@ -138,6 +150,69 @@ class BlockLogBuffer extends LogBuffer
    */
   boolean doWrite = true;
 
+  /**
+   * size of compact blocks is rounded up to a multiple
+   * of this value so blocks begin on a sector boundary.
+   */
+  static final int COMPACT_ALIGNMENT = 4096;
+  
+  /**
+   * true if the records of compact blocks are compressed.
+   * @see Configuration#isCompressBlocks()
+   */
+  boolean compressBlocks = false;
+  
+  /**
+   * bit set in the block_size field of the header of a
+   * block whose records are compressed.
+   * 
+   * <p>The records of a compressed block are replaced by an int
+   * containing the length of the compressed data followed
+   * by the data compressed with java.util.zip.Deflater.
+   * The bytes_used field contains the number of bytes used
+   * before the records were compressed.
+   */
+  static final int COMPRESSED = 0x80000000;
+  
+  /**
+   * bit set in the block_size field of the header of a
+   * block whose checkSum field is a CRC32C.
+   * 
+   * <p>The checksum of a block is verified with the algorithm
+   * the block was written with, so a log can be read
+   * whatever the crc32cChecksum option.
+   * @see Configuration#isCrc32cChecksumEnabled()
+   */
+  static final int CRC32C_CHECKSUM = 0x40000000;
+  
+  /**
+   * Deflater used by prepareWrite() to compress records.
+   * <p>allocated by the first write of a compressed block.
+   */
+  private Deflater deflater = null;
+  
+  /**
+   * Inflater used by read() to decompress records.
+   * <p>allocated by the first read of a compressed block.
+   */
+  private Inflater inflater = null;
+  
+  /**
+   * records copied from the buffer to be compressed,
+   * or decompressed records to be copied into the buffer.
+   */
+  private byte[] plainBytes = null;
+  
+  /**
+   * compressed records.
+   */
+  private byte[] compressedBytes = null;
+  
+  /**
+   * number of blocks written with compressed records.
+   */
+  int compressedCount = 0;
+
   /**
    * maximum size of user data record.
    * 
@@ -163,6 +238,7 @@ class BlockLogBuffer extends LogBuffer
   BlockLogBuffer(Configuration config)
   {
     super(config);
+    compressBlocks = config.isCompressBlocks();
   }
   
   /**
@@ -181,6 +257,7 @@ class BlockLogBuffer extends LogBuffer
   {
     super(config);
     this.doWrite = doWrite;
+    compressBlocks = config.isCompressBlocks();
   }
 
   /**
@@ -201,32 +278,38 @@ class BlockLogBuffer extends LogBuffer
     
     recordSize += dataSize;
     
+    if (recordSize > maxRecordSize)
+      throw new LogRecordSizeException(maxRecordSize);
+    // TODO: improve exception message w/ text: configured max xxx, size yyy
+    
     /*
-     * The following synchronized() statement might be unnecessary. 
-     * All calls to this put() method are synchronized by the
-     * LogBufferManager.bufferManagerLock.
+     * Claim space for the record with a CAS on fillPosition, then
+     * copy the record into the claimed space.  Many threads may
+     * be copying records into the same buffer at the same time, so
+     * we use a duplicate of the ByteBuffer to avoid sharing the
+     * buffer position.
      * 
-     * It does not seem to degrade performance any, so we leave
-     * it to improve clarity of the code.
-     */ 
-    synchronized(buffer)
+     * activePuts is incremented before the reservation so
+     * write() will not write the buffer until the copy is complete.
+     */
+    activePuts.incrementAndGet();
+    try
     {
-      if (recordSize > maxRecordSize)
-        throw new LogRecordSizeException(maxRecordSize);
-      // TODO: improve exception message w/ text: configured max xxx, size yyy
-      
-      if (recordSize <= buffer.remaining()) 
+      int offset = reserve(recordSize);
+      if (offset >= 0)
       {
-        // first 8 bits available to Logger -- possibly to carry file rotation number
-        logKey = ((long)bsn << 24) | buffer.position();
+        logKey = logKey(offset);
   
         // put a new record into the buffer
-        buffer.putShort(type).putShort((short)dataSize);
+        ByteBuffer record = buffer.duplicate();
+        record.position(offset);
+        record.putShort(type).putShort((short)dataSize);
         for (int i=0; i < data.length; ++i)
         {
-          buffer.putShort((short)data[i].length);
-          buffer.put(data[i]);
+          record.putShort((short)data[i].length);
+          record.put(data[i]);
         }
+        if (crc32c) updateChecksum(offset, recordSize);
         todPut = System.currentTimeMillis();
         
         if (sync)
@@ -238,17 +321,275 @@ class BlockLogBuffer extends LogBuffer
         }
       }
     }
+    finally
+    {
+      releasePut();
+    }
 
     return logKey;
   }
   
+  /**
+   * puts a data record consisting of ByteBuffer fields into the buffer.
+   * <p>The remaining bytes of each field are copied directly into
+   * the buffer, so direct ByteBuffers are copied without passing
+   * through a byte[].  The position of each field is restored
+   * after the copy.
+   * @see LogBuffer#put(short, ByteBuffer[], boolean)
+   */
+  long put(short type, ByteBuffer[] data, boolean sync) throws LogRecordSizeException
+  {
+    long logKey = 0L;
+    int dataSize = 0;
+    int recordSize = recordHeaderSize;
+
+    for (int i=0; i < data.length; ++i)
+      dataSize += data[i].remaining() + 2;  // field size + short length 
+    
+    recordSize += dataSize;
+    
+    if (recordSize > maxRecordSize)
+      throw new LogRecordSizeException(maxRecordSize);
+    
+    // see put(short, byte[][], boolean) for a description of the reservation
+    activePuts.incrementAndGet();
+    try
+    {
+      int offset = reserve(recordSize);
+      if (offset >= 0)
+      {
+        logKey = logKey(offset);
+  
+        ByteBuffer record = buffer.duplicate();
+        record.position(offset);
+        record.putShort(type).putShort((short)dataSize);
+        for (int i=0; i < data.length; ++i)
+        {
+          ByteBuffer field = data[i];
+          int position = field.position();
+          record.putShort((short)field.remaining());
+          record.put(field);
+          field.position(position);
+        }
+        if (crc32c) updateChecksum(offset, recordSize);
+        todPut = System.currentTimeMillis();
+        
+        if (sync)
+        {
+          synchronized(waitingThreadsLock)
+          {
+            ++waitingThreads;
+          }
+        }
+      }
+    }
+    finally
+    {
+      releasePut();
+    }
+
+    return logKey;
+  }
+  
+  /**
+   * claims space for a single field record that the caller
+   * encodes in place.
+   * <p>activePuts remains incremented until commit() or abort()
+   * so write() waits for the caller to finish the record.
+   * @see LogBuffer#claim(short, LogReservation)
+   */
+  long claim(short type, LogReservation reservation) throws LogRecordSizeException
+  {
+    int dataSize = reservation.size + 2;  // field size + short length
+    int recordSize = recordHeaderSize + dataSize;
+    
+    if (recordSize > maxRecordSize)
+      throw new LogRecordSizeException(maxRecordSize);
+    
+    activePuts.incrementAndGet();
+    int offset = reserve(recordSize);
+    if (offset < 0)
+    {
+      releasePut();
+      return 0L;
+    }
+
+    ByteBuffer record = buffer.duplicate();
+    record.position(offset);
+    record.putShort(type).putShort((short)dataSize).putShort((short)reservation.size);
+    record.limit(offset + recordSize);
+
+    reservation.lb = this;
+    reservation.key = logKey(offset);
+    reservation.buffer = record.slice();
+    reservation.initCounter = initCounter;
+
+    return reservation.key;
+  }
+  
+  /**
+   * @see LogBuffer#commit(LogReservation, boolean)
+   */
+  void commit(LogReservation reservation, boolean sync) throws IOException
+  {
+    try
+    {
+      checkReservation(reservation);
+
+      if (crc32c)
+        updateChecksum((int)(reservation.key & ((1L << offsetBits) - 1)),
+            recordHeaderSize + 2 + reservation.size);
+      todPut = System.currentTimeMillis();
+      
+      if (sync)
+      {
+        synchronized(waitingThreadsLock)
+        {
+          ++waitingThreads;
+        }
+      }
+    }
+    finally
+    {
+      releasePut();
+    }
+  }
+
+  /**
+   * @see LogBuffer#abort(LogReservation)
+   */
+  void abort(LogReservation reservation) throws IOException
+  {
+    try
+    {
+      checkReservation(reservation);
+
+      int offset = (int)(reservation.key & ((1L << offsetBits) - 1));
+      ByteBuffer record = buffer.duplicate();
+      record.position(offset);
+      record.putShort(LogRecordType.FILLER);
+
+      // discard whatever the caller encoded before the failure
+      record.position(offset + recordHeaderSize + 2);
+      for (int i = 0; i < reservation.size; ++i)
+        record.put((byte)0);
+
+      if (crc32c) updateChecksum(offset, recordHeaderSize + 2 + reservation.size);
+    }
+    finally
+    {
+      releasePut();
+    }
+  }
+
+  /**
+   * helper for commit() and abort().
+   * <p>verifies that the buffer has not been reused since
+   * <i> reservation </i> was claimed.
+   * @throws IOException
+   * if awaitPuts() gave up waiting for the reservation and
+   * the buffer has since been initialized for another block.
+   */
+  private void checkReservation(LogReservation reservation) throws IOException
+  {
+    if (reservation.initCounter != initCounter)
+      throw new IOException("BlockLogBuffer: reservation for key " +
+          Long.toHexString(reservation.key) + " expired before it was completed");
+  }
+
+  /**
+   * @see LogBuffer#putFragment(boolean, ByteBuffer, boolean)
+   */
+  long putFragment(boolean first, ByteBuffer data, boolean sync)
+  {
+    long logKey = 0L;
+
+    // leave at least one byte for the FRAGMENT_LAST
+    int wanted = first ? data.remaining() - 1 : data.remaining();
+
+    activePuts.incrementAndGet();
+    try
+    {
+      int offset = reserve(recordHeaderSize + wanted, recordHeaderSize + 1);
+      if (offset >= 0)
+      {
+        logKey = logKey(offset);
+
+        int length = Math.min(wanted, fillLimit - offset - recordHeaderSize);
+        boolean last = length == data.remaining();
+        short type = first ? LogRecordType.FRAGMENT_FIRST :
+          last ? LogRecordType.FRAGMENT_LAST : LogRecordType.FRAGMENT_MIDDLE;
+
+        ByteBuffer fragment = data.duplicate();
+        fragment.limit(fragment.position() + length);
+
+        ByteBuffer record = buffer.duplicate();
+        record.position(offset);
+        record.putShort(type).putShort((short)length);
+        record.put(fragment);
+        data.position(fragment.position());
+        if (crc32c) updateChecksum(offset, recordHeaderSize + length);
+        todPut = System.currentTimeMillis();
+
+        if (sync && last)
+        {
+          synchronized(waitingThreadsLock)
+          {
+            ++waitingThreads;
+          }
+        }
+      }
+    }
+    finally
+    {
+      releasePut();
+    }
+
+    return logKey;
+  }
+
   /**
    * write ByteBuffer to the log file.
    */
   void write() throws IOException
+  {
+    if (!prepareWrite()) return;
+
+    try
+    {
+      lf.write(this);
+      // iostatus is updated to COMPLETE by the LogBufferManage after force() is done.
+    }
+    catch (IOException e)
+    {
+      ioexception = e;
+      iostatus = LogBufferStatus.ERROR;
+      throw e;
+    }
+  }
+
+  /**
+   * prepare ByteBuffer to be written to the log file.
+   * <p>Updates the block header and checksum, and positions
+   * the ByteBuffer for the write.
+   * @return false if physical writes are disabled.
+   */
+  boolean prepareWrite() throws IOException
   {
     assert lf != null: "LogFile lf is null";
     
+    // increment count of threads waiting for IO to complete
+    // before anything can fail, so the count is released
+    // by LogBufferManager whether or not the write succeeds.
+    synchronized (waitingThreadsLock)
+    {
+      ++waitingThreads;
+    }
+
+    // wait for threads that are still copying records into the buffer
+    buffer.clear().limit(fillLimit);
+    buffer.position(awaitPuts());
+    
     synchronized(this)
     {
       // guard against gating errors that might allow
@@ -260,15 +601,43 @@ class BlockLogBuffer extends LogBuffer
 
     }
 
-    // increment count of threads waiting for IO to complete
-    synchronized (waitingThreadsLock)
-    {
-      ++waitingThreads;
-    }
-
     // Update bytesUsed in the buffer header
     buffer.putInt(bytesUsedOffset, buffer.position());
     
+    int contributions = crc32c ? crcContributions.get() : 0;
+    
+    // write a compact block if the used bytes and footer need fewer sectors
+    // and the file was started with compact blocks.
+    // A compact block contains the used bytes of the buffer
+    // followed by the block footer, rounded up to a multiple
+    // of COMPACT_ALIGNMENT bytes.  The block_size field of the
+    // header contains the size of the compact block.
+    boolean compact = lf.compactBlocks;
+    int blockSize = compact ? compactSize(buffer.position()) : buffer.capacity();
+    boolean compressed = compact && compressBlocks && compress(blockSize);
+    if (compressed)
+      blockSize = compactSize(buffer.position());
+    if (blockSize < buffer.capacity())
+    {
+      // update block_size in the header
+      int blockSizeOffset = bytesUsedOffset - 4;
+      if (crc32c)
+        contributions ^= Crc32c.contribution(buffer, blockSizeOffset, 4, buffer.capacity());
+      int flags = (compressed ? COMPRESSED : 0) | (crc32c ? CRC32C_CHECKSUM : 0);
+      buffer.putInt(blockSizeOffset, blockSize | flags);
+      if (crc32c)
+        contributions ^= Crc32c.contribution(buffer, blockSizeOffset, 4, buffer.capacity());
+
+      // copy the footer to the end of the compact block
+      ByteBuffer footer = buffer.duplicate();
+      footer.clear().position(fillLimit);
+      ByteBuffer compactFooter = buffer.duplicate();
+      compactFooter.clear().position(blockSize - bufferFooterSize);
+      compactFooter.put(footer);
+      
+      buffer.limit(blockSize - bufferFooterSize);
+    }
+    
     // Try to stuff an End-Of-Block (EOB) marker
     // so we can find end of data in a hex dump
     // EOB\n
@@ -287,28 +656,25 @@ class BlockLogBuffer extends LogBuffer
     // update checksum
     int checksumOffset = bytesUsedOffset + 4;
     buffer.putInt(checksumOffset, 0);
-    if (doChecksum) {
-      int checksum = checksum();
+    if (crc32c) {
+      // records were included by put(); add the bytes used field
+      // the CRC of a compact block is computed as if the footer was not moved
+      contributions ^= Crc32c.contribution(buffer, bytesUsedOffset, 4, buffer.capacity());
+      buffer.putInt(checksumOffset, Crc32c.value(contributions, buffer.capacity()));
+    }
+    else if (doChecksum) {
+      int checksum = checksum(blockSize);
       buffer.putInt(checksumOffset, checksum);
     }
 
-    try
-    {
-      synchronized(this)
-      {
-        // BUG 300613 - update of iostatus needs to be synchronized
-        iostatus = LogBufferStatus.WRITING;
-      }
-      buffer.clear();
-      if (doWrite) lf.write(this);
-      // iostatus is updated to COMPLETE by the LogBufferManage after force() is done.
-    }
-    catch (IOException e)
+    synchronized(this)
     {
-      ioexception = e;
-      iostatus = LogBufferStatus.ERROR;
-      throw e;
+      // BUG 300613 - update of iostatus needs to be synchronized
+      iostatus = LogBufferStatus.WRITING;
     }
+    buffer.clear().limit(blockSize);
+
+    return doWrite;
   }
 
   /**
@@ -320,11 +686,16 @@ class BlockLogBuffer extends LogBuffer
    * of LogBuffer may include the BSN as part of a record or
    * block header.
    */ 
-  LogBuffer init(int bsn, LogFileManager lfm) throws LogFileOverflowException
+  LogBuffer init(long bsn, LogFileManager lfm) throws LogFileOverflowException, IOException
   {
+    // buffer remains sealed until initialization is complete
+    initThread = Thread.currentThread();
+    fillPosition.set(SEALED);
+    
     this.bsn = bsn;
     
     tod = todPut = System.currentTimeMillis();
+    todNanos = System.nanoTime();
     iostatus = LogBufferStatus.FILLING;
     
     ++initCounter;
@@ -334,13 +705,13 @@ class BlockLogBuffer extends LogBuffer
 
     buffer.clear();
     buffer.position(bufferSize - bufferFooterSize);
-    buffer.put(FOOTER_ID).putInt(bsn).putLong(tod).put(CRLF);
+    buffer.put(FOOTER_ID).putInt((int)bsn).putLong(tod).put(CRLF);
     
     // initialize the logical block header
     buffer.clear();
     buffer.put(HEADER_ID);
-    buffer.putInt(bsn);
-    buffer.putInt(bufferSize);
+    buffer.putInt((int)bsn);  // low order 32 bits of the BSN
+    buffer.putInt(crc32c ? (bufferSize | CRC32C_CHECKSUM) : bufferSize);
     
     bytesUsedOffset = buffer.position();
 
@@ -350,25 +721,57 @@ class BlockLogBuffer extends LogBuffer
     buffer.put(CRLF);
     
     // reserve room for buffer footer
-    buffer.limit(bufferSize - bufferFooterSize);
+    fillLimit = bufferSize - bufferFooterSize;
+    buffer.limit(fillLimit);
+    fillPosition.set(buffer.position() | SEALED);
     
     // set maxRecordSize now so LogFileManager can put records
     maxRecordSize = buffer.remaining();
 
-    /*
-     * obtain LogFile from the LogFileManager
-     * LogFileManager will put a header record into this buffer
-     * so we must make this call after all other initialization is complete.
-     */
-    lf = lfm.getLogFileForWrite(this);
-    assert lf != null: "LogFileManager returned null LogFile pointer";
+    if (crc32c)
+    {
+      // bytes used and checksum are zero until prepareWrite()
+      crcContributions.set(
+          Crc32c.contribution(buffer, 0, buffer.position(), bufferSize) ^
+          Crc32c.contribution(buffer, fillLimit, bufferFooterSize, bufferSize));
+    }
+
+    try {
+      /*
+       * obtain LogFile from the LogFileManager
+       * LogFileManager will put a header record into this buffer
+       * so we must make this call after all other initialization is complete.
+       */
+      lf = lfm.getLogFileForWrite(this);
+      assert lf != null: "LogFileManager returned null LogFile pointer";
+    } finally {
+      initThread = null;
+    }
+    
+    // buffer is still sealed, so no other thread can put records yet
+    fileAssigned();
     
     // set maxRecordSize again for user records
-    maxRecordSize = buffer.remaining();
+    maxRecordSize = fillLimit - (fillPosition.get() & ~SEALED);
 
+    // the LogBufferManager unseals the buffer when it is published
     return this;
   }
   
+  /**
+   * called by init() after the LogFileManager has assigned
+   * the LogFile for this buffer, and before other threads
+   * are allowed to put records into the buffer.
+   * 
+   * <p>The default implementation does nothing.
+   * 
+   * @throws IOException
+   * @see MappedBlockLogBuffer
+   */
+  void fileAssigned() throws IOException
+  {
+  }
+  
   /**
    * internal routine used to compare two byte[] objects.
    * 
@@ -386,25 +789,16 @@ class BlockLogBuffer extends LogBuffer
   }
   
   /**
-   * Reads a block from LogFile <i> lf </i> and validates
-   * header and footer information.
+   * fill the ByteBuffer with a block of data from the file.
+   * <p>The file position is not changed.
    * 
-   * @see LogBuffer#read(LogFile, long)
+   * @param lf LogFile to be read.
+   * @param position file position of the block.
+   * @return number of bytes read, or -1 at end of file.
    * @throws IOException
-   * if anything goes wrong during the file read.
-   * @throws InvalidLogBufferException
-   * if any of the block header or footer fields are invalid.
    */
-  LogBuffer read(LogFile lf, long position)
-    throws IOException, InvalidLogBufferException, InvalidMarkException
+  int readBlock(LogFile lf, long position) throws IOException
   {
-    assert lf != null : "LogFile reference lf is null";
-    assert buffer != null : "ByteBuffer reference is null";
-    
-    this.lf = lf;
-    
-    // fill our ByteBuffer with a block of data from the file
-    // NOTE: file position is not changed by following call
     buffer.clear();
     int bytesRead = -1;
     try {
@@ -418,6 +812,195 @@ class BlockLogBuffer extends LogBuffer
       ioe.setStackTrace(e.getStackTrace());
       throw ioe;
     }
+    return bytesRead;
+  }
+  
+  /**
+   * compares the checkSum field of a block that has been read
+   * with the checksum computed for the block.
+   * 
+   * <p>The checkSum field must be zero when the checksum is
+   * computed.  On return the buffer is positioned after
+   * the checkSum field.
+   * 
+   * @param checksumOffset offset of the checkSum field.
+   * @param checkSum value of the checkSum field.
+   * @param expectedChecksum computed checksum.
+   * @throws InvalidLogBufferException
+   * if the values are not equal.
+   */
+  private void verifyChecksum(int checksumOffset, int checkSum, int expectedChecksum)
+    throws InvalidLogBufferException
+  {
+    buffer.clear().position(checksumOffset);
+    buffer.putInt(checkSum);      // put the original value back
+    if (checkSum != expectedChecksum)
+      throw new InvalidLogBufferException("CHECKSUM expected: " + Integer.toHexString(expectedChecksum) + bufferInfo());
+  }
+  
+  /**
+   * computes the CRC32C of a block that has been read.
+   * <p>The unused bytes between bytesUsed and the
+   * block footer are not included.  The footer of a
+   * compact block is included as if it were at the end
+   * of the buffer.
+   * @param footer offset of the block footer.
+   * @return the computed checksum.
+   * @see Crc32c
+   */
+  private int crc32cChecksum(int footer)
+  {
+    int bufferSize = buffer.capacity();
+    return Crc32c.value(Crc32c.contribution(buffer, 0, bytesUsed, bufferSize) ^
+        Crc32c.contribution(buffer, footer, bufferFooterSize, footer + bufferFooterSize), bufferSize);
+  }
+  
+  /**
+   * replaces the records in the buffer with the compressed records
+   * if the compressed block is smaller than <i> blockSize </i>.
+   * 
+   * <p>PRECONDITION: buffer position is the end of the
+   * last record.  On return the buffer position is the end of
+   * the compressed records if the records were compressed.
+   * 
+   * @param blockSize size of the block without compression.
+   * @return true if the records were compressed.
+   */
+  private boolean compress(int blockSize)
+  {
+    int used = buffer.position();
+    int length = used - recordsOffset;
+    if (length <= 0) return false;
+    
+    if (deflater == null)
+      deflater = new Deflater(Deflater.BEST_SPEED);
+    allocateCompressionBuffers();
+    
+    ByteBuffer records = buffer.duplicate();
+    records.clear().position(recordsOffset);
+    records.get(plainBytes, 0, length);
+    
+    deflater.reset();
+    deflater.setInput(plainBytes, 0, length);
+    deflater.finish();
+    int compressedLength = deflater.deflate(compressedBytes, 0, length);
+    if (!deflater.finished())
+      return false;  // records did not compress
+    
+    // only worth it if the block needs fewer sectors
+    int compressedUsed = recordsOffset + 4 + compressedLength;
+    if (compactSize(compressedUsed) >= blockSize)
+      return false;
+    
+    buffer.position(recordsOffset);
+    buffer.putInt(compressedLength);
+    buffer.put(compressedBytes, 0, compressedLength);
+    ++compressedCount;
+    return true;
+  }
+  
+  /**
+   * allocates the byte[] used to compress and decompress records.
+   */
+  private void allocateCompressionBuffers()
+  {
+    if (plainBytes == null)
+    {
+      plainBytes = new byte[buffer.capacity()];
+      compressedBytes = new byte[buffer.capacity()];
+    }
+  }
+  
+  /**
+   * replaces the compressed records read from a block with
+   * the records that were compressed.
+   * 
+   * @param footer offset of the block footer, which is moved
+   * to the end of the buffer so the records do not overwrite it.
+   * @throws InvalidLogBufferException
+   * if the compressed records are not valid.
+   */
+  private void decompress(int footer)
+    throws InvalidLogBufferException
+  {
+    int length = bytesUsed - recordsOffset;
+    ByteBuffer records = buffer.duplicate();
+    records.clear().position(recordsOffset);
+    int compressedLength = records.getInt();
+    if (compressedLength < 0 || compressedLength > footer - records.position())
+      throw new InvalidLogBufferException("COMPRESSED length: " + compressedLength + bufferInfo());
+    
+    if (inflater == null)
+      inflater = new Inflater();
+    allocateCompressionBuffers();
+    records.get(compressedBytes, 0, compressedLength);
+    
+    try {
+      inflater.reset();
+      inflater.setInput(compressedBytes, 0, compressedLength);
+      if (inflater.inflate(plainBytes, 0, length) != length || !inflater.finished())
+        throw new InvalidLogBufferException("COMPRESSED data length" + bufferInfo());
+    } catch (DataFormatException e) {
+      throw new InvalidLogBufferException("COMPRESSED data [" + e.getMessage() + "]" + bufferInfo());
+    }
+    
+    // move the footer to the end of the buffer
+    ByteBuffer source = buffer.duplicate();
+    source.clear().position(footer).limit(footer + bufferFooterSize);
+    records.clear().position(buffer.capacity() - bufferFooterSize);
+    records.put(source);
+    
+    records.clear().position(recordsOffset);
+    records.put(plainBytes, 0, length);
+  }
+  
+  /**
+   * returns the number of bytes to be written for a
+   * compact block.
+   * 
+   * @param used number of bytes used by the header and records.
+   * @return size of the compact block, or buffer.capacity()
+   * if a compact block would not be smaller.
+   */
+  int compactSize(int used)
+  {
+    int size = used + bufferFooterSize + COMPACT_ALIGNMENT - 1;
+    size -= size % COMPACT_ALIGNMENT;
+    return Math.min(size, buffer.capacity());
+  }
+  
+  /**
+   * @param size block_size field of a block header.
+   * @return true if <i> size </i> is a valid size for
+   * a compact block.
+   */
+  private boolean isCompactSize(int size)
+  {
+    return size > 0 && size < buffer.capacity() && size % COMPACT_ALIGNMENT == 0;
+  }
+  
+  /**
+   * Reads a block from LogFile <i> lf </i> and validates
+   * header and footer information.
+   * 
+   * <p>Sets bsn to -1 at end of file, or if the block
+   * was preallocated but never written.
+   * 
+   * @see LogBuffer#read(LogFile, long)
+   * @throws IOException
+   * if anything goes wrong during the file read.
+   * @throws InvalidLogBufferException
+   * if any of the block header or footer fields are invalid.
+   */
+  LogBuffer read(LogFile lf, long position)
+    throws IOException, InvalidLogBufferException, InvalidMarkException
+  {
+    assert lf != null : "LogFile reference lf is null";
+    assert buffer != null : "ByteBuffer reference is null";
+    
+    this.lf = lf;
+    
+    int bytesRead = readBlock(lf, position);
     if (bytesRead == -1)
     {
       // end of file
@@ -425,41 +1008,67 @@ class BlockLogBuffer extends LogBuffer
       return this;
     }
 
-    if (bytesRead != buffer.capacity())
+    // a compact block may be the last block of the file,
+    // so the size is checked against the block_size of the header
+    if (bytesRead < recordsOffset)
       throw new InvalidLogBufferException("FILESIZE Error: bytesRead=" + bytesRead);
     
+    if (buffer.getInt(0) == 0)
+    {
+      // block was preallocated but has never been written
+      this.bsn = -1;
+      return this;
+    }
+    
     // verify header
     buffer.clear();
     buffer.get(headerId);
     if (!compareBytes(headerId, HEADER_ID))
       throw new InvalidLogBufferException("HEADER_ID" + bufferInfo());
     
-    // get bsn (int)
-    this.bsn = buffer.getInt();
+    // get bsn (int) -- low order 32 bits of the BSN
+    int headerBSN = buffer.getInt();
+    this.bsn = lf.blockBSN(headerBSN);
     
     // get buffer size (int) compare with buffer capacity
     int bufferSize = buffer.getInt();
-    if (bufferSize != buffer.capacity())
+    boolean compressed = (bufferSize & COMPRESSED) != 0;
+    if (compressed)
+      bufferSize &= ~COMPRESSED;
+    boolean crc = (bufferSize & CRC32C_CHECKSUM) != 0;
+    bufferSize &= ~CRC32C_CHECKSUM;
+    if (bufferSize != buffer.capacity() && !isCompactSize(bufferSize))
       throw new InvalidLogBufferException("bufferSize" + bufferInfo());
+    if (bytesRead < bufferSize)
+      throw new InvalidLogBufferException("FILESIZE Error: bytesRead=" + bytesRead);
+    blockSize = bufferSize;
+    int footer = bufferSize - bufferFooterSize;
     
     // get data used (int)
     bytesUsed = buffer.getInt();
-    if (bytesUsed < 0 || bytesUsed >= buffer.capacity())
+    if (bytesUsed < 0 || bytesUsed >= buffer.capacity() ||
+        bytesUsed > (compressed ? buffer.capacity() : bufferSize) - bufferFooterSize)
       throw new InvalidLogBufferException("data used: " + bytesUsed + bufferInfo());
     
     // verify checkSum if it is non-zero
+    // a CRC32C is computed over the records before they were compressed
     int checksumOffset = buffer.position();
     int checkSum = buffer.getInt();
     if (checkSum != 0)
+      buffer.putInt(checksumOffset, 0);  // checksum is computed with a zero checkSum field
+    if (checkSum != 0 && !crc)
+      verifyChecksum(checksumOffset, checkSum, checksum(bufferSize));
+    
+    if (compressed)
     {
-      buffer.putInt(checksumOffset, 0);
-      int expectedChecksum = checksum();
-      buffer.clear().position(checksumOffset);
-      buffer.putInt(checkSum);      // put the original value back
-      if (checkSum != expectedChecksum)
-        throw new InvalidLogBufferException("CHECKSUM expected: " + Integer.toHexString(expectedChecksum) + bufferInfo());
+      decompress(footer);
+      footer = buffer.capacity() - bufferFooterSize;
+      buffer.clear().position(checksumOffset + 4);
     }
     
+    if (checkSum != 0 && crc)
+      verifyChecksum(checksumOffset, checkSum, crc32cChecksum(footer));
+    
     // get tod
     this.tod = buffer.getLong();
     
@@ -472,14 +1081,14 @@ class BlockLogBuffer extends LogBuffer
     buffer.mark();
     
     // get FOOTER_ID and compare 
-    buffer.position(bufferSize - bufferFooterSize);
+    buffer.position(footer);
     buffer.get(footerId);
     if (!compareBytes(footerId, FOOTER_ID))
       throw new InvalidLogBufferException("FOOTER_ID" + bufferInfo());
     
     // compare FOOTER_BSN field with HEADER_BSN
     int bsn = buffer.getInt();
-    if (bsn != this.bsn)
+    if (bsn != headerBSN)
       throw new InvalidLogBufferException("FOOTER_BSN" + bufferInfo());
     
     // compare FOOTER_TOD field with HEADER_TOD
@@ -501,16 +1110,18 @@ class BlockLogBuffer extends LogBuffer
   /**
    * determines if buffer should be forced to disk.
    * 
-   * <p>If there are any waiting threads, then buffer
-   * is forced when it is 50 ms old.  Otherwise, if there
-   * are no waiting threads, we wait 1/4 second before we
-   * force.
+   * <p>The ForcePolicy determines how old the buffer
+   * must be before it is forced.  By default, if there
+   * are any waiting threads, then buffer is forced when
+   * it is 50 ms old.  Otherwise, if there are no waiting
+   * threads, we wait 1/4 second before we force.
    *
    * @return true if buffer should be forced now.
+   * @see DefaultForcePolicy
    */ 
-  boolean shouldForce()
+  boolean shouldForce(ForcePolicy forcePolicy)
   {
-    int forceDelta = getWaitingThreads() > 0 ? 50 : 250;
+    long forceDelta = forcePolicy.getFlushDelay(getWaitingThreads() > 0);
     long now = System.currentTimeMillis();
 
     return ((todPut + forceDelta) < now);
@@ -529,6 +1140,7 @@ class BlockLogBuffer extends LogBuffer
       "\n  <timesUsed value='" + initCounter + "'>Number of times this buffer was initialized for use</timesUsed>" +
       "\n  <physicalWrites value='" + doWrite + "'>Physical writes " + (doWrite ? "enabled" : "disabled" ) + "</physicalWrites>" +
       "\n  <checksums value='" + doChecksum + "'>Checksum Calculations " + (doChecksum ? "enabled" : "disabled" ) + "</checksums>" +
+      "\n  <compressedBlocks value='" + compressedCount + "'>Number of blocks written with compressed records</compressedBlocks>" +
       "\n</LogBuffer>" +
       "\n";
     
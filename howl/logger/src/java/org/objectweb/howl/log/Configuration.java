@@ -124,6 +124,19 @@ public class Configuration implements ConfigurationMBean {
    */
   static final int MAX_BUFFER_SIZE = 32;
 
+  /**
+   * minimum number of log key bits for the offset of a record.
+   * <p>Offsets within a buffer of MAX_BUFFER_SIZE fit in 15 bits.
+   */
+  static final int MIN_LOG_KEY_OFFSET_BITS = 15;
+
+  /**
+   * maximum number of log key bits for the offset of a record.
+   * <p>Log files written before the log key format was configurable
+   * use 24 bits.
+   */
+  static final int MAX_LOG_KEY_OFFSET_BITS = 24;
+
   /**
    * The Properties used to construct this object.
    */
@@ -253,10 +266,32 @@ public class Configuration implements ConfigurationMBean {
 
     adler32Checksum = getBoolean("adler32Checksum", adler32Checksum);
 
+    crc32cChecksum = getBoolean("crc32cChecksum", crc32cChecksum);
+
     checksumEnabled = getBoolean("checksumEnabled", checksumEnabled);
 
     flushPartialBuffers = getBoolean("flushPartialBuffers", flushPartialBuffers);
 
+    dedicatedForceThread = getBoolean("dedicatedForceThread", dedicatedForceThread);
+
+    forcePolicyClassName = getString("forcePolicyClassName", forcePolicyClassName);
+
+    commitLatencyTarget = getInteger("commitLatencyTarget", commitLatencyTarget);
+
+    appendLanes = getInteger("appendLanes", appendLanes);
+
+    preallocateFiles = getBoolean("preallocateFiles", preallocateFiles);
+
+    compactBlocks = getBoolean("compactBlocks", compactBlocks);
+
+    compressBlocks = getBoolean("compressBlocks", compressBlocks);
+
+    setLogKeyOffsetBits(getInteger("logKeyOffsetBits", logKeyOffsetBits));
+
+    replayReadAhead = getInteger("replayReadAhead", replayReadAhead);
+
+    stateFileEnabled = getBoolean("stateFileEnabled", stateFileEnabled);
+
     flushSleepTime = getInteger("flushSleepTime", flushSleepTime);
 
     logFileDir = getString("logFileDir", logFileDir);
@@ -299,6 +334,23 @@ public class Configuration implements ConfigurationMBean {
    */
   private boolean adler32Checksum = false;
 
+  /**
+   * When set to <b> true </b> and
+   * checksumEnabled is also <b> true </b>
+   * checksums are CRC32C values that are computed
+   * incrementally as records are put into a buffer.
+   * 
+   * <p>Sealing a buffer only combines the header and
+   * footer with the values computed by put(), so
+   * the checksum does not add to the time needed to
+   * write the buffer.  java.util.zip.CRC32C is used
+   * when the Java runtime provides it.
+   * <p>Takes precedence over adler32Checksum.  A flag in the
+   * block header records which checksum was used, so the
+   * option may be changed between executions.
+   */
+  private boolean crc32cChecksum = false;
+
   /**
    * When set to <b> true </b> checksums are computed on the contents
    * of each buffer prior to writing buffer contents to disk.
@@ -388,6 +440,142 @@ public class Configuration implements ConfigurationMBean {
    */
   private boolean flushPartialBuffers = false;
 
+  /**
+   * When set to <b> true </b> the LogBufferManager
+   * uses a dedicated thread to write and force
+   * log buffers.
+   *
+   * <p>Normally, the application thread that fills a buffer
+   * or triggers a force performs the file write and force
+   * on behalf of all waiting threads.
+   * With a dedicated force thread, application threads
+   * only enqueue buffers and wait for notification.
+   * The force thread writes every buffer that is ready
+   * and forces them with a single force.
+   *
+   * <p>By default, this feature is disabled (false).
+   */
+  private boolean dedicatedForceThread = false;
+
+  /**
+   * Name of class that implements ForcePolicy used by
+   * LogBufferManager to decide how long a force
+   * may be held.
+   * <p>Class must implement ForcePolicy.
+   * @see AdaptiveForcePolicy
+   */
+  private String forcePolicyClassName = "org.objectweb.howl.log.DefaultForcePolicy";
+
+  /**
+   * target for the 99th percentile commit latency in ms.
+   * <p>Used by AdaptiveForcePolicy to limit the
+   * amount of time a force is held.
+   * <p>Default value is 20 ms.
+   */
+  private int commitLatencyTarget = 20;
+
+  /**
+   * number of LogBuffers that are filled concurrently.
+   * <p>Threads calling put() are distributed over the lanes
+   * so they do not all contend for the same LogBuffer.
+   * Blocks are still written in ascending BSN order.
+   * <p>Each lane is assigned its BSN when it starts a buffer.
+   * When a lane fills its buffer while a lane with a lower BSN
+   * is still filling, the full buffer is held until the older
+   * lane is full or the FlushManager writes it.  The older lanes
+   * are only written as partial blocks when a record has to be
+   * forced, or when no free buffers are left.  The
+   * partialLaneBlocks statistic counts these blocks.
+   * <p>The LogBufferManager uses at most one half of
+   * the minBuffers as lanes.
+   * <p>Default value is 1.
+   */
+  private int appendLanes = 1;
+
+  /**
+   * When set to <b> true </b> each log file is extended to
+   * maxBlocksPerFile * bufferSize bytes before it is used.
+   * <p>Once a file has been preallocated, writes to the file
+   * do not change the file size, so a force does not have to
+   * update file metadata.
+   * <p>Files are preallocated by a background thread when
+   * possible.
+   * <p>Default value is false.
+   */
+  private boolean preallocateFiles = false;
+
+  /**
+   * When set to <b> true </b> a buffer that is written before
+   * it is full is written as a compact block that contains
+   * only the used bytes and the block footer, rounded up to
+   * a multiple of 4096 bytes.
+   * <p>Compact blocks reduce the number of bytes written
+   * when flushPartialBuffers is true or when buffers are
+   * forced by the FlushManager at low load.  Blocks no longer
+   * start at a fixed file position, so each LogFile keeps a
+   * directory of its block positions.
+   * <p>The option applies to log files as the log switches to
+   * them.  The FILE_HEADER of each file records whether the
+   * file contains compact blocks, so existing files are read
+   * whatever the value of compactBlocks.
+   * <p>Default value is false.
+   */
+  private boolean compactBlocks = false;
+
+  /**
+   * When set to <b> true </b> the records of each block
+   * are compressed with java.util.zip.Deflater when the
+   * block is written.
+   * <p>A compressed block is written as a compact block, so
+   * compressBlocks implies compactBlocks.  Blocks that do not
+   * compress to fewer sectors are written without compression,
+   * and a flag in the block header tells read() which blocks
+   * must be decompressed, so log files are read whatever
+   * the value of compressBlocks.
+   * <p>Default value is false.
+   */
+  private boolean compressBlocks = false;
+
+  /**
+   * number of low order bits of a log key that contain
+   * the offset of the record within its block.
+   * <p>The remaining bits contain the block sequence number,
+   * so fewer offset bits allow more blocks to be written
+   * before the log keys are exhausted.  Offsets of the
+   * largest buffers fit in 15 bits.
+   * <p>The value is stored in the FILE_HEADER of each log file.
+   * When existing log files are opened, the value stored in
+   * the files is used instead of the configured value.
+   * <p>Default value is 24.
+   */
+  private int logKeyOffsetBits = MAX_LOG_KEY_OFFSET_BITS;
+
+  /**
+   * number of blocks read ahead of the ReplayListener
+   * during replay.
+   * <p>When greater than zero, blocks are read and validated
+   * by a background thread into a ring of buffers so that
+   * reading the log overlaps the processing of records by
+   * the ReplayListener.
+   * <p>Default value is 0 -- each block is read by the
+   * replay thread when the previous block has been processed.
+   */
+  private int replayReadAhead = 0;
+
+  /**
+   * When set to <b> true </b> the state of the log files
+   * is saved to a state file when the log is closed.
+   * <p>The state file is named logFileName.state and
+   * is stored in logFileDir.  When the log is opened after
+   * a clean close, the state file is used instead of reading
+   * the header of each log file and searching for the last
+   * block written.
+   * <p>The state file is not used with compactBlocks, or
+   * while any log file contains compact blocks.
+   * <p>Default value is false.
+   */
+  private boolean stateFileEnabled = false;
+
   /**
    * the maximum number of threads that should wait
    * for an IO force.
@@ -448,7 +636,15 @@ public class Configuration implements ConfigurationMBean {
   /**
    * IO mode used to open the file.
    * <p>Default is "rw"
-   * <p>Must be "rw" or "rwd"
+   * <p>Must be "rw", "rwd", "direct" or "dsync"
+   * <p>"dsync" opens the files with StandardOpenOption.DSYNC
+   * so the gathering write of a group of buffers also makes
+   * the buffers durable, and the logger does not call force().
+   * <p>"direct" opens the files with
+   * com.sun.nio.file.ExtendedOpenOption.DIRECT so log
+   * blocks do not pass through the file system cache.
+   * The bufferSize must be a multiple of 4K and of
+   * the device block size.
    *
    * @see java.io.RandomAccessFile#RandomAccessFile(java.io.File, java.lang.String)
    */
@@ -675,9 +871,10 @@ public class Configuration implements ConfigurationMBean {
   public void setLogFileMode(String logFileMode)
   throws LogConfigurationException
   {
-    if (!logFileMode.equals("rw") && !logFileMode.equals("rwd"))
+    if (!logFileMode.equals("rw") && !logFileMode.equals("rwd") &&
+        !logFileMode.equals("direct") && !logFileMode.equals("dsync"))
       throw new LogConfigurationException("logFileMode[" + logFileMode +
-          "] must be \"rw\" or \"rwd\"");
+          "] must be \"rw\", \"rwd\", \"direct\" or \"dsync\"");
 
     this.logFileMode = logFileMode;
     prop.setProperty("logFileMode", logFileMode);
@@ -737,4 +934,178 @@ public class Configuration implements ConfigurationMBean {
     this.flushPartialBuffers = flushPartialBuffers;
     prop.setProperty("flushPartialBuffers", Boolean.toString(flushPartialBuffers));
   }
+
+  /**
+   * @return Returns the dedicatedForceThread option.
+   */
+  public boolean isDedicatedForceThread() {
+    return dedicatedForceThread;
+  }
+
+  /**
+   * @param dedicatedForceThread The dedicatedForceThread to set.
+   */
+  public void setDedicatedForceThread(boolean dedicatedForceThread) {
+    this.dedicatedForceThread = dedicatedForceThread;
+    prop.setProperty("dedicatedForceThread", Boolean.toString(dedicatedForceThread));
+  }
+
+  /**
+   * @return Returns the forcePolicyClassName.
+   */
+  public String getForcePolicyClassName() {
+    return forcePolicyClassName;
+  }
+
+  /**
+   * @param forcePolicyClassName The forcePolicyClassName to set.
+   */
+  public void setForcePolicyClassName(String forcePolicyClassName) {
+    this.forcePolicyClassName = forcePolicyClassName;
+    prop.setProperty("forcePolicyClassName", forcePolicyClassName);
+  }
+
+  /**
+   * @return Returns the commitLatencyTarget.
+   */
+  public int getCommitLatencyTarget() {
+    return commitLatencyTarget;
+  }
+
+  /**
+   * @param commitLatencyTarget The commitLatencyTarget to set.
+   */
+  public void setCommitLatencyTarget(int commitLatencyTarget) {
+    this.commitLatencyTarget = commitLatencyTarget;
+    prop.setProperty("commitLatencyTarget", Integer.toString(commitLatencyTarget));
+  }
+
+  /**
+   * @return Returns the appendLanes.
+   */
+  public int getAppendLanes() {
+    return appendLanes;
+  }
+
+  /**
+   * @param appendLanes The appendLanes to set.
+   */
+  public void setAppendLanes(int appendLanes) {
+    this.appendLanes = appendLanes;
+    prop.setProperty("appendLanes", Integer.toString(appendLanes));
+  }
+
+  /**
+   * @return Returns the preallocateFiles option.
+   */
+  public boolean isPreallocateFiles() {
+    return preallocateFiles;
+  }
+
+  /**
+   * @param preallocateFiles The preallocateFiles option to set.
+   */
+  public void setPreallocateFiles(boolean preallocateFiles) {
+    this.preallocateFiles = preallocateFiles;
+    prop.setProperty("preallocateFiles", Boolean.toString(preallocateFiles));
+  }
+
+  /**
+   * @return Returns the crc32cChecksum option.
+   */
+  public boolean isCrc32cChecksumEnabled() {
+    return crc32cChecksum;
+  }
+
+  /**
+   * @param crc32cChecksum <b>true</b> if application
+   * wishes to use CRC32C checksums.
+   */
+  public void setCrc32cChecksum(boolean crc32cChecksum) {
+    this.crc32cChecksum = crc32cChecksum;
+    prop.setProperty("crc32cChecksum", Boolean.toString(crc32cChecksum));
+  }
+
+  /**
+   * @return Returns the compactBlocks option.
+   */
+  public boolean isCompactBlocks() {
+    return compactBlocks;
+  }
+
+  /**
+   * @param compactBlocks The compactBlocks option to set.
+   */
+  public void setCompactBlocks(boolean compactBlocks) {
+    this.compactBlocks = compactBlocks;
+    prop.setProperty("compactBlocks", Boolean.toString(compactBlocks));
+  }
+
+  /**
+   * @return Returns the compressBlocks option.
+   */
+  public boolean isCompressBlocks() {
+    return compressBlocks;
+  }
+
+  /**
+   * @param compressBlocks The compressBlocks option to set.
+   */
+  public void setCompressBlocks(boolean compressBlocks) {
+    this.compressBlocks = compressBlocks;
+    prop.setProperty("compressBlocks", Boolean.toString(compressBlocks));
+  }
+
+  /**
+   * @return Returns the logKeyOffsetBits.
+   */
+  public int getLogKeyOffsetBits() {
+    return logKeyOffsetBits;
+  }
+
+  /**
+   * @param logKeyOffsetBits The logKeyOffsetBits to set.
+   * @throws LogConfigurationException
+   * if logKeyOffsetBits is not between 15 and 24.
+   */
+  public void setLogKeyOffsetBits(int logKeyOffsetBits)
+  throws LogConfigurationException
+  {
+    if (logKeyOffsetBits < MIN_LOG_KEY_OFFSET_BITS || logKeyOffsetBits > MAX_LOG_KEY_OFFSET_BITS)
+      throw new LogConfigurationException("logKeyOffsetBits [" + logKeyOffsetBits + "] must be" +
+          " between " + MIN_LOG_KEY_OFFSET_BITS + " and " + MAX_LOG_KEY_OFFSET_BITS);
+
+    this.logKeyOffsetBits = logKeyOffsetBits;
+    prop.setProperty("logKeyOffsetBits", Integer.toString(logKeyOffsetBits));
+  }
+
+  /**
+   * @return Returns the replayReadAhead.
+   */
+  public int getReplayReadAhead() {
+    return replayReadAhead;
+  }
+
+  /**
+   * @param replayReadAhead The replayReadAhead to set.
+   */
+  public void setReplayReadAhead(int replayReadAhead) {
+    this.replayReadAhead = replayReadAhead;
+    prop.setProperty("replayReadAhead", Integer.toString(replayReadAhead));
+  }
+
+  /**
+   * @return Returns the stateFileEnabled option.
+   */
+  public boolean isStateFileEnabled() {
+    return stateFileEnabled;
+  }
+
+  /**
+   * @param stateFileEnabled The stateFileEnabled option to set.
+   */
+  public void setStateFileEnabled(boolean stateFileEnabled) {
+    this.stateFileEnabled = stateFileEnabled;
+    prop.setProperty("stateFileEnabled", Boolean.toString(stateFileEnabled));
+  }
 }
@@ -96,4 +96,54 @@ public interface ConfigurationMBean {
    * @return Returns the logFileMode.
    */
   public String getLogFileMode();
-}
\ No newline at end of file
+  /**
+   * @return Returns the dedicatedForceThread option.
+   */
+  public boolean isDedicatedForceThread();
+  /**
+   * @return Returns the forcePolicyClassName.
+   */
+  public String getForcePolicyClassName();
+  /**
+   * @return Returns the commitLatencyTarget.
+   */
+  public int getCommitLatencyTarget();
+  /**
+   * @return Returns the appendLanes.
+   */
+  public int getAppendLanes();
+  /**
+   * @return Returns the preallocateFiles option.
+   */
+  public boolean isPreallocateFiles();
+
+  /**
+   * @return Returns the crc32cChecksum option.
+   */
+  public boolean isCrc32cChecksumEnabled();
+
+  /**
+   * @return Returns the compactBlocks option.
+   */
+  public boolean isCompactBlocks();
+
+  /**
+   * @return Returns the compressBlocks option.
+   */
+  public boolean isCompressBlocks();
+
+  /**
+   * @return Returns the logKeyOffsetBits.
+   */
+  public int getLogKeyOffsetBits();
+
+  /**
+   * @return Returns the replayReadAhead.
+   */
+  public int getReplayReadAhead();
+
+  /**
+   * @return Returns the stateFileEnabled option.
+   */
+  public boolean isStateFileEnabled();
+}
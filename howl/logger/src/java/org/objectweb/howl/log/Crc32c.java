@@ -0,0 +1,260 @@
+/*
+ * JOnAS: Java(TM) Open Application Server
+ * Copyright (C) 2004 Bull S.A.
+ * All rights reserved.
+ * 
+ * Contact: howl@objectweb.org
+ * 
+ * This software is licensed under the BSD license.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *     
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *     
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * ------------------------------------------------------------------------------
+ * $Id$
+ * ------------------------------------------------------------------------------
+ */
+package org.objectweb.howl.log;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+/**
+ * CRC32C (Castagnoli) checksums of LogBuffer blocks that
+ * are computed incrementally as records are put.
+ * 
+ * <p>The CRC of a block is computed over the block with the
+ * checksum field and the unused bytes between the last record
+ * and the block footer set to zero.  Without the initial and final
+ * inversion a CRC is linear, so the CRC of a block is the
+ * exclusive or of the CRC of each region of the block shifted by
+ * the number of bytes that follow the region.  Each thread that
+ * puts a record computes the contribution of its record with
+ * contribution(), so the contributions may be combined in any order
+ * and sealing a block only adds the header and footer.
+ * 
+ * <p>java.util.zip.CRC32C is used when the Java runtime provides
+ * it; otherwise a table driven implementation computes the same
+ * values, so log files can be read by any Java runtime.
+ */
+final class Crc32c
+{
+  /**
+   * CRC32C polynomial in reflected bit order.
+   */
+  private static final int POLY = 0x82F63B78;
+  
+  /**
+   * x^0 in reflected bit order.
+   */
+  private static final int ONE = 0x80000000;
+  
+  /**
+   * table used by the software implementation.
+   */
+  private static final int[] TABLE = new int[256];
+  
+  /**
+   * SHIFT[k][b] is x^(8 * b * 256^k) modulo POLY.
+   * <p>used by shift() to multiply a CRC by x^(8n) with one
+   * multiplication for each non-zero byte of n.
+   */
+  private static final int[][] SHIFT = new int[4][256];
+  
+  /**
+   * constructor for java.util.zip.CRC32C, or null
+   * if the Java runtime does not provide it.
+   */
+  private static final Class CRC32C;
+  
+  static
+  {
+    for (int i = 0; i < 256; ++i)
+    {
+      int crc = i;
+      for (int j = 0; j < 8; ++j)
+        crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLY : crc >>> 1;
+      TABLE[i] = crc;
+    }
+
+    int x8 = ONE >>> 8;  // x^8
+    for (int k = 0; k < SHIFT.length; ++k)
+    {
+      SHIFT[k][0] = ONE;
+      SHIFT[k][1] = k == 0 ? x8 : multiply(SHIFT[k - 1][255], SHIFT[k - 1][1]);
+      for (int b = 2; b < 256; ++b)
+        SHIFT[k][b] = multiply(SHIFT[k][b - 1], SHIFT[k][1]);
+    }
+
+    Class cls = null;
+    try {
+      cls = Class.forName("java.util.zip.CRC32C");
+    } catch (ClassNotFoundException e) {
+      // use the software implementation
+    }
+    CRC32C = cls;
+  }
+  
+  /**
+   * Checksum used by the current thread.
+   */
+  private static final ThreadLocal checksum = new ThreadLocal() {
+    protected Object initialValue() {
+      if (CRC32C != null)
+      {
+        try {
+          return CRC32C.getDeclaredConstructor().newInstance();
+        } catch (Exception e) {
+          // use the software implementation
+        }
+      }
+      return new Software();
+    }
+  };
+  
+  /**
+   * not instantiated.
+   */
+  private Crc32c()
+  {
+  }
+  
+  /**
+   * returns the product of <i> a </i> and <i> b </i>
+   * modulo POLY.
+   */
+  private static int multiply(int a, int b)
+  {
+    int product = 0;
+    for (int m = ONE; m != 0; m >>>= 1)
+    {
+      if ((a & m) != 0)
+      {
+        product ^= b;
+        if ((a & (m - 1)) == 0) break;
+      }
+      b = (b & 1) != 0 ? (b >>> 1) ^ POLY : b >>> 1;
+    }
+    return product;
+  }
+  
+  /**
+   * returns <i> crc </i> as if it had been computed
+   * without the initial and final inversion and followed
+   * by <i> n </i> zero bytes.
+   * 
+   * @param crc CRC to be shifted.
+   * @param n number of zero bytes.
+   * @return shifted CRC.
+   */
+  static int shift(int crc, int n)
+  {
+    for (int k = 0; n != 0; ++k, n >>>= 8)
+    {
+      if ((n & 0xFF) != 0)
+        crc = multiply(SHIFT[k][n & 0xFF], crc);
+    }
+    return crc;
+  }
+  
+  /**
+   * returns the contribution of <i> length </i> bytes of
+   * <i> buffer </i> at <i> offset </i> to the CRC of a region
+   * that ends at <i> end </i>.
+   * 
+   * <p>The position and limit of <i> buffer </i> are not changed.
+   * 
+   * @param buffer ByteBuffer containing the bytes.
+   * @param offset offset of the first byte.
+   * @param length number of bytes.
+   * @param end offset of the end of the region.
+   * @return contribution to be combined with value().
+   */
+  static int contribution(ByteBuffer buffer, int offset, int length, int end)
+  {
+    ByteBuffer bytes = buffer.duplicate();
+    bytes.limit(offset + length).position(offset);
+
+    Checksum crc = (Checksum)checksum.get();
+    crc.reset();
+    if (crc instanceof Software)
+      ((Software)crc).update(bytes);
+    else
+      crc.update(bytes);
+    int std = (int)crc.getValue();
+
+    // remove the initial and final inversion
+    int dist = end - offset - length;
+    return shift(~std, dist) ^ shift(~0, length + dist);
+  }
+  
+  /**
+   * returns the CRC32C of a region of <i> length </i> bytes
+   * given the exclusive or of the contributions
+   * of its non-zero bytes.
+   * 
+   * @param contributions combined contributions to the region.
+   * @param length length of the region in bytes.
+   * @return CRC32C of the region.
+   */
+  static int value(int contributions, int length)
+  {
+    return ~(contributions ^ shift(~0, length));
+  }
+  
+  /**
+   * table driven CRC32C for Java runtimes without
+   * java.util.zip.CRC32C.
+   */
+  private static final class Software implements Checksum
+  {
+    private int crc = ~0;
+    
+    public void update(int b)
+    {
+      crc = (crc >>> 8) ^ TABLE[(crc ^ b) & 0xFF];
+    }
+    
+    public void update(byte[] b, int off, int len)
+    {
+      for (int i = off; i < off + len; ++i)
+        crc = (crc >>> 8) ^ TABLE[(crc ^ b[i]) & 0xFF];
+    }
+    
+    public void update(ByteBuffer b)
+    {
+      while (b.hasRemaining())
+        crc = (crc >>> 8) ^ TABLE[(crc ^ b.get()) & 0xFF];
+    }
+    
+    public long getValue()
+    {
+      return ~crc & 0xFFFFFFFFL;
+    }
+    
+    public void reset()
+    {
+      crc = ~0;
+    }
+  }
+}
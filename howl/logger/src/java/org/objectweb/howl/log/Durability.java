@@ -0,0 +1,72 @@
+/*
+ * JOnAS: Java(TM) Open Application Server
+ * Copyright (C) 2004 Bull S.A.
+ * All rights reserved.
+ * 
+ * Contact: howl@objectweb.org
+ * 
+ * This software is licensed under the BSD license.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *     
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *     
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * ------------------------------------------------------------------------------
+ * $Id$
+ * ------------------------------------------------------------------------------
+ */
+package org.objectweb.howl.log;
+
+
+/**
+ * Defines the durability levels that may be requested
+ * when a record is put to the log.
+ * 
+ * @see Logger#put(byte[][], int)
+ */
+public interface Durability
+{
+  /**
+   * put() returns as soon as the record has been
+   * copied into a log buffer (0).
+   * <p>Same as put(data, false).
+   */
+  static final int BUFFERED = 0;
+  
+  /**
+   * put() returns after the log buffer containing the record
+   * has been written to the log file, without waiting
+   * for the log file to be forced (1).
+   * <p>The record survives a failure of the JVM, but not
+   * a failure of the operating system.  The record is forced
+   * with the next force of the log, and the caller may use
+   * Logger.getDurableMark() to find out when that happens.
+   */
+  static final int WRITTEN  = 1;
+  
+  /**
+   * put() returns after the log buffer containing the record
+   * has been forced to disk (2).
+   * <p>Same as put(data, true).
+   */
+  static final int FORCED   = 2;
+}
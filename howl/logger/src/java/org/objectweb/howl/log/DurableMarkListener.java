@@ -0,0 +1,66 @@
+/*
+ * JOnAS: Java(TM) Open Application Server
+ * Copyright (C) 2004 Bull S.A.
+ * All rights reserved.
+ * 
+ * Contact: howl@objectweb.org
+ * 
+ * This software is licensed under the BSD license.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *     
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *     
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * ------------------------------------------------------------------------------
+ * $Id$
+ * ------------------------------------------------------------------------------
+ */
+package org.objectweb.howl.log;
+
+
+/**
+ * This interface is implemented by users of the Logger
+ * that track the durability of records asynchronously.
+ * 
+ * <p>If a DurableMarkListener is registered, the Logger
+ * notifies it each time a force of the log advances
+ * the durable mark.  Every record with a log key less than
+ * the durable mark has been forced to disk.
+ * 
+ * <p>Notifications are delivered by a thread from the
+ * Configuration scheduler.  Consecutive forces may be
+ * reported with a single notification, but the reported
+ * mark never decreases.
+ * 
+ * @see Logger#setDurableMarkListener(DurableMarkListener)
+ * @see Logger#getDurableMark()
+ */
+public interface DurableMarkListener
+{
+  /**
+   * Called by Logger when the durable mark advances.
+   * 
+   * @param durableMark every record with a log key less
+   * than <i> durableMark </i> has been forced to disk.
+   */
+  void durableMarkAdvanced(long durableMark);
+}
@@ -0,0 +1,92 @@
+/*
+ * JOnAS: Java(TM) Open Application Server
+ * Copyright (C) 2004 Bull S.A.
+ * All rights reserved.
+ * 
+ * Contact: howl@objectweb.org
+ * 
+ * This software is licensed under the BSD license.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *     
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *     
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * ------------------------------------------------------------------------------
+ * $Id$
+ * ------------------------------------------------------------------------------
+ */
+package org.objectweb.howl.log;
+
+/**
+ * Decides how long the LogBufferManager may delay a force
+ * so that more records can share it.
+ * 
+ * <p>The LogBufferManager always forces immediately when
+ * a force is required for correctness (a log file switch,
+ * a flush timeout, or when half of the buffers are waiting).
+ * In all other cases the ForcePolicy is consulted.
+ * 
+ * <p>Implementations must provide a public constructor
+ * that accepts a Configuration object.
+ * 
+ * <p>The flush delay is in milliseconds.  Hold, force and
+ * latency times are in nanoseconds as measured by System.nanoTime().
+ * 
+ * @see Configuration#setForcePolicyClassName(String)
+ * @see DefaultForcePolicy
+ * @see AdaptiveForcePolicy
+ */
+public interface ForcePolicy
+{
+  /**
+   * returns the age at which the current fill buffer should be
+   * forced by the FlushManager.
+   * 
+   * @param threadsWaiting true if one or more threads are
+   * waiting for the buffer to be forced.
+   * @return number of ms since the last put to the buffer
+   * before the buffer is forced.
+   */
+  long getFlushDelay(boolean threadsWaiting);
+  
+  /**
+   * returns the amount of time that a force may be held
+   * to allow additional records to be included in the force.
+   * 
+   * @param age number of ns since the oldest record that
+   * has not been forced was put to the log.
+   * @return number of ns to hold the force, or zero
+   * to force immediately.
+   */
+  long getHoldTime(long age);
+  
+  /**
+   * reports the results of a force.
+   * 
+   * @param forceTime number of ns spent in the force.
+   * @param latency number of ns between the put of the oldest
+   * record included in the force and completion of the force.
+   * @param threadsWaiting number of threads that were waiting
+   * for the force.
+   */
+  void forceComplete(long forceTime, long latency, int threadsWaiting);
+}
@@ -0,0 +1,193 @@
+/*
+ * JOnAS: Java(TM) Open Application Server
+ * Copyright (C) 2004 Bull S.A.
+ * All rights reserved.
+ * 
+ * Contact: howl@objectweb.org
+ * 
+ * This software is licensed under the BSD license.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *     
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *     
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * ------------------------------------------------------------------------------
+ * $Id$
+ * ------------------------------------------------------------------------------
+ */
+package org.objectweb.howl.log;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-bucketed histogram of latencies measured with System.nanoTime().
+ * 
+ * <p>Values are counted in buckets whose width doubles with each
+ * power of two, and each power of two is divided into SUB_BUCKETS
+ * linear sub-buckets.  Reported percentiles are therefore within
+ * 1/SUB_BUCKETS (about 6%) of the recorded value over the entire
+ * range of a long, using a fixed amount of memory.
+ * 
+ * <p>Values are recorded without locks so that the histogram
+ * can be updated by any thread on the put(), write() and
+ * force() paths.  Percentiles computed while values are being
+ * recorded may not include the most recent values.
+ */
+class LatencyHistogram
+{
+  /**
+   * number of linear sub-buckets for each power of two.
+   */
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  /**
+   * count of values recorded in each bucket.
+   */
+  private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+
+  /**
+   * total number of values recorded.
+   */
+  private final AtomicLong count = new AtomicLong();
+
+  /**
+   * largest value recorded.
+   */
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * returns the bucket that <i> value </i> is counted in.
+   */
+  private static int bucket(long value)
+  {
+    if (value < SUB_BUCKETS) return (int)value;
+    int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+    return ((shift + 1) << SUB_BUCKET_BITS) + (int)((value >>> shift) & (SUB_BUCKETS - 1));
+  }
+
+  /**
+   * returns the largest value that is counted in <i> bucket </i>.
+   */
+  private static long highestValue(int bucket)
+  {
+    if (bucket < SUB_BUCKETS) return bucket;
+    int shift = (bucket >>> SUB_BUCKET_BITS) - 1;
+    long subBucket = (bucket & (SUB_BUCKETS - 1)) | SUB_BUCKETS;
+    return ((subBucket + 1) << shift) - 1;
+  }
+
+  /**
+   * records a latency.
+   * @param nanos latency in nanoseconds.  Negative values are
+   * recorded as zero.
+   */
+  void record(long nanos)
+  {
+    if (nanos < 0) nanos = 0;
+    counts.incrementAndGet(bucket(nanos));
+    count.incrementAndGet();
+
+    long current;
+    while ((current = max.get()) < nanos && !max.compareAndSet(current, nanos))
+      ;
+  }
+
+  /**
+   * records the time that has elapsed since <i> startNanos </i>.
+   * @param startNanos value of System.nanoTime() at the start of the interval.
+   */
+  void recordSince(long startNanos)
+  {
+    record(System.nanoTime() - startNanos);
+  }
+
+  /**
+   * @return number of values recorded.
+   */
+  long getCount()
+  {
+    return count.get();
+  }
+
+  /**
+   * @return largest value recorded in nanoseconds.
+   */
+  long getMax()
+  {
+    return max.get();
+  }
+
+  /**
+   * returns the value at a given percentile.
+   * @param percentile percentile between 0.0 and 100.0.
+   * @return the value (nanoseconds) that <i> percentile </i> percent
+   * of the recorded values are less than or equal to, or zero if no
+   * values have been recorded.
+   */
+  long getValueAtPercentile(double percentile)
+  {
+    long total = count.get();
+    if (total == 0) return 0L;
+
+    long target = (long)Math.ceil((Math.min(percentile, 100.0) / 100.0) * total);
+    if (target < 1) target = 1;
+
+    long seen = 0;
+    for (int i = 0; i < counts.length(); ++i)
+    {
+      seen += counts.get(i);
+      if (seen >= target)
+        return Math.min(highestValue(i), max.get());
+    }
+    return max.get();
+  }
+
+  /**
+   * returns the value at a given percentile in milliseconds.
+   * @param percentile percentile between 0.0 and 100.0.
+   * @return value in milliseconds.
+   * @see #getValueAtPercentile(double)
+   */
+  double getMillisAtPercentile(double percentile)
+  {
+    return getValueAtPercentile(percentile) / 1000000.0;
+  }
+
+  /**
+   * return a summary of the histogram as an XML string.
+   * @param name element name for the histogram.
+   * @param description text describing the histogram.
+   * @return XML string containing count, percentiles and max in milliseconds.
+   */
+  String getStats(String name, String description)
+  {
+    return "\n    <" + name + " count='" + getCount() + "'" +
+      " p50='" + getMillisAtPercentile(50.0) + "'" +
+      " p90='" + getMillisAtPercentile(90.0) + "'" +
+      " p99='" + getMillisAtPercentile(99.0) + "'" +
+      " p999='" + getMillisAtPercentile(99.9) + "'" +
+      " max='" + (getMax() / 1000000.0) + "'>" +
+      description + " (ms)</" + name + ">";
+  }
+}
@@ -38,7 +38,10 @@ package org.objectweb.howl.log;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 import java.util.zip.Adler32;
 
 
@@ -50,9 +53,12 @@ import java.util.zip.Adler32;
 abstract class LogBuffer extends LogObject
 {
   /**
-   * 
+   * ByteBuffer containing the block.
+   * <p>Allocated by the constructor.  A sub-class may
+   * replace the buffer during init() and read(), for example
+   * with a region of a memory mapped LogFile.
    */
-  final ByteBuffer buffer;
+  ByteBuffer buffer;
 
   /**
    * buffer number used by owner (LogBufferManager) to workerID into an array of buffers.
@@ -74,6 +80,14 @@ abstract class LogBuffer extends LogObject
    */
   long tod = 0;
 
+  /**
+   * System.nanoTime() when the buffer was initialized.
+   * 
+   * <p>Used by the ForcePolicy to measure commit latency
+   * with better than millisecond resolution.
+   */
+  long todNanos = 0;
+
   /**
    * number of waiting threads.
    * <p>Always synchronized on (waitingThreadsLock).
@@ -93,6 +107,13 @@ abstract class LogBuffer extends LogObject
    */
   final Object waitingThreadsLock = new Object();
 
+  /**
+   * LogKeyFuture objects waiting for this buffer to be forced.
+   * <p>Always synchronized on (this).
+   * @see #addFuture(LogKeyFuture)
+   */
+  private final ArrayList futures = new ArrayList();
+
   /**
    * results of last write.
    * <p>Value must be one of the constants defined in LogBuffer interface.
@@ -104,10 +125,22 @@ abstract class LogBuffer extends LogObject
    * <p>LogBufferManager maintains a sequence number
    * of buffers written. The sequence number is stored
    * in the block header of each log block.
+   * <p>Only the low order 32 bits are stored in the block
+   * header.  read() uses LogFile.blockBSN() to restore
+   * the high order bits.
    * <p>Initialized to zero.
    * <p>Set to -1 by read() if bytes read is -1 (end of file) 
    */
-  int bsn = 0;
+  long bsn = 0;
+  
+  /**
+   * number of low order bits of a log key that contain
+   * the offset of a record within the buffer.
+   * <p>Set by the LogBufferManager to the value used by
+   * the log files.
+   * @see #logKey(int)
+   */
+  int offsetBits;
   
   /**
    * set true if this LogBuffer should issue a rewind on the FileChannel before
@@ -176,6 +209,15 @@ abstract class LogBuffer extends LogObject
    */
   int bytesUsed = 0;
   
+  /**
+   * Number of bytes in the block read from the file.
+   * 
+   * <p>set by read().  Compact blocks are smaller than the
+   * buffer capacity().
+   * @see Configuration#isCompactBlocks()
+   */
+  int blockSize = 0;
+  
   /**
    * Local buffer used to compute checksums.
    * 
@@ -198,6 +240,102 @@ abstract class LogBuffer extends LogObject
   
   final Adler32 checksum; // BUG 304291
   
+  /**
+   * true if checksums are CRC32C values computed
+   * incrementally by put().
+   * @see Configuration#isCrc32cChecksumEnabled()
+   */
+  final boolean crc32c;
+  
+  /**
+   * exclusive or of the CRC32C contributions of the
+   * records that have been put into the buffer.
+   * <p>Updated without locks by the threads that put records.
+   * @see Crc32c#contribution(ByteBuffer, int, int, int)
+   */
+  final AtomicInteger crcContributions = new AtomicInteger();
+  
+  /**
+   * bit set in <i> fillPosition </i> when the buffer has been
+   * sealed and no further records may be reserved.
+   */
+  static final int SEALED = 0x80000000;
+  
+  /**
+   * offset within <i> buffer </i> of the next record to be
+   * reserved by put().
+   * 
+   * <p>Threads calling put() claim space for a record with
+   * a compareAndSet on this value and then copy their data
+   * into the claimed space without holding any lock.
+   * The SEALED bit is set when the buffer is moved to
+   * the forceQueue so no further reservations succeed.
+   * 
+   * @see #reserve(int)
+   * @see #seal()
+   */
+  final AtomicInteger fillPosition = new AtomicInteger(SEALED);
+  
+  /**
+   * offset of the first byte that can not be used for records.
+   * <p>Set by init() to the start of the block footer.
+   */
+  int fillLimit = 0;
+  
+  /**
+   * number of threads that are currently copying
+   * records into the buffer.
+   * 
+   * <p>Incremented before a reservation is attempted
+   * and decremented when the copy is complete.
+   * write() waits for this count to reach zero
+   * before the buffer is written.
+   */
+  final AtomicInteger activePuts = new AtomicInteger();
+  
+  /**
+   * Thread that is waiting in awaitPuts() for
+   * <i> activePuts </i> to reach zero.
+   * 
+   * <p>releasePut() unparks the thread when the
+   * last active put completes.
+   */
+  volatile Thread putWaiter = null;
+  
+  /**
+   * number of times awaitPuts() checks <i> activePuts </i>
+   * before parking the thread.
+   */
+  static final int PUT_SPINS = 100;
+  
+  /**
+   * maximum time in nanoseconds that awaitPuts() parks
+   * before checking <i> activePuts </i> again.
+   */
+  static final long PUT_PARK_NANOS = 1000000L;
+  
+  /**
+   * maximum time in nanoseconds that awaitPuts() waits
+   * for <i> activePuts </i> to reach zero.
+   * 
+   * <p>A reservation that is held longer than this
+   * fails the write of the buffer.
+   */
+  static final long PUT_TIMEOUT_NANOS = 10000000000L;
+  
+  /**
+   * Thread that is running init() for this buffer.
+   * 
+   * <p>The buffer remains SEALED during init(). Records put by
+   * the LogFileManager during init() bypass the reservation
+   * so that FILE_HEADER and MARKKEY records are always
+   * the first records of a block.
+   * <p>Also set by LogBufferManager while it puts the
+   * FRAGMENT_MIDDLE or FRAGMENT_LAST of a continued record
+   * into a buffer that has not been unsealed.
+   */
+  Thread initThread = null;
+  
   /**
    * default constructor.
    * <p>after creating a new instance of LogBuffer the caller must
@@ -208,10 +346,47 @@ abstract class LogBuffer extends LogObject
     super(config);  // LogObject 
     name = this.getClass().getName();
     doChecksum = config.isChecksumEnabled();
-    buffer = ByteBuffer.allocateDirect(config.getBufferSize() * 1024); // BUG 300957
+    int bufferSize = config.getBufferSize() * 1024; // BUG 300957
+    if (LogFile.DIRECT_MODE.equals(config.getLogFileMode()))
+      buffer = LogFile.allocateAligned(bufferSize);
+    else
+      buffer = ByteBuffer.allocateDirect(bufferSize);
+    crc32c = doChecksum && config.isCrc32cChecksumEnabled();
+    offsetBits = config.getLogKeyOffsetBits();
+    // blocks written without crc32c are verified with Adler32 whatever the option
     checksum = (doChecksum && config.isAdler32ChecksumEnabled()) ? new Adler32(): null;
   }
 
+  /**
+   * returns the log key of the record at <i> offset </i>
+   * within this buffer.
+   * @param offset offset of the record within the buffer.
+   * @return BSN of this buffer shifted left by offsetBits
+   * combined with <i> offset </i>.
+   */
+  final long logKey(int offset)
+  {
+    return (bsn << offsetBits) | offset;
+  }
+
+  /**
+   * combines the CRC32C contribution of <i> length </i> bytes
+   * at <i> offset </i> with the contributions of other records
+   * in the buffer.
+   * <p>Called after the bytes have been copied into the buffer.
+   * 
+   * @param offset offset of the first byte within the buffer.
+   * @param length number of bytes.
+   */
+  final void updateChecksum(int offset, int length)
+  {
+    int crc = Crc32c.contribution(buffer, offset, length, buffer.capacity());
+    int current;
+    do {
+      current = crcContributions.get();
+    } while (!crcContributions.compareAndSet(current, current ^ crc));
+  }
+
   /**
    * decrements count of waiting threads and returns updated value.
    *
@@ -262,6 +437,211 @@ abstract class LogBuffer extends LogObject
     }
   }
 
+  /**
+   * register a LogKeyFuture to be completed when
+   * the ByteBuffer is forced to disk.
+   * <p>The caller must hold one of the <i> waitingThreads </i>
+   * counts so the buffer cannot be reused before the future
+   * is registered.  If the future is registered, the count
+   * is transferred to the future and is released by the
+   * LogBufferManager after completeFutures().
+   * <p>If the buffer has already been forced, the future is
+   * completed immediately.
+   * @param future LogKeyFuture to be completed.
+   * @return true if the future was registered, false if
+   * the future was completed and the caller must release
+   * its count of <i> waitingThreads </i>.
+   */
+  final boolean addFuture(LogKeyFuture future)
+  {
+    synchronized(this)
+    {
+      if (iostatus != LogBufferStatus.COMPLETE && iostatus != LogBufferStatus.ERROR)
+      {
+        futures.add(future);
+        return true;
+      }
+    }
+
+    // complete the future without holding the monitor
+    completeFuture(future);
+    return false;
+  }
+
+  /**
+   * complete all LogKeyFuture objects registered with this buffer.
+   * <p>Called by LogBufferManager after <i> iostatus </i> has been
+   * set to COMPLETE or ERROR.
+   * <p>The futures are completed without holding any locks because
+   * dependent actions may run on the calling thread.
+   * @return number of futures completed.  The caller must
+   * release one count of <i> waitingThreads </i> for each.
+   */
+  final int completeFutures()
+  {
+    Object[] list = null;
+    synchronized(this)
+    {
+      if (futures.isEmpty()) return 0;
+      list = futures.toArray();
+      futures.clear();
+    }
+
+    for (int i = 0; i < list.length; ++i)
+      completeFuture((LogKeyFuture)list[i]);
+
+    return list.length;
+  }
+
+  /**
+   * completes <i> future </i> according to the current <i> iostatus </i>.
+   * @param future LogKeyFuture to be completed.
+   */
+  private void completeFuture(LogKeyFuture future)
+  {
+    if (iostatus == LogBufferStatus.COMPLETE)
+      future.complete(Long.valueOf(future.getKey()));
+    else
+      future.completeExceptionally(ioexception != null ? ioexception :
+        new IOException("LogBuffer.sync(): LogBufferStatus.ERROR"));
+  }
+
+  /**
+   * claims <i> size </i> bytes of the buffer for a new record.
+   * 
+   * <p>The caller must have incremented <i> activePuts </i>
+   * prior to calling reserve() so that write() will wait
+   * for the record to be copied into the buffer.
+   * 
+   * @param size number of bytes to reserve.
+   * @return offset of the reserved space, or -1 if the
+   * buffer is sealed or there is not enough room for the record.
+   */
+  final int reserve(int size)
+  {
+    return reserve(size, size);
+  }
+  
+  /**
+   * claims up to <i> size </i> bytes of the buffer for a new record.
+   * 
+   * <p>If there are fewer than <i> size </i> bytes remaining,
+   * the rest of the buffer is claimed provided at least
+   * <i> minimum </i> bytes remain.  The number of bytes claimed is
+   * the lesser of <i> size </i> and fillLimit - offset.
+   * 
+   * @param size number of bytes wanted.
+   * @param minimum smallest number of bytes that may be claimed.
+   * @return offset of the reserved space, or -1 if the
+   * buffer is sealed or fewer than <i> minimum </i> bytes remain.
+   * @see #reserve(int)
+   */
+  final int reserve(int size, int minimum)
+  {
+    if (initThread == Thread.currentThread())
+    {
+      // LogFileManager is putting a control record during init()
+      int offset = fillPosition.get() & ~SEALED;
+      if (offset + minimum > fillLimit) return -1;
+      fillPosition.set(Math.min(offset + size, fillLimit) | SEALED);
+      return offset;
+    }
+
+    while (true)
+    {
+      int offset = fillPosition.get();
+      if ((offset & SEALED) != 0 || offset + minimum > fillLimit)
+        return -1;
+      if (fillPosition.compareAndSet(offset, Math.min(offset + size, fillLimit)))
+        return offset;
+    }
+  }
+  
+  /**
+   * prevents further records from being reserved in this buffer.
+   * 
+   * <p>Called by LogBufferManager when the buffer is moved
+   * to the forceQueue.
+   */
+  final void seal()
+  {
+    int offset;
+    do {
+      offset = fillPosition.get();
+    } while ((offset & SEALED) == 0 && !fillPosition.compareAndSet(offset, offset | SEALED));
+  }
+  
+  /**
+   * allows other threads to reserve records in the buffer.
+   * <p>Called by LogBufferManager when a buffer returned
+   * by init() is made available for filling.
+   */
+  final void unseal()
+  {
+    fillPosition.set(fillPosition.get() & ~SEALED);
+  }
+  
+  /**
+   * decrements <i> activePuts </i> when a thread has finished
+   * copying a record into the buffer.
+   * 
+   * <p>The thread waiting in awaitPuts(), if any, is unparked
+   * when the count goes to zero.
+   */
+  final void releasePut()
+  {
+    if (activePuts.decrementAndGet() == 0)
+    {
+      Thread waiter = putWaiter;
+      if (waiter != null) LockSupport.unpark(waiter);
+    }
+  }
+
+  /**
+   * waits for threads that are copying records into the
+   * buffer to finish.
+   * 
+   * <p>Records are copied in a few micro seconds, so
+   * the thread checks the count a few times before
+   * it parks.  releasePut() unparks the thread when the
+   * count goes to zero.  Each park is limited to
+   * PUT_PARK_NANOS so a missed unpark only delays the write.
+   * 
+   * @return offset of the end of the last record in the buffer.
+   * @throws IOException
+   * if the count does not reach zero within PUT_TIMEOUT_NANOS,
+   * typically because a LogReservation was neither committed
+   * nor aborted.
+   */
+  final int awaitPuts() throws IOException
+  {
+    for (int spin = 0; spin < PUT_SPINS; ++spin)
+      if (activePuts.get() == 0)
+        return fillPosition.get() & ~SEALED;
+
+    boolean interrupted = false;
+    long deadline = System.nanoTime() + PUT_TIMEOUT_NANOS;
+    putWaiter = Thread.currentThread();
+    try
+    {
+      while (activePuts.get() != 0)
+      {
+        if (System.nanoTime() - deadline > 0)
+          throw new IOException("LogBuffer.awaitPuts(): BSN " + bsn +
+              " has " + activePuts.get() + " uncommitted records");
+        LockSupport.parkNanos(this, PUT_PARK_NANOS);
+        // park returns immediately while the interrupt status is set
+        if (Thread.interrupted()) interrupted = true;
+      }
+    }
+    finally
+    {
+      putWaiter = null;
+      if (interrupted) Thread.currentThread().interrupt();
+    }
+    return fillPosition.get() & ~SEALED;
+  }
+
   /**
    * Computes a checksum over the the entire byte buffer
    * backing this LogBuffer object.
@@ -269,9 +649,21 @@ abstract class LogBuffer extends LogObject
    * @return the computed checksum.
    */
   int checksum()
+  {
+    return checksum(buffer.capacity());
+  }
+  
+  /**
+   * Computes a checksum over the first <i> length </i> bytes
+   * of the byte buffer backing this LogBuffer object.
+   * 
+   * @param length number of bytes to include in the checksum.
+   * @return the computed checksum.
+   */
+  int checksum(int length)
   {
     int result = 0;
-    buffer.clear();
+    buffer.clear().limit(length);
     
     if (checksum == null)
     {
@@ -287,11 +679,11 @@ abstract class LogBuffer extends LogObject
         if (this.checksumBuffer == null)
           this.checksumBuffer = new byte[buffer.capacity()];
         checksumBuffer = this.checksumBuffer;
-        buffer.get(checksumBuffer);
+        buffer.get(checksumBuffer, 0, length);
       }
       
       checksum.reset();
-      checksum.update(checksumBuffer, 0, checksumBuffer.length);
+      checksum.update(checksumBuffer, 0, length);
       result = (int) (checksum.getValue() & 0xFFFFFFFF);
     }
 
@@ -328,8 +720,10 @@ abstract class LogBuffer extends LogObject
    * 
    * @return this LogBuffer
    * 
+   * @throws IOException
+   * if the buffer cannot be associated with the LogFile.
    */ 
-  abstract LogBuffer init(int bsn, LogFileManager lfm) throws LogFileOverflowException;
+  abstract LogBuffer init(long bsn, LogFileManager lfm) throws LogFileOverflowException, IOException;
 
   /**
    * read a block of data from the LogFile object provided
@@ -361,14 +755,19 @@ abstract class LogBuffer extends LogObject
    * of time the threads has been waiting has been longer
    * than some implementation defined value.
    *
+   * @param forcePolicy ForcePolicy used to determine how long
+   * the buffer may wait before it is forced.
    * @return true if buffer should be forced immediately.
    */ 
-  abstract boolean shouldForce();
+  abstract boolean shouldForce(ForcePolicy forcePolicy);
   
   /**
    * puts a data record into the buffer and returns a token for record.
    * 
-   * <p>PRECONDITION: caller holds a bufferManager monitor.
+   * <p>Implementations must allow multiple threads to put records
+   * concurrently.  Space for the record is claimed
+   * using reserve() and the data is copied into the
+   * claimed space without holding any lock.
    * 
    * <p>The caller must set the sync parameter true if the thread
    * will ultimately call sync() after a successful put().
@@ -415,6 +814,103 @@ abstract class LogBuffer extends LogObject
    * Returns 0 if there is no room for the record in the current buffer.
    */
   abstract long put(short type, byte[][] data, boolean sync) throws LogRecordSizeException;
+
+  /**
+   * puts a data record consisting of ByteBuffer fields into the buffer.
+   * 
+   * <p>The record format is the same as for put(short, byte[][], boolean).
+   * The remaining bytes of each <i> data </i> ByteBuffer are
+   * copied directly into the LogBuffer without an intermediate byte[].
+   * The position of each <i> data </i> ByteBuffer is unchanged
+   * on return.
+   * 
+   * @param type short containing implementation defined record
+   * type information.
+   * @param data heap or direct ByteBuffers to be written to log.
+   * @param sync true if thread will call sync following the put.
+   * Causes count of waitingThreads to be incremented.
+   * 
+   * @throws LogRecordSizeException
+   * if the sum of all <i> data </i> remaining sizes is larger than
+   * the maximum allowed record size for the configured buffer size.
+   * 
+   * @return log key for the record, or 0 if there is no room
+   * for the record in the current buffer.
+   * @see #put(short, byte[][], boolean)
+   */
+  abstract long put(short type, ByteBuffer[] data, boolean sync) throws LogRecordSizeException;
+
+  /**
+   * claims space in the buffer for a single field record
+   * of <i> size </i> bytes that the caller will encode in place.
+   * 
+   * <p>If space is available, the record header is stored,
+   * and <i> reservation </i> is updated with this LogBuffer,
+   * the log key, and a ByteBuffer for the record data.
+   * The buffer cannot be written until commit() is called
+   * for the reservation.
+   * 
+   * @param type short containing implementation defined record
+   * type information.
+   * @param reservation LogReservation to be updated.
+   * @throws LogRecordSizeException
+   * if <i> size </i> is larger than the maximum allowed record
+   * size for the configured buffer size.
+   * @return log key for the record, or 0 if there is no room
+   * for the record in the current buffer.
+   * @see #put(short, byte[][], boolean)
+   */
+  abstract long claim(short type, LogReservation reservation) throws LogRecordSizeException;
+
+  /**
+   * releases a record claimed by claim() so the buffer can be written.
+   * 
+   * @param reservation LogReservation returned by claim().
+   * @param sync true if thread will call sync following the commit.
+   * Causes count of waitingThreads to be incremented.
+   * @throws IOException
+   * if the buffer was written without the record because
+   * the reservation was held too long.
+   */
+  abstract void commit(LogReservation reservation, boolean sync) throws IOException;
+
+  /**
+   * releases a record claimed by claim() without committing it.
+   * 
+   * <p>The claimed space is changed to a FILLER record
+   * so the data that was encoded before the failure
+   * is never returned by replay.
+   * 
+   * @param reservation LogReservation returned by claim().
+   * @throws IOException
+   * if the buffer was written without the record because
+   * the reservation was held too long.
+   * @see LogRecordType#FILLER
+   */
+  abstract void abort(LogReservation reservation) throws IOException;
+
+  /**
+   * puts the next fragment of a record that is too large
+   * for a single block.
+   * 
+   * <p>As many of the remaining bytes of <i> data </i> as will
+   * fit in the buffer are stored in a single FRAGMENT_FIRST,
+   * FRAGMENT_MIDDLE or FRAGMENT_LAST record, and the position
+   * of <i> data </i> is advanced past the bytes that were stored.
+   * A first fragment never contains all of the remaining bytes,
+   * so every record ends with a FRAGMENT_LAST.
+   * 
+   * @param first true if <i> data </i> is positioned at the
+   * start of the record.
+   * @param data remaining bytes of the record.
+   * @param sync true if thread will call sync following the put
+   * of the last fragment.
+   * Causes count of waitingThreads to be incremented.
+   * @return log key for the fragment, or 0 if there is no room
+   * for a fragment in the current buffer.
+   * @see LogRecordType#FRAGMENT_FIRST
+   */
+  abstract long putFragment(boolean first, ByteBuffer data, boolean sync);
   
   /**
    * write ByteBuffer to the LogFile.
@@ -438,6 +934,21 @@ abstract class LogBuffer extends LogObject
    * @see org.objectweb.howl.log.LogFile#write(LogBuffer)
    */
   abstract void write() throws IOException;
+
+  /**
+   * prepares the ByteBuffer to be written without
+   * writing it to the LogFile.
+   * 
+   * <p>Performs all of the processing of write() other
+   * than the IO, so the LogBufferManager can write several
+   * buffers with a single gathering write.
+   * 
+   * @return true if the buffer should be written to
+   * the LogFile, false if physical writes are disabled.
+   * @throws IOException
+   * @see LogFile#write(LogBuffer[], int, int)
+   */
+  abstract boolean prepareWrite() throws IOException;
   
   /**
    * returns statistics for this LogBuffer object.
@@ -36,11 +36,19 @@
  */
 package org.objectweb.howl.log;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 
 import java.io.IOException;
 
+import java.nio.ByteBuffer;
+
 import java.lang.InterruptedException;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
@@ -61,11 +69,15 @@ class LogBufferManager extends LogObject
   {
     super(config);
     threadsWaitingForceThreshold = config.getThreadsWaitingForceThreshold();
-    forceRequired = config.getLogFileMode().equals("rw");
+    forceRequired = !config.getLogFileMode().equals(LogFile.DSYNC_MODE);
 
     flushPartialBuffers = config.isFlushPartialBuffers();
 
+    offsetBits = config.getLogKeyOffsetBits();
+
     flushManager = new FlushManager(flushManagerName);
+
+    forceManager = config.isDedicatedForceThread() ? new ForceManager() : null;
   }
 
   /**
@@ -98,7 +110,7 @@ class LogBufferManager extends LogObject
    * mutex for synchronizing threads through the
    * portion of force() that forces the channel.
    */
-  private final Object forceManagerLock = new Object();
+  final Object forceManagerLock = new Object();
 
   /**
    * reference to LogFileManager that owns this Buffer Manager instance.
@@ -108,15 +120,24 @@ class LogBufferManager extends LogObject
   private LogFileManager lfm = null;
 
   /**
-   * indicates if a force() must be called in the flush() method.
-   * <p>Set false in constructor if config.getLogFileMode() is "rwd".
+   * indicates if LogFile.force() must be called after buffers are written.
+   * <p>Set false in constructor if config.getLogFileMode() is "dsync"
+   * because each write is durable when it returns.  Files opened
+   * with "rwd" are still forced.
+   * @see LogFile#force(boolean)
    */
   final boolean forceRequired;
 
   /**
-   * The LogBuffer that is currently being filled.
+   * The LogBuffers that are currently being filled, one for each lane.
+   * <p>Threads calling put() read the lanes without holding
+   * bufferManagerLock.  A lane is only updated while
+   * bufferManagerLock is held.
+   * <p>open() creates one lane for each Configuration.getAppendLanes(),
+   * limited to one half of the initial buffer pool.
+   * Each thread uses the lane selected by lane().
    */
-  private LogBuffer fillBuffer = null;
+  private AtomicReferenceArray fillBuffers = new AtomicReferenceArray(1);
 
   /**
    * array of LogBuffer objects available for filling
@@ -129,7 +150,7 @@ class LogBufferManager extends LogObject
    * freeBuffer list if logger hangs waiting
    * for buffers to be returned to the freeBuffer pool.
    */
-  private LogBuffer[] bufferList = null;
+  LogBuffer[] bufferList = null;
 
   /**
    * workerID into freeBuffer list maintained in getBuffer.
@@ -150,6 +171,24 @@ class LogBufferManager extends LogObject
    */
   private long noRoomInBuffer = 0;
 
+  /**
+   * number of records that were too large for a single
+   * block and were put as fragments.
+   */
+  private long continuedRecords = 0;
+
+  /**
+   * Thread that is putting the fragments of a record
+   * that spans blocks, or null.
+   *
+   * <p>While a record is being continued, no other thread
+   * may obtain a new fillBuffer, so the fragments are stored
+   * in consecutive blocks.
+   * <p>synchronized by bufferManagerLock
+   * @see #putFragments(short, byte[][], ByteBuffer[], boolean, boolean, LogKeyFuture, long)
+   */
+  private Thread continuationThread = null;
+
   /**
    * number of times buffer size was increased because
    * of threads waiting for buffers.
@@ -159,13 +198,29 @@ class LogBufferManager extends LogObject
   /**
    * next block sequence number for fillBuffer.
    */
-  int nextFillBSN = 1;
+  long nextFillBSN = 1;
+
+  /**
+   * number of low order bits of a log key that contain
+   * the offset of a record within its block.
+   * <p>Initialized from the configuration and replaced by the
+   * value stored in existing log files.
+   * @see #setOffsetBits(int)
+   */
+  int offsetBits;
 
   /**
    * next BSN to be written to log.
    * <p>synchronized by forceManagerLock
    */
-  int nextWriteBSN = 1;
+  long nextWriteBSN = 1;
+
+  /**
+   * LogFile of the last buffer written.
+   * <p>Used to force buffers written by other threads.
+   * <p>Always synchronized on (forceManagerLock).
+   */
+  private LogFile lastWriteFile = null;
 
   /**
    * LogBuffer.tod from previous buffer written.
@@ -180,18 +235,20 @@ class LogBufferManager extends LogObject
    * <p>synchronized by bufferManagerLock.
    * <p>incremented in put() and decremented in releaseBuffer().
    * When a thread calls put() with sync parameter set true,
-   * and buffersWaitingForce is also zero, then put() causes
+   * and buffersWaitingForce is also zero (not counting
+   * pendingBuffers), then put() causes
    * the buffer to be forced immediately.  This strategy
    * minimizes latency in situations of low load, such as
    * a single thread running.
    */
-  int buffersWaitingForce = 0;
+  volatile int buffersWaitingForce = 0;
 
   /**
    * last BSN forced to log.
-   * <p>synchronized by forceManagerLock
+   * <p>synchronized by forceManagerLock.  Volatile so
+   * getDurableMark() can read it without the lock.
    */
-  int lastForceBSN = 0;
+  volatile long lastForceBSN = 0;
 
   /**
    * number of times channel.force() called.
@@ -203,6 +260,32 @@ class LogBufferManager extends LogObject
    */
   private long writeCount = 0;
 
+  /**
+   * number of gathering writes of more than one buffer.
+   */
+  long gatheringWriteCount = 0;
+
+  /**
+   * number of buffers that were moved to the forceQueue
+   * before they were full because a buffer with a higher BSN
+   * in another lane had to be forced.
+   * <p>Each of these buffers is written as a partial block.
+   * @see #fqFlush(long, boolean)
+   */
+  long partialLaneBlocks = 0;
+
+  /**
+   * full LogBuffers that cannot be added to the forceQueue yet
+   * because another lane is still filling a buffer with a lower BSN,
+   * in ascending BSN order.
+   * <p>The buffers are sealed and counted in buffersWaitingForce.
+   * They are moved to the forceQueue when the older lanes have
+   * been queued, or when the buffers have to be forced.
+   * <p>Always synchronized on (bufferManagerLock).
+   * @see #fqFull(LogBuffer)
+   */
+  private final List pendingBuffers = new ArrayList();
+
   /**
    * minimum number of buffers forced by channel.force().
    */
@@ -233,6 +316,17 @@ class LogBufferManager extends LogObject
    */
   private long totalWaitForWriteLockTime = 0;
 
+  /**
+   * latency histograms measured with System.nanoTime().
+   * <p>The histograms are updated without locks and
+   * report percentiles through ForceStats and WriteStats.
+   */
+  final LatencyHistogram putLatency = new LatencyHistogram();
+  final LatencyHistogram writeLatency = new LatencyHistogram();
+  final LatencyHistogram forceLatency = new LatencyHistogram();
+  final LatencyHistogram waitForBufferLatency = new LatencyHistogram();
+  final LatencyHistogram waitForWriteLockLatency = new LatencyHistogram();
+
   /**
    * total time between channel.force() calls
    */
@@ -262,6 +356,89 @@ class LogBufferManager extends LogObject
   long forceMaxWaitingThreads = 0;
   long forceOnFileSwitch = 0;
 
+  /**
+   * number of times a force was held by the ForcePolicy.
+   */
+  long forceHeld = 0;
+
+  /**
+   * total time (ms) that forces were held by the ForcePolicy.
+   */
+  private long totalHoldTime = 0;
+
+  /**
+   * ForcePolicy used to decide how long a force may be held.
+   * <p>Created by open() using Configuration#getForcePolicyClassName().
+   */
+  private ForcePolicy forcePolicy = new DefaultForcePolicy(config);
+
+  /**
+   * number of threads holding a force in holdForce().
+   * <p>Always synchronized on (forceManagerLock).
+   */
+  private int threadsHoldingForce = 0;
+
+  /**
+   * ForceWaiter objects for threads waiting for a force,
+   * ordered by ascending BSN.
+   * <p>A completed force unparks only the threads whose
+   * BSN is now durable.
+   * <p>Always synchronized on (forceManagerLock).
+   */
+  final PriorityQueue forceWaiters = new PriorityQueue();
+
+  /**
+   * number of times a thread waiting for a force was unparked.
+   */
+  long forceWaiterWakeups = 0;
+
+  /**
+   * LogBuffers written by write() that have not been forced,
+   * in ascending BSN order.
+   * <p>The buffers are completed by the next thread that forces
+   * the log.
+   * <p>Always synchronized on (forceManagerLock).
+   * @see #write(int)
+   */
+  private final List unforcedBuffers = new ArrayList();
+
+  /**
+   * number of times write() wrote buffers without forcing them.
+   */
+  long writeWithoutForce = 0;
+
+  /**
+   * DurableMarkListener to be notified when lastForceBSN advances.
+   * <p>null if the application has not registered a listener.
+   */
+  private volatile DurableMarkListener durableMarkListener = null;
+
+  /**
+   * true while a durable mark notification is scheduled
+   * but has not started.
+   */
+  private final AtomicBoolean durableMarkPending = new AtomicBoolean();
+
+  /**
+   * last durable mark reported to the durableMarkListener.
+   * <p>Always synchronized on (durableMarkPending).
+   */
+  private long durableMarkNotified = 0;
+
+  /**
+   * number of exceptions thrown by the durableMarkListener.
+   * <p>Each exception is reported to the LogEventListener
+   * at level ERROR.
+   */
+  long durableMarkListenerErrors = 0;
+
+  /**
+   * LogBuffer.todNanos of the oldest buffer written since the last force.
+   * <p>zero if all buffers written have been forced.
+   * <p>Always synchronized on (forceManagerLock).
+   */
+  private long oldestUnforcedNanos = 0;
+
   /**
    * thread used to flush long waiting buffers
    */
@@ -273,6 +450,23 @@ class LogBufferManager extends LogObject
    */
   private static final String flushManagerName = "FlushManager";
 
+  /**
+   * thread used to write and force buffers from the forceQueue.
+   * <p>null unless Configuration#isDedicatedForceThread() is true.
+   * @see Configuration#setDedicatedForceThread(boolean)
+   */
+  private final ForceManager forceManager;
+
+  /**
+   * name of force manager thread
+   */
+  private static final String forceManagerName = "HOWL-ForceManager";
+
+  /**
+   * name of the thread that reads blocks ahead of replay()
+   */
+  private static final String replayReaderName = "HOWL-ReplayReader";
+
   /**
    * queue of buffers waiting to be written.  The queue guarantees that
    * buffers are written to disk in BSN order.  Buffers are placed into
@@ -298,17 +492,28 @@ class LogBufferManager extends LogObject
    */
   private LogBuffer[] forceQueue = null;
 
+  /**
+   * receives the buffers removed from the forceQueue
+   * by writeQueuedBuffers().
+   *
+   * <p>Reused by every write so the force path does not
+   * allocate an array the size of the forceQueue.
+   * <p>Always synchronized on (forceManagerLock).
+   * @see #writeScratch()
+   */
+  private LogBuffer[] writeScratch = new LogBuffer[0];
+
   /**
    * next put workerID into <i> forceQueue </i>.
    * <p>synchronized by bufferManagerLock.
    */
-  private int fqPut = 0;
+  private volatile int fqPut = 0;
 
   /**
    * next get workerID from <i> forceQueue </i>.
    * <p>synchronized by forceManagerLock.
    */
-  private int fqGet = 0;
+  private volatile int fqGet = 0;
 
   /**
    * compute elapsed time for an event
@@ -326,6 +531,17 @@ class LogBufferManager extends LogObject
    * <p>batches multiple buffers into a single force
    * when possible.
    *
+   * <p>If the buffer identified by <i> bsn </i> is still in
+   * the forceQueue, the calling thread removes every buffer
+   * in the forceQueue and writes them using gathering writes.
+   * Threads whose buffers were written by some other thread
+   * only wait for the force.
+   *
+   * <p>When a ForceManager thread is configured, the
+   * ForceManager is notified that the forceQueue has
+   * a buffer to be written, and the method returns
+   * without waiting for the buffer to be forced.
+   *
    * <p>Design Note:<br/>
    * It was suggested that using forceManagerLock to
    * control writes from the forceQueue[] and forces
@@ -341,306 +557,1189 @@ class LogBufferManager extends LogObject
    * it seems best to use a single forceManagerLock
    * to keep the code simple.
    */
-  private void force(boolean timeout)
+  private void force(boolean timeout, long bsn)
     throws IOException, InterruptedException
   {
-    LogBuffer logBuffer = null;
+    if (forceManager != null)
+    {
+      forceManager.signal();
+      return;
+    }
+
+    LogBuffer[] written = null;
+    LogBuffer[] forced = null;
+    int count = 0;
+    ForceWaiter waiter = null;
 
     long startWait = System.currentTimeMillis();
+    long startWaitNanos = System.nanoTime();
     synchronized(forceManagerLock)  // write buffers in ascending BSN sequence
     {
       totalWaitForWriteLockTime += elapsedTime(startWait);
+      waitForWriteLockLatency.recordSince(startWaitNanos);
 
-      logBuffer = forceQueue[fqGet]; // logBuffer stuffed into forceQ
-      forceQueue[fqGet] = null;      // so someone using debug doesn't think it is in the queue
-      fqGet = (fqGet + 1) % forceQueue.length;
-
-      if (haveIOException)
-      {
-        // BUG 300803 - do not try the write if we already have an error
-        // but we have to increment count of waitingThreads so count
-        // does not go negative
-        synchronized(logBuffer.waitingThreadsLock)
-        {
-          logBuffer.waitingThreads += 1;
-        }
-      }
-      else
+      // buffers are removed in BSN sequence, so our buffer is
+      // still queued if the first buffer in the queue is not newer
+      if (fqGet != fqPut && forceQueue[fqGet].bsn <= bsn)
       {
-        // write the logBuffer to disk (hopefully non-blocking)
-        try {
-          assert logBuffer.bsn == nextWriteBSN : "BSN error expecting " + nextWriteBSN + " found " + logBuffer.bsn;
-          assert logBuffer.tod > prevWriteTOD : "TOD error at BSN: " + logBuffer.bsn;
-          long startWrite = System.currentTimeMillis();
-          logBuffer.write();
-          long writeTime = elapsedTime(startWrite);
-          totalWriteTime += writeTime;
-          if (writeTime > maxWriteTime) maxWriteTime = writeTime;
-          ++writeCount;
-          nextWriteBSN = logBuffer.bsn + 1;
-        }
-        catch (IOException ioe) {
-          // BUG 300803 - remember that we had an error
-          // BUG 303907 add a message to the IOException
-          ioexception = new IOException("LogBufferManager.force(): writing " +
-              logBuffer.lf.file.getName() + "[" + ioe.getMessage() + "]");
-          ioexception.setStackTrace(ioe.getStackTrace());
-          haveIOException = true;
-        }
-      }
-
-      threadsWaitingForce += logBuffer.getWaitingThreads();
-      // NOTE: following is not synchronized so the stats may be inaccurate.
-      if (threadsWaitingForce > maxThreadsWaitingForce)
-        maxThreadsWaitingForce = threadsWaitingForce;
-
-      /*
-       * The lastForceBSN member is updated by the thread
-       * that actually does a force().  All threads
-       * waiting for the force will detect the change
-       * in lastForceBSN and notify any waiting threads.
-       */
-
-      // force() is guaranteed to have forced everything that
-      // has been written prior to the force, so get the
-      // bsn for the last known write prior to the force.
-      int forcebsn = nextWriteBSN - 1;
+        count = writeQueuedBuffers(writeScratch());
+        written = takeWritten(count);
+        LogBuffer logBuffer = written[count - 1];
+        bsn = Math.max(bsn, logBuffer.bsn);
 
-      boolean doforce = true;
+        /*
+         * The lastForceBSN member is updated by the thread
+         * that actually does a force().  The thread then
+         * unparks the threads in forceWaiters whose
+         * BSN is not greater than lastForceBSN.
+         */
 
-      /*
-       * 2004-06-25 Michael Giroux
-       *   Remove test for logBuffer.bsn < forcebsn.  This cannot
-       *   happen now that we stay in the forceManagerLock.
-       *
-       *   Rearranged tests to improve the accuracy of the counters.
-       *
-       * 2004-09-09 Michael Giroux
-       *   BUG 300803 - Add test for IOException
-       */
-      if (haveIOException)
-      {
-        doforce = false;
-      }
-      else if (timeout)
-      {
-        ++forceOnTimeout;
-      }
-      else if ((forcebsn - lastForceBSN) > (freeBuffer.length/2))
-      {
-        // one half of the buffers are waiting on the force
-        ++forceHalfOfBuffers;
-      }
-      else if (threadsWaitingForce > threadsWaitingForceThreshold)
-      {
-        // number of waiting threads exceeds configured limit
-        ++forceMaxWaitingThreads;
-      }
-      else if (logBuffer.forceNow)
-      {
-        // number of times we forced due to switch to next log file
-        ++forceOnFileSwitch;
-      }
-      else if (fqGet == fqPut)
-      {
-        // no other logBuffers waiting in forceQueue
-        ++forceNoWaitingThreads;
-      }
-      else
-      {
-        doforce = false;
-      }
+        // force() is guaranteed to have forced everything that
+        // has been written prior to the force, so get the
+        // bsn for the last known write prior to the force.
+        long forcebsn = nextWriteBSN - 1;
 
-      if (doforce)
-      {
-        ++forceCount;
+        boolean doforce = true;
 
-        long startForce = System.currentTimeMillis();
-        try {
-          logBuffer.lf.force(false);
-        } catch (IOException ioe) {
-          // BUG 303907 add a message to the IOException
-          ioexception = new IOException("LogBufferManager.force(): error attempting to force " +
-              logBuffer.lf.file.getName() + "[" + ioe.getMessage() + "]");
-          ioexception.setStackTrace(ioe.getStackTrace());
-          haveIOException = true;
-          logBuffer.ioexception = ioe;
+        /*
+         * 2004-06-25 Michael Giroux
+         *   Remove test for logBuffer.bsn < forcebsn.  This cannot
+         *   happen now that we stay in the forceManagerLock.
+         *
+         *   Rearranged tests to improve the accuracy of the counters.
+         *
+         * 2004-09-09 Michael Giroux
+         *   BUG 300803 - Add test for IOException
+         */
+        if (haveIOException)
+        {
+          doforce = false;
         }
-        totalForceTime += elapsedTime(startForce);
-
-        if (lastForceTOD > 0)
+        else if (timeout)
         {
-          long timeBetweenForce = startForce - lastForceTOD;
-          totalTimeBetweenForce += timeBetweenForce;
-          minTimeBetweenForce = Math.min(minTimeBetweenForce, timeBetweenForce);
-          if (!timeout)
-          {
-            maxTimeBetweenForce = Math.max(maxTimeBetweenForce, timeBetweenForce);
-          }
+          ++forceOnTimeout;
+        }
+        else if ((forcebsn - lastForceBSN) > (freeBuffer.length/2))
+        {
+          // one half of the buffers are waiting on the force
+          ++forceHalfOfBuffers;
+        }
+        else if (threadsWaitingForce > threadsWaitingForceThreshold)
+        {
+          // number of waiting threads exceeds configured limit
+          ++forceMaxWaitingThreads;
+        }
+        else if (logBuffer.forceNow)
+        {
+          // number of times we forced due to switch to next log file
+          ++forceOnFileSwitch;
+        }
+        else if (fqGet == fqPut)
+        {
+          // no other logBuffers waiting in forceQueue
+          ++forceNoWaitingThreads;
+          doforce = !holdForce(bsn);
+        }
+        else
+        {
+          doforce = false;
         }
-        lastForceTOD = System.currentTimeMillis();
 
-        if (lastForceBSN > 0)
+        if (doforce)
         {
-          int buffersForced = forcebsn - lastForceBSN;
-          maxBuffersForced = Math.max(maxBuffersForced, buffersForced);
-          minBuffersForced = Math.min(minBuffersForced, buffersForced);
+          forceLogFile(logBuffer.lf, timeout);
         }
-        totalThreadsWaitingForce += threadsWaitingForce;
-        threadsWaitingForce = 0;
 
-        lastForceBSN = forcebsn;
+        // wake the threads whose buffers have been forced
+        if (doforce || haveIOException)
+          wakeForceWaiters();
       }
-
-      // notify everyone who is waiting for the force
-      if (doforce || haveIOException)
-        forceManagerLock.notifyAll();
-
-      // wait for thisLogBuffer's write to be forced
-      while (!haveIOException && lastForceBSN < logBuffer.bsn)
+      else if (!haveIOException && lastForceBSN < bsn && bsn < nextWriteBSN &&
+          !unforcedBuffers.isEmpty())
       {
-        forceManagerLock.wait();
+        // our buffer was written by write(), which does not force the log
+        ++forceNoWaitingThreads;
+        forceLogFile(lastWriteFile, timeout);
+        wakeForceWaiters();
       }
+      forced = takeForcedBuffers();
+
+      // wait for the buffers we wrote, or our own buffer, to be forced
+      if (!haveIOException && lastForceBSN < bsn)
+        waiter = addForceWaiter(bsn);
     } // synchronized(forceManagerLock)
 
-    // notify threads waiting for this buffer to force
-    synchronized(logBuffer)
-    {
-      // BUG: 300613 must synchronize the update of iostatus
-      if (logBuffer.iostatus == LogBufferStatus.WRITING)
-        logBuffer.iostatus = LogBufferStatus.COMPLETE;
+    // complete the buffers written by write() that are now forced
+    completeBuffers(forced);
 
-      // BUG: 300803 report error to threads that are waiting
-      if (haveIOException)
-      {
-        logBuffer.iostatus = LogBufferStatus.ERROR;
-        logBuffer.ioexception = ioexception;
-      }
+    // a thread that wrote buffers must not leave them uncompleted
+    if (waiter != null)
+      awaitForce(waiter, count == 0);
 
-      logBuffer.notifyAll();
+    // notify threads waiting for the buffers to force
+    for (int i = 0; i < count; ++i)
+    {
+      completeBuffer(written[i]);
+      releaseBuffer(written[i]);
     }
 
-    releaseBuffer(logBuffer);
-
     // BUG 300803 report error to our caller
     if (haveIOException) throw ioexception;
   }
 
   /**
-   * Waits for logBuffer to be forced to disk.
+   * holds a force for the time allowed by the ForcePolicy
+   * so that other threads can add their buffers to the force.
    *
-   * <p>No monitors are owned when routine is entered.
-   * <p>Prior to calling sync(), the thread called put()
-   * with <i> sync </i> param set true to register
-   * the fact that the thread would wait for the force.
+   * <p>The hold ends early if some other thread forces the log,
+   * or if another buffer is added to the forceQueue.  In the
+   * latter case, the thread that added the buffer is
+   * responsible for the force.
+   *
+   * <p>The caller has written buffers that it must complete,
+   * so an interrupt ends the hold rather than the force.  The
+   * interrupt is reasserted when the hold ends.
+   *
+   * <p>PRECONDITION: forceManagerLock owned by caller
+   * @param bsn BSN of the last buffer written by the caller.
+   * @return true if the caller must not force the log.
    */
-  private void sync(LogBuffer logBuffer)
-    throws IOException, InterruptedException
+  private boolean holdForce(long bsn)
   {
-    try
-    {
-      logBuffer.sync();
-    }
-    finally
-    {
-      releaseBuffer(logBuffer);
+    long startHold = System.currentTimeMillis();
+    long startHoldNanos = System.nanoTime();
+    long hold = forcePolicy.getHoldTime(oldestUnforcedNanos != 0 ? startHoldNanos - oldestUnforcedNanos : 0);
+    if (hold <= 0) return false;
+
+    ++forceHeld;
+    ++threadsHoldingForce;
+    try {
+      long holdUntil = startHoldNanos + hold;
+      for (long remaining = hold; remaining > 0; remaining = holdUntil - System.nanoTime())
+      {
+        if (haveIOException || lastForceBSN >= bsn || fqGet != fqPut) break;
+        forceManagerLock.wait(remaining / 1000000L, (int)(remaining % 1000000L));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      --threadsHoldingForce;
     }
+    totalHoldTime += elapsedTime(startHold);
+
+    return haveIOException || lastForceBSN >= bsn || fqGet != fqPut;
   }
 
   /**
-   * decrements count of threads waiting on this buffer.
-   * <p>If count goes to zero, buffer is returned to
-   * the freeBuffer list, and any threads waiting for
-   * a free buffer are notified.
-   * @param buffer LogBuffer to be released
-   * @see #buffersWaitingForce
+   * removes every buffer from the forceQueue,
+   * writes them, and forces them with a single force.
+   *
+   * <p>Used by the ForceManager, and by putBatch() to force
+   * the buffers of a batch together.  Unlike force(), the
+   * caller does not wait for other threads to force the buffers.
+   *
+   * @return number of buffers written.
    */
-  private void releaseBuffer(LogBuffer buffer)
+  private int forceBuffers()
   {
-    if (buffer.release() == 0)
+    LogBuffer[] written = null;
+    LogBuffer[] forced = null;
+    int count = 0;
+
+    long startWait = System.currentTimeMillis();
+    long startWaitNanos = System.nanoTime();
+    synchronized(forceManagerLock)
     {
-      synchronized(bufferManagerLock)
+      totalWaitForWriteLockTime += elapsedTime(startWait);
+      waitForWriteLockLatency.recordSince(startWaitNanos);
+
+      count = writeQueuedBuffers(writeScratch());
+      written = takeWritten(count);
+
+      // buffers written by other threads may also be waiting for a force
+      if (!haveIOException && lastForceBSN < nextWriteBSN - 1 && lastWriteFile != null)
       {
-        freeBuffer[buffer.index] = buffer;
-        bufferManagerLock.notifyAll();
-        --buffersWaitingForce;
-        assert buffersWaitingForce >= 0 : "buffersWaitingForce (" + buffersWaitingForce + ") < 0";
+        ++forceNoWaitingThreads;
+        forceLogFile(lastWriteFile, false);
       }
+
+      // wake threads waiting in force() or waitForForce()
+      wakeForceWaiters();
+      forced = takeForcedBuffers();
+    }
+
+    // notify threads waiting for the buffers to force
+    completeBuffers(forced);
+    for (int i = 0; i < count; ++i)
+    {
+      completeBuffer(written[i]);
+      releaseBuffer(written[i]);
     }
+
+    return count;
   }
 
   /**
-   * returns a LogBuffer to be filled.
+   * writes the LogBuffer with BSN <i> bsn </i>, and every
+   * buffer queued before it, without forcing the log.
    *
-   * <p>PRECONDITION: caller holds bufferManagerLock monitor.
+   * <p>The buffer is moved to the forceQueue if it is
+   * still being filled.  The buffers written are added to
+   * unforcedBuffers, and are completed by the next
+   * thread that forces the log.  The last block of a log
+   * file is always forced before the next file is written,
+   * so it is forced here.
    *
-   * @return a LogBuffer to be filled.
+   * @param bsn BSN of the buffer to be written.
+   * @throws IOException
+   * if an error occurred writing the log.
    */
-  private LogBuffer getFillBuffer() throws LogFileOverflowException
+  private void write(long bsn)
+    throws IOException
   {
-    if (fillBuffer == null) // slight optimization when fillBuffer != null
+    LogBuffer[] forced = null;
+
+    synchronized(bufferManagerLock)
+    {
+      // the buffer may still be filling, or be pending behind an older lane
+      fqFlush(bsn, true);
+    }
+
+    long startWait = System.currentTimeMillis();
+    long startWaitNanos = System.nanoTime();
+    synchronized(forceManagerLock)
     {
-      int fbl = freeBuffer.length;
-      for(int i=0; fillBuffer == null && i < fbl; ++i)
+      totalWaitForWriteLockTime += elapsedTime(startWait);
+      waitForWriteLockLatency.recordSince(startWaitNanos);
+
+      // some other thread may have written the buffer
+      if (!haveIOException && nextWriteBSN <= bsn)
       {
-        nextIndex %= fbl;
-        if (freeBuffer[nextIndex] != null)
+        LogBuffer[] written = writeScratch();
+        int count = writeQueuedBuffers(written);
+        LogBuffer last = count > 0 ? written[count - 1] : null;
+        for (int i = 0; i < count; ++i)
         {
-          LogBuffer b = freeBuffer[nextIndex];
-          freeBuffer[nextIndex] = null;
-          try {
-            fillBuffer = b.init(nextFillBSN, lfm);
-          } catch (LogFileOverflowException e) {
-            // BUG 300956 - return buffer to free list to prevent hang in close.
-            freeBuffer[nextIndex] = b;
-            throw e;
-          }
-          ++nextFillBSN;
+          unforcedBuffers.add(written[i]);
+          written[i] = null;
+        }
+        ++writeWithoutForce;
+
+        if (last != null && last.forceNow && !haveIOException)
+        {
+          ++forceOnFileSwitch;
+          forceLogFile(last.lf, false);
+          wakeForceWaiters();
         }
-        ++nextIndex;
       }
+      else if (haveIOException)
+        wakeForceWaiters();
+      forced = takeForcedBuffers();
     }
-    return fillBuffer;
+
+    completeBuffers(forced);
+
+    if (haveIOException) throw ioexception;
   }
 
   /**
-   * return a new instance of LogBuffer.
-   * <p>Actual LogBuffer implementation class is specified by
-   * configuration.
-   *
-   * @return a new instance of LogBuffer
+   * returns the writeScratch array, replacing it if the
+   * forceQueue has grown since it was allocated.
+   * <p>PRECONDITION: forceManagerLock owned by caller
+   * @return array at least as large as the forceQueue.
    */
-  LogBuffer getLogBuffer(int index) throws ClassNotFoundException
+  private LogBuffer[] writeScratch()
   {
-    LogBuffer lb = null;
-    Class lbcls = this.getClass().getClassLoader().loadClass(config.getBufferClassName());
-    try {
-      Constructor lbCtor = lbcls.getDeclaredConstructor(new Class[] { Configuration.class } );
-      lb = (LogBuffer)lbCtor.newInstance(new Object[] {config});
-      lb.index = index;
-    } catch (InstantiationException e) {
-      throw new ClassNotFoundException(e.toString());
-    } catch (IllegalAccessException e) {
-      throw new ClassNotFoundException(e.toString());
-    } catch (NoSuchMethodException e) {
-      throw new ClassNotFoundException(e.toString());
-    } catch (IllegalArgumentException e) {
-      throw new ClassNotFoundException(e.toString());
-    } catch (InvocationTargetException e) {
-      throw new ClassNotFoundException(e.toString());
-    }
+    if (writeScratch.length < forceQueue.length)
+      writeScratch = new LogBuffer[forceQueue.length];
+    return writeScratch;
+  }
+
+  /**
+   * removes the first <i> count </i> buffers from writeScratch.
+   * <p>The buffers are completed after forceManagerLock is
+   * released, so they are copied to an array of their own.
+   * <p>PRECONDITION: forceManagerLock owned by caller
+   * @param count number of buffers returned by writeQueuedBuffers().
+   * @return the buffers that were written.
+   */
+  private LogBuffer[] takeWritten(int count)
+  {
+    LogBuffer[] written = new LogBuffer[count];
+    System.arraycopy(writeScratch, 0, written, 0, count);
+    for (int i = 0; i < count; ++i)
+      writeScratch[i] = null;
+    return written;
+  }
+
+  /**
+   * removes the buffers that have been forced from unforcedBuffers.
+   * <p>Every buffer is removed if an IOException has occurred.
+   * <p>PRECONDITION: forceManagerLock owned by caller
+   * @return the buffers that have been forced, or null if none.
+   */
+  private LogBuffer[] takeForcedBuffers()
+  {
+    int n = 0;
+    int size = unforcedBuffers.size();
+    while (n < size && (haveIOException ||
+        ((LogBuffer)unforcedBuffers.get(n)).bsn <= lastForceBSN))
+      ++n;
+    if (n == 0) return null;
+
+    List head = unforcedBuffers.subList(0, n);
+    LogBuffer[] forced = (LogBuffer[])head.toArray(new LogBuffer[n]);
+    head.clear();
+    return forced;
+  }
+
+  /**
+   * completes and releases buffers returned by takeForcedBuffers().
+   * <p>No monitors are owned when routine is entered.
+   * @param forced buffers to be completed, may be null.
+   */
+  private void completeBuffers(LogBuffer[] forced)
+  {
+    if (forced == null) return;
+    for (int i = 0; i < forced.length; ++i)
+    {
+      completeBuffer(forced[i]);
+      releaseBuffer(forced[i]);
+    }
+  }
+
+  /**
+   * @return true if write() has written buffers that
+   * have not been forced.
+   */
+  private boolean hasUnforcedBuffers()
+  {
+    synchronized(forceManagerLock)
+    {
+      return !unforcedBuffers.isEmpty();
+    }
+  }
+
+  /**
+   * forces the buffers that have been added to the
+   * forceQueue by the calling thread without waiting
+   * for other threads.
+   *
+   * <p>If a ForceManager is running, the ForceManager is notified.
+   *
+   * @throws IOException
+   * if an error occurred writing or forcing the log.
+   */
+  private void forceBatch()
+    throws IOException
+  {
+    if (forceManager != null)
+    {
+      forceManager.signal();
+      return;
+    }
+
+    forceBuffers();
+
+    // BUG 300803 report error to our caller
+    if (haveIOException) throw ioexception;
+  }
+
+  /**
+   * removes the next LogBuffer from the forceQueue.
+   * <p>PRECONDITION: forceManagerLock owned by caller
+   * @return the LogBuffer with the lowest BSN in the forceQueue.
+   */
+  private LogBuffer fqRemove()
+  {
+    LogBuffer logBuffer = forceQueue[fqGet]; // logBuffer stuffed into forceQ
+    forceQueue[fqGet] = null;      // so someone using debug doesn't think it is in the queue
+    fqGet = (fqGet + 1) % forceQueue.length;
+    return logBuffer;
+  }
+
+  /**
+   * removes every LogBuffer from the forceQueue and writes
+   * them to their LogFiles.
+   *
+   * <p>Consecutive buffers for the same LogFile are written
+   * with a single gathering write.  If one of the buffers is
+   * the last buffer of a log file, the file is forced before
+   * buffers for the next file are written.  The caller decides
+   * whether the last group of buffers is to be forced.
+   *
+   * <p>PRECONDITION: forceManagerLock owned by caller
+   * @param written array to receive the buffers removed from
+   * the forceQueue.  Must be at least as large as the forceQueue.
+   * @return number of buffers removed from the forceQueue.
+   */
+  private int writeQueuedBuffers(LogBuffer[] written)
+  {
+    int count = 0;
+    while (fqGet != fqPut)
+      written[count++] = fqRemove();
+
+    int first = 0;
+    while (first < count)
+    {
+      // find the end of the group of buffers for the same LogFile
+      int end = first + 1;
+      while (end < count && !written[end - 1].forceNow &&
+          written[end].lf == written[first].lf && !written[end].rewind)
+        ++end;
+
+      writeBuffers(written, first, end - first);
+
+      // force the current file before we switch to the next file
+      if (end < count && written[end - 1].forceNow && !haveIOException)
+      {
+        ++forceOnFileSwitch;
+        forceLogFile(written[end - 1].lf, false);
+      }
+
+      first = end;
+    }
+
+    return count;
+  }
+
+  /**
+   * writes <i> length </i> prepared LogBuffers with a
+   * single gathering write.
+   * <p>PRECONDITION: forceManagerLock owned by caller
+   * @param list buffers removed from the forceQueue.
+   * @param offset index of the first buffer to be written.
+   * @param length number of buffers to be written, may be zero.
+   * @throws IOException
+   */
+  private void writeRun(LogBuffer[] list, int offset, int length)
+    throws IOException
+  {
+    if (length == 0) return;
+    list[offset].lf.write(list, offset, length);
+    if (length > 1) ++gatheringWriteCount;
+  }
+
+  /**
+   * writes consecutive LogBuffers removed from the forceQueue
+   * to their LogFile with gathering writes.
+   * <p>Each buffer decides in prepareWrite() whether it is
+   * written, so a buffer that must not be written ends the
+   * gathering write of the buffers before it.
+   * <p>PRECONDITION: forceManagerLock owned by caller
+   * @param list buffers removed from the forceQueue.
+   * @param offset index of the first buffer to be written.
+   * @param length number of buffers to be written.
+   */
+  private void writeBuffers(LogBuffer[] list, int offset, int length)
+  {
+    if (haveIOException)
+    {
+      // BUG 300803 - do not try the write if we already have an error
+      // but we have to increment count of waitingThreads so count
+      // does not go negative
+      for (int i = offset; i < offset + length; ++i)
+      {
+        synchronized(list[i].waitingThreadsLock)
+        {
+          list[i].waitingThreads += 1;
+        }
+      }
+    }
+    else
+    {
+      LogBuffer logBuffer = list[offset];
+      int prepared = offset;  // buffers that have counted the writer as a waiting thread
+
+      // write the buffers to disk (hopefully non-blocking)
+      try {
+        long startWrite = System.currentTimeMillis();
+        long startWriteNanos = System.nanoTime();
+        int run = offset;  // first buffer of the current gathering write
+        for (int i = offset; i < offset + length; ++i)
+        {
+          logBuffer = list[i];
+          assert logBuffer.bsn == nextWriteBSN + (i - offset) : "BSN error expecting " + (nextWriteBSN + (i - offset)) + " found " + logBuffer.bsn;
+          assert logBuffer.tod > prevWriteTOD : "TOD error at BSN: " + logBuffer.bsn;
+          ++prepared;
+          if (!logBuffer.prepareWrite())
+          {
+            // buffer must not be written, so it ends the gathering write
+            writeRun(list, run, i - run);
+            run = i + 1;
+          }
+        }
+        writeRun(list, run, offset + length - run);
+        writeLatency.recordSince(startWriteNanos);
+        long writeTime = elapsedTime(startWrite);
+        totalWriteTime += writeTime;
+        if (writeTime > maxWriteTime) maxWriteTime = writeTime;
+        writeCount += length;
+        nextWriteBSN = logBuffer.bsn + 1;
+        lastWriteFile = logBuffer.lf;
+        if (oldestUnforcedNanos == 0) oldestUnforcedNanos = list[offset].todNanos;
+      }
+      catch (IOException ioe) {
+        // BUG 300803 - remember that we had an error
+        // BUG 303907 add a message to the IOException
+        ioexception = new IOException("LogBufferManager.force(): writing " +
+            logBuffer.lf.file.getName() + "[" + ioe.getMessage() + "]");
+        ioexception.setStackTrace(ioe.getStackTrace());
+        haveIOException = true;
+
+        // buffers following one that failed prepareWrite() were not prepared
+        for (int i = prepared; i < offset + length; ++i)
+        {
+          synchronized(list[i].waitingThreadsLock)
+          {
+            list[i].waitingThreads += 1;
+          }
+        }
+      }
+    }
+
+    for (int i = offset; i < offset + length; ++i)
+      threadsWaitingForce += list[i].getWaitingThreads();
+    // NOTE: following is not synchronized so the stats may be inaccurate.
+    if (threadsWaitingForce > maxThreadsWaitingForce)
+      maxThreadsWaitingForce = threadsWaitingForce;
+  }
+
+  /**
+   * forces <i> lf </i> and updates lastForceBSN
+   * with the BSN of the last buffer written.
+   * <p>PRECONDITION: forceManagerLock owned by caller
+   * @param lf the LogFile of the last LogBuffer written.
+   * @param timeout true if the force is the result of a timeout.
+   */
+  private void forceLogFile(LogFile lf, boolean timeout)
+  {
+    long forcebsn = nextWriteBSN - 1;
+
+    ++forceCount;
+
+    long startForce = System.currentTimeMillis();
+    long startForceNanos = System.nanoTime();
+    try {
+      // a memory mapped file is not written by the dsync channel
+      if (forceRequired || lf.mappedBuffer != null)
+        lf.force(false);
+    } catch (IOException ioe) {
+      // BUG 303907 add a message to the IOException
+      ioexception = new IOException("LogBufferManager.force(): error attempting to force " +
+          lf.file.getName() + "[" + ioe.getMessage() + "]");
+      ioexception.setStackTrace(ioe.getStackTrace());
+      haveIOException = true;
+    }
+    forceLatency.recordSince(startForceNanos);
+    totalForceTime += elapsedTime(startForce);
+
+    if (lastForceTOD > 0)
+    {
+      long timeBetweenForce = startForce - lastForceTOD;
+      totalTimeBetweenForce += timeBetweenForce;
+      minTimeBetweenForce = Math.min(minTimeBetweenForce, timeBetweenForce);
+      if (!timeout)
+      {
+        maxTimeBetweenForce = Math.max(maxTimeBetweenForce, timeBetweenForce);
+      }
+    }
+    lastForceTOD = System.currentTimeMillis();
+
+    if (lastForceBSN > 0)
+    {
+      int buffersForced = (int)(forcebsn - lastForceBSN);
+      maxBuffersForced = Math.max(maxBuffersForced, buffersForced);
+      minBuffersForced = Math.min(minBuffersForced, buffersForced);
+    }
+    // report the force so the ForcePolicy can adapt
+    long endForceNanos = System.nanoTime();
+    long latency = oldestUnforcedNanos != 0 ? endForceNanos - oldestUnforcedNanos : 0;
+    forcePolicy.forceComplete(endForceNanos - startForceNanos, latency, threadsWaitingForce);
+    oldestUnforcedNanos = 0;
+
+    totalThreadsWaitingForce += threadsWaitingForce;
+    threadsWaitingForce = 0;
+
+    lastForceBSN = forcebsn;
+
+    notifyDurableMark();
+  }
+
+  /**
+   * returns a log key that is greater than the key of
+   * every record that has been forced to disk.
+   * <p>Every record with a key less than the durable mark
+   * has been forced.
+   * @return the durable mark.
+   */
+  long getDurableMark()
+  {
+    return markFromBsn(lastForceBSN + 1, 0);
+  }
+
+  /**
+   * registers a DurableMarkListener to be notified
+   * when the durable mark advances.
+   * @param listener the DurableMarkListener, or null to
+   * stop notifications.
+   */
+  void setDurableMarkListener(DurableMarkListener listener)
+  {
+    durableMarkListener = listener;
+  }
+
+  /**
+   * schedules a notification of the durableMarkListener.
+   * <p>At most one notification is scheduled at a time.  The
+   * notification reports the durable mark at the time
+   * it runs, so forces that complete before it runs are
+   * reported together.
+   * <p>PRECONDITION: forceManagerLock owned by caller
+   */
+  private void notifyDurableMark()
+  {
+    if (durableMarkListener == null || !durableMarkPending.compareAndSet(false, true))
+      return;
+
+    config.getScheduler().execute(new Runnable() {
+      public void run() {
+        durableMarkPending.set(false);
+        DurableMarkListener listener = durableMarkListener;
+        if (listener == null) return;
+        synchronized(durableMarkPending)
+        {
+          long durableMark = getDurableMark();
+          if (durableMark <= durableMarkNotified) return;
+          durableMarkNotified = durableMark;
+          try {
+            // protect HOWL from RuntimeExceptions in application code
+            listener.durableMarkAdvanced(durableMark);
+          } catch (Exception e) {
+            ++durableMarkListenerErrors;
+            lfm.log(LogEventListener.ERROR, "DurableMarkListener.durableMarkAdvanced(" +
+                Long.toHexString(durableMark) + ") failed", e);
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * updates the iostatus of a LogBuffer that has been
+   * forced and notifies threads waiting in sync().
+   * @param logBuffer the LogBuffer that has been forced.
+   */
+  private void completeBuffer(LogBuffer logBuffer)
+  {
+    synchronized(logBuffer)
+    {
+      // BUG: 300613 must synchronize the update of iostatus
+      if (logBuffer.iostatus == LogBufferStatus.WRITING)
+        logBuffer.iostatus = LogBufferStatus.COMPLETE;
+
+      // BUG: 300803 report error to threads that are waiting
+      if (haveIOException)
+      {
+        logBuffer.iostatus = LogBufferStatus.ERROR;
+        logBuffer.ioexception = ioexception;
+      }
+
+      logBuffer.notifyAll();
+    }
+
+    // complete futures before the buffer can be released for reuse.
+    // each future holds one of the waitingThreads counts.
+    for (int i = logBuffer.completeFutures(); i > 0; --i)
+      releaseBuffer(logBuffer);
+  }
+
+  /**
+   * waits for the ForceManager to force all blocks up to
+   * and including <i> bsn </i>.
+   * @param bsn BSN of the block to wait for.
+   * @throws IOException
+   * if the ForceManager was unable to write or force the log.
+   */
+  private void waitForForce(long bsn)
+    throws IOException, InterruptedException
+  {
+    ForceWaiter waiter = null;
+    synchronized(forceManagerLock)
+    {
+      if (!haveIOException && lastForceBSN < bsn)
+        waiter = addForceWaiter(bsn);
+    }
+
+    if (waiter != null)
+      awaitForce(waiter, true);
+
+    if (haveIOException) throw ioexception;
+  }
+
+  /**
+   * registers the calling thread to be unparked when
+   * all blocks up to and including <i> bsn </i> have been forced.
+   * <p>PRECONDITION: forceManagerLock owned by caller
+   * @param bsn BSN of the block to wait for.
+   * @return ForceWaiter to be passed to awaitForce().
+   */
+  ForceWaiter addForceWaiter(long bsn)
+  {
+    ForceWaiter waiter = new ForceWaiter(bsn);
+    forceWaiters.add(waiter);
+    return waiter;
+  }
+
+  /**
+   * parks the calling thread until the force
+   * <i> waiter </i> is waiting for has completed.
+   * <p>No monitors are owned when routine is entered.
+   * @param waiter ForceWaiter returned by addForceWaiter().
+   * @param interruptible true if the wait may be abandoned
+   * when the thread is interrupted.  Threads that wrote
+   * buffers must wait so they can complete the buffers,
+   * and the interrupt is reasserted when the wait ends.
+   * @throws InterruptedException
+   * if <i> interruptible </i> and the thread is interrupted
+   * before the force completes.
+   */
+  void awaitForce(ForceWaiter waiter, boolean interruptible)
+    throws InterruptedException
+  {
+    boolean interrupted = false;
+    while (!waiter.done)
+    {
+      LockSupport.park(this);
+      if (Thread.interrupted())
+      {
+        interrupted = true;
+        if (interruptible)
+        {
+          synchronized(forceManagerLock)
+          {
+            if (!waiter.done && forceWaiters.remove(waiter))
+              throw new InterruptedException();
+          }
+        }
+      }
+    }
+
+    if (interrupted) Thread.currentThread().interrupt();
+  }
+
+  /**
+   * unparks the threads waiting for blocks that are
+   * now forced, or every waiting thread if an IOException
+   * has occurred.
+   * <p>Threads holding a force in holdForce() are also notified
+   * so they can stop holding.
+   * <p>PRECONDITION: forceManagerLock owned by caller
+   */
+  void wakeForceWaiters()
+  {
+    ForceWaiter waiter = null;
+    while ((waiter = (ForceWaiter)forceWaiters.peek()) != null)
+    {
+      if (!haveIOException && waiter.bsn > lastForceBSN) break;
+      forceWaiters.poll();
+      waiter.done = true;
+      LockSupport.unpark(waiter.thread);
+      ++forceWaiterWakeups;
+    }
+
+    if (threadsHoldingForce > 0)
+      forceManagerLock.notifyAll();
+  }
+
+  /**
+   * Waits for logBuffer to be forced to disk.
+   *
+   * <p>No monitors are owned when routine is entered.
+   * <p>Prior to calling sync(), the thread called put()
+   * with <i> sync </i> param set true to register
+   * the fact that the thread would wait for the force.
+   */
+  private void sync(LogBuffer logBuffer)
+    throws IOException, InterruptedException
+  {
+    try
+    {
+      logBuffer.sync();
+    }
+    finally
+    {
+      releaseBuffer(logBuffer);
+    }
+  }
+
+  /**
+   * decrements count of threads waiting on this buffer.
+   * <p>If count goes to zero, buffer is returned to
+   * the freeBuffer list, and any threads waiting for
+   * a free buffer are notified.
+   * @param buffer LogBuffer to be released
+   * @see #buffersWaitingForce
+   */
+  private void releaseBuffer(LogBuffer buffer)
+  {
+    if (buffer.release() == 0)
+    {
+      synchronized(bufferManagerLock)
+      {
+        freeBuffer[buffer.index] = buffer;
+        bufferManagerLock.notifyAll();
+        --buffersWaitingForce;
+        assert buffersWaitingForce >= 0 : "buffersWaitingForce (" + buffersWaitingForce + ") < 0";
+      }
+    }
+  }
+
+  /**
+   * returns a LogBuffer to be filled.
+   *
+   * <p>PRECONDITION: caller holds bufferManagerLock monitor.
+   *
+   * @param lane the lane to be filled.
+   * @return a LogBuffer to be filled.
+   */
+  private LogBuffer getFillBuffer(int lane) throws LogFileOverflowException, IOException
+  {
+    LogBuffer fillBuffer = (LogBuffer)fillBuffers.get(lane);
+    if (fillBuffer == null) // slight optimization when fillBuffer != null
+    {
+      // wait for another thread to finish putting fragments
+      if (continuationThread != null && continuationThread != Thread.currentThread())
+        return null;
+
+      fillBuffer = nextBuffer();
+      if (fillBuffer != null)
+      {
+        // allow other threads to put records into this buffer
+        fillBuffer.unseal();
+        fillBuffers.set(lane, fillBuffer);
+      }
+    }
+    return fillBuffer;
+  }
+
+  /**
+   * initializes a LogBuffer from the freeBuffer list
+   * with the next BSN.
+   *
+   * <p>The buffer is not assigned to a lane, and remains
+   * sealed until the caller unseals it.
+   *
+   * <p>PRECONDITION: caller holds bufferManagerLock monitor.
+   *
+   * @return the initialized LogBuffer, or null if there
+   * are no free buffers.
+   */
+  private LogBuffer nextBuffer() throws LogFileOverflowException, IOException
+  {
+    LogBuffer fillBuffer = null;
+    int fbl = freeBuffer.length;
+    for(int i=0; fillBuffer == null && i < fbl; ++i)
+    {
+      nextIndex %= fbl;
+      if (freeBuffer[nextIndex] != null)
+      {
+        LogBuffer b = freeBuffer[nextIndex];
+        freeBuffer[nextIndex] = null;
+        try {
+          fillBuffer = b.init(nextFillBSN, lfm);
+        } catch (LogFileOverflowException e) {
+          // BUG 300956 - return buffer to free list to prevent hang in close.
+          freeBuffer[nextIndex] = b;
+          throw e;
+        } catch (IOException e) {
+          freeBuffer[nextIndex] = b;
+          throw e;
+        }
+        ++nextFillBSN;
+      }
+      ++nextIndex;
+    }
+    return fillBuffer;
+  }
+
+  /**
+   * returns the lane used by the calling thread.
+   * <p>Threads are assigned to lanes by thread id so that
+   * a thread always fills the same lane.
+   * @return index into fillBuffers.
+   */
+  private int lane()
+  {
+    int lanes = fillBuffers.length();
+    return lanes == 1 ? 0 : (int)(Thread.currentThread().getId() % lanes);
+  }
+
+  /**
+   * returns the LogBuffer currently being filled in <i> lane </i>.
+   * @param lane index into fillBuffers.
+   * @return LogBuffer being filled, or null.
+   */
+  private LogBuffer fillBuffer(int lane)
+  {
+    return (LogBuffer)fillBuffers.get(lane);
+  }
+
+  /**
+   * determines if <i> buffer </i> is still being filled in one of the lanes.
+   * @param buffer LogBuffer to be checked.
+   * @return true if <i> buffer </i> has not been moved to the forceQueue.
+   */
+  private boolean isFillBuffer(LogBuffer buffer)
+  {
+    for (int i = 0; i < fillBuffers.length(); ++i)
+      if (fillBuffers.get(i) == buffer) return true;
+    return false;
+  }
+
+  /**
+   * returns the LogBuffer with the lowest BSN that is being
+   * filled in one of the lanes, if its BSN is less than <i> bsn </i>.
+   * <p>PRECONDITION: bufferManagerLock owned by caller
+   * @param bsn BSN to compare with.
+   * @return LogBuffer with the lowest BSN less than <i> bsn </i>, or null.
+   */
+  private LogBuffer oldestFillBuffer(long bsn)
+  {
+    LogBuffer oldest = null;
+    for (int i = 0; i < fillBuffers.length(); ++i)
+    {
+      LogBuffer lb = (LogBuffer)fillBuffers.get(i);
+      if (lb != null && lb.bsn < bsn && (oldest == null || lb.bsn < oldest.bsn))
+        oldest = lb;
+    }
+    return oldest;
+  }
+
+  /**
+   * moves the LogBuffer of every lane, and every pending
+   * buffer, to the forceQueue.
+   * <p>PRECONDITION: bufferManagerLock owned by caller
+   * @return BSN of the newest buffer moved to the forceQueue,
+   * or zero if there were no buffers being filled.
+   */
+  private long fqAddAll()
+  {
+    return fqFlush(Long.MAX_VALUE, false);
+  }
+
+  /**
+   * return a new instance of ForcePolicy.
+   * <p>Actual ForcePolicy implementation class is specified by
+   * configuration.
+   *
+   * @return a new instance of ForcePolicy
+   */
+  ForcePolicy getForcePolicy() throws ClassNotFoundException
+  {
+    ForcePolicy fp = null;
+    Class fpcls = this.getClass().getClassLoader().loadClass(config.getForcePolicyClassName());
+    try {
+      Constructor fpCtor = fpcls.getDeclaredConstructor(new Class[] { Configuration.class } );
+      fp = (ForcePolicy)fpCtor.newInstance(new Object[] {config});
+    } catch (InstantiationException e) {
+      throw new ClassNotFoundException(e.toString());
+    } catch (IllegalAccessException e) {
+      throw new ClassNotFoundException(e.toString());
+    } catch (NoSuchMethodException e) {
+      throw new ClassNotFoundException(e.toString());
+    } catch (IllegalArgumentException e) {
+      throw new ClassNotFoundException(e.toString());
+    } catch (InvocationTargetException e) {
+      throw new ClassNotFoundException(e.toString());
+    } catch (ClassCastException e) {
+      throw new ClassNotFoundException(e.toString());
+    }
+
+    return fp;
+  }
+
+  /**
+   * return a new instance of LogBuffer.
+   * <p>Actual LogBuffer implementation class is specified by
+   * configuration.
+   *
+   * @return a new instance of LogBuffer
+   */
+  LogBuffer getLogBuffer(int index) throws ClassNotFoundException
+  {
+    LogBuffer lb = null;
+    Class lbcls = this.getClass().getClassLoader().loadClass(config.getBufferClassName());
+    try {
+      Constructor lbCtor = lbcls.getDeclaredConstructor(new Class[] { Configuration.class } );
+      lb = (LogBuffer)lbCtor.newInstance(new Object[] {config});
+      lb.index = index;
+      lb.offsetBits = offsetBits;
+    } catch (InstantiationException e) {
+      throw new ClassNotFoundException(e.toString());
+    } catch (IllegalAccessException e) {
+      throw new ClassNotFoundException(e.toString());
+    } catch (NoSuchMethodException e) {
+      throw new ClassNotFoundException(e.toString());
+    } catch (IllegalArgumentException e) {
+      throw new ClassNotFoundException(e.toString());
+    } catch (InvocationTargetException e) {
+      throw new ClassNotFoundException(e.toString());
+    }
+
+    return lb;
+  }
+
+  /**
+   * Add a buffer to the forceQueue so it can be forced.
+   * <p>The buffer is sealed so no further records are reserved.
+   * The buffer is not written until threads that already
+   * reserved space have finished copying their records.
+   * <p>Blocks must be written in ascending BSN order, so any
+   * lane that is filling a buffer with a lower BSN is moved
+   * to the forceQueue first, even if it is not full.
+   * <p>PRECONDITION: bufferManagerLock owned by caller
+   * @param buffer LogBuffer to be added to the forceQueue
+   * @see #fqFlush(long, boolean)
+   */
+  void fqAdd(LogBuffer buffer)
+  {
+    // buffers of continued records are not in a lane
+    if (!isFillBuffer(buffer) && !pendingBuffers.contains(buffer))
+      fqHold(buffer);
+
+    fqFlush(buffer.bsn, true);
+  }
+
+  /**
+   * moves every lane buffer and pending buffer with a BSN
+   * not greater than <i> bsn </i> to the forceQueue in
+   * ascending BSN order.
+   * <p>PRECONDITION: bufferManagerLock owned by caller
+   * @param bsn BSN of the newest buffer to be added to the forceQueue.
+   * @param partial true if lane buffers older than <i> bsn </i>
+   * are counted in partialLaneBlocks.
+   * @return BSN of the newest buffer moved to the forceQueue,
+   * or zero if no buffer was moved.
+   */
+  private long fqFlush(long bsn, boolean partial)
+  {
+    long newest = 0;
+    while (true)
+    {
+      LogBuffer lane = oldestFillBuffer(bsn == Long.MAX_VALUE ? bsn : bsn + 1);
+      LogBuffer pending = pendingBuffers.isEmpty() ? null : (LogBuffer)pendingBuffers.get(0);
+      if (pending != null && pending.bsn > bsn) pending = null;
 
-    return lb;
+      if (pending != null && (lane == null || pending.bsn < lane.bsn))
+      {
+        pendingBuffers.remove(0);
+        fqEnqueue(pending);
+        newest = pending.bsn;
+      }
+      else if (lane != null)
+      {
+        if (partial && lane.bsn != bsn) ++partialLaneBlocks;
+        fqAppend(lane);
+        newest = lane.bsn;
+      }
+      else
+        break;
+    }
+
+    fqPutPending();
+    return newest;
+  }
+
+  /**
+   * moves a full <i> buffer </i> out of its lane.
+   * <p>The buffer is added to the forceQueue if no other lane
+   * is filling a buffer with a lower BSN.  Otherwise the buffer
+   * is held in pendingBuffers, so the older lanes can continue
+   * to fill their buffers instead of being written as partial blocks.
+   * <p>PRECONDITION: bufferManagerLock owned by caller
+   * @param buffer full LogBuffer
+   * @return true if <i> buffer </i> was added to the forceQueue.
+   */
+  private boolean fqFull(LogBuffer buffer)
+  {
+    if (oldestFillBuffer(buffer.bsn) == null)
+    {
+      fqAppend(buffer);
+      fqPutPending();
+      return true;
+    }
+
+    fqHold(buffer);
+    return false;
+  }
+
+  /**
+   * seals <i> buffer </i>, removes it from its lane and
+   * adds it to pendingBuffers in ascending BSN order.
+   * <p>PRECONDITION: bufferManagerLock owned by caller
+   * @param buffer LogBuffer to be held
+   */
+  private void fqHold(LogBuffer buffer)
+  {
+    fqRemoveFillBuffer(buffer);
+    int i = pendingBuffers.size();
+    while (i > 0 && ((LogBuffer)pendingBuffers.get(i - 1)).bsn > buffer.bsn) --i;
+    pendingBuffers.add(i, buffer);
+  }
+
+  /**
+   * moves pending buffers to the forceQueue once
+   * no lane is filling a buffer with a lower BSN.
+   * <p>PRECONDITION: bufferManagerLock owned by caller
+   */
+  private void fqPutPending()
+  {
+    LogBuffer oldest = oldestFillBuffer(Long.MAX_VALUE);
+    while (!pendingBuffers.isEmpty())
+    {
+      LogBuffer pending = (LogBuffer)pendingBuffers.get(0);
+      if (oldest != null && oldest.bsn < pending.bsn) break;
+      pendingBuffers.remove(0);
+      fqEnqueue(pending);
+    }
   }
 
   /**
-   * Add a buffer to the forceQueue.
+   * seals <i> buffer </i>, removes it from its lane
+   * and appends it to the forceQueue.
    * <p>PRECONDITION: bufferManagerLock owned by caller
    * @param buffer LogBuffer to be added to the forceQueue
    */
-  void fqAdd(LogBuffer buffer)
+  private void fqAppend(LogBuffer buffer)
+  {
+    fqRemoveFillBuffer(buffer);
+    fqEnqueue(buffer);
+  }
+
+  /**
+   * seals <i> buffer </i> and removes it from its lane.
+   * <p>The buffer is counted in buffersWaitingForce
+   * until it is released.
+   * <p>PRECONDITION: bufferManagerLock owned by caller
+   * @param buffer LogBuffer being removed from its lane
+   */
+  private void fqRemoveFillBuffer(LogBuffer buffer)
+  {
+    // no more records may be reserved in this buffer
+    buffer.seal();
+    for (int i = 0; i < fillBuffers.length(); ++i)
+      if (fillBuffers.get(i) == buffer) fillBuffers.set(i, null);
+    ++buffersWaitingForce;  // BUG 303660
+  }
+
+  /**
+   * appends a sealed <i> buffer </i> to the forceQueue.
+   * <p>PRECONDITION: bufferManagerLock owned by caller
+   * @param buffer LogBuffer to be added to the forceQueue
+   */
+  private void fqEnqueue(LogBuffer buffer)
   {
-    fillBuffer = null;
     try {
       forceQueue[fqPut] = buffer;
     } catch (ArrayIndexOutOfBoundsException e) {
@@ -648,7 +1747,6 @@ class LogBufferManager extends LogObject
       throw e;
     }
     fqPut = (fqPut + 1) % forceQueue.length;
-    ++buffersWaitingForce;  // BUG 303660
   }
 
   /**
@@ -664,62 +1762,607 @@ class LogBufferManager extends LogObject
    * and is enabled by setting the log configuration property
    * XXX to true.
    *
+   * <p>Records are reserved in the current fillBuffer with
+   * a CAS on the buffer's fill position, and copied into
+   * the buffer without holding bufferManagerLock.  The
+   * bufferManagerLock is only obtained to allocate a new fillBuffer
+   * or to move a full buffer to the forceQueue.
+   *
+   * <p>Records that are too large for a block are
+   * stored as fragments in consecutive blocks.
+   *
    * @return token reference (log key) for record just written
    * @throws LogRecordSizeException
-   *   when size of byte[] is larger than the maximum possible
-   *   record for the configured buffer size.
+   *   when size of byte[] is larger than the maximum
+   *   record that can be reassembled by LogRecord.get().
    *
    * @see #buffersWaitingForce
+   * @see #putFragments(short, byte[][], ByteBuffer[], boolean, boolean, LogKeyFuture, long)
    */
   long put(short type, byte[][] data, boolean sync)
     throws LogRecordSizeException, LogFileOverflowException,
                 InterruptedException, IOException
   {
+    return put(type, data, null, null, sync, false, null);
+  }
+
+  /**
+   * writes <i> data </i> ByteBuffer[] to log and returns a log key.
+   * <p>waits for IO to complete if sync is true.
+   *
+   * <p>The remaining bytes of each ByteBuffer are copied directly
+   * into the LogBuffer.  Heap and direct buffers are both accepted.
+   *
+   * @return token reference (log key) for record just written
+   * @throws LogRecordSizeException
+   *   when the size of the record is larger than the maximum possible
+   *   record for the configured buffer size.
+   * @see #put(short, byte[][], boolean)
+   */
+  long put(short type, ByteBuffer[] data, boolean sync)
+    throws LogRecordSizeException, LogFileOverflowException,
+                InterruptedException, IOException
+  {
+    return put(type, null, data, null, sync, false, null);
+  }
+
+  /**
+   * claims space in the log for a record of <i> size </i> bytes
+   * that the caller encodes in place.
+   *
+   * <p>The record is claimed in the current fillBuffer the same
+   * way put() copies a record.  The caller must encode the record
+   * into reservation.getBuffer() and call commit().
+   *
+   * @param type record type.
+   * @param reservation LogReservation to be updated
+   * with the LogBuffer and log key of the record.
+   * @throws LogRecordSizeException
+   *   when <i> size </i> is larger than the maximum possible
+   *   record for the configured buffer size.
+   * @see #commit(LogReservation, boolean)
+   */
+  void reserve(short type, LogReservation reservation)
+    throws LogRecordSizeException, LogFileOverflowException,
+                InterruptedException, IOException
+  {
+    put(type, null, null, reservation, false, false, null);
+  }
+
+  /**
+   * commits a record that was claimed by reserve().
+   * <p>waits for IO to complete if sync is true.
+   * @param reservation LogReservation returned by reserve().
+   * @param sync true if caller should wait for the force.
+   */
+  void commit(LogReservation reservation, boolean sync)
+    throws InterruptedException, IOException
+  {
+    long startCommit = System.nanoTime();
+    LogBuffer currentBuffer = reservation.lb;
+    currentBuffer.commit(reservation, sync);
+    completePut(currentBuffer, reservation.key, sync, null, startCommit);
+  }
+
+  /**
+   * releases a record that was claimed by reserve() without
+   * committing it.
+   * <p>The claimed space is written to the log as a FILLER
+   * record that is skipped by replay.
+   * @param reservation LogReservation returned by reserve().
+   */
+  void abort(LogReservation reservation) throws IOException
+  {
+    reservation.lb.abort(reservation);
+  }
+
+  /**
+   * writes <i> data </i> byte[][] to log and returns a LogKeyFuture
+   * that completes when the buffer containing the record is forced.
+   *
+   * <p>The caller does not wait for the buffer to be forced.
+   * The record is written as if sync were true, so the
+   * buffer is flushed by flushPartialBuffers or the FlushManager
+   * just as it is for put(type, data, true).
+   *
+   * <p>When the LogBufferManager is not using a dedicated
+   * force thread, the caller may still write and force
+   * the buffer if flushPartialBuffers is enabled.
+   *
+   * @return LogKeyFuture for the record just written.
+   * @throws LogRecordSizeException
+   *   when size of byte[] is larger than the maximum possible
+   *   record for the configured buffer size.
+   * @see Configuration#setDedicatedForceThread(boolean)
+   */
+  LogKeyFuture putAsync(short type, byte[][] data)
+    throws LogRecordSizeException, LogFileOverflowException,
+                InterruptedException, IOException
+  {
+    LogKeyFuture future = new LogKeyFuture();
+    put(type, data, null, null, true, false, future);
+    return future;
+  }
+
+  /**
+   * writes <i> data </i> byte[][] to log and returns a log key
+   * after the record has reached the requested <i> durability </i>.
+   *
+   * <p>Durability.WRITTEN writes the buffer containing the record
+   * to the log file without waiting for a force.  The buffer is
+   * forced with the next force of the log.
+   *
+   * @param durability one of the levels defined by Durability.
+   * @return token reference (log key) for record just written
+   * @throws IllegalArgumentException
+   *   if <i> durability </i> is not a valid Durability level.
+   * @see Durability
+   */
+  long put(short type, byte[][] data, int durability)
+    throws LogRecordSizeException, LogFileOverflowException,
+                InterruptedException, IOException
+  {
+    long key = 0L;
+    switch (durability)
+    {
+      case Durability.BUFFERED:
+        key = put(type, data, false);
+        break;
+      case Durability.WRITTEN:
+        key = put(type, data, null, null, false, true, null);
+        break;
+      case Durability.FORCED:
+        key = put(type, data, true);
+        break;
+      default:
+        throw new IllegalArgumentException("durability [" + durability + "] is not valid");
+    }
+    return key;
+  }
+
+  /**
+   * common implementation of put(), putAsync() and reserve().
+   * <p>Exactly one of <i> data </i>, <i> buffers </i> or
+   * <i> reservation </i> is not null.
+   * @param data record fields as byte[][].
+   * @param buffers record fields as ByteBuffer[].
+   * @param reservation record to be claimed for reserve().
+   * The record is completed by commit().
+   * @param write true to write the buffer containing the
+   * end of the record without waiting for a force.
+   * @param future LogKeyFuture to be completed when the
+   * record is forced instead of waiting for the force.
+   * null if caller will wait as specified by <i> sync </i>.
+   * @return token reference (log key) for record just written
+   */
+  private long put(short type, byte[][] data, ByteBuffer[] buffers,
+      LogReservation reservation, boolean sync, boolean write, LogKeyFuture future)
+    throws LogRecordSizeException, LogFileOverflowException,
+                InterruptedException, IOException
+  {
+    long startPut = System.nanoTime();
     long token = 0;
     LogBuffer currentBuffer = null;
-    boolean forceNow = false;
+    long bsn = 0;   // BSN of a buffer that we moved to the forceQueue
+    int lane = lane();
 
+    try {
     do {
-      // allocate the current fillBuffer
+      /*
+       * Try to reserve space in the current fillBuffer without
+       * holding bufferManagerLock.  The bufferManagerLock is only
+       * needed when there is no fillBuffer, or the fillBuffer
+       * is full and must be moved to the forceQueue.
+       */
+      currentBuffer = fillBuffer(lane);
+      if (currentBuffer != null)
+        token = putRecord(currentBuffer, type, data, buffers, reservation, sync);
+
+      if (token == 0)
+      {
+        bsn = 0;
+        synchronized(bufferManagerLock)
+        {
+          if ((currentBuffer = getFillBuffer(lane)) == null && !pendingBuffers.isEmpty())
+          {
+            // no free buffers; write the full buffers held back by older lanes
+            bsn = fqFlush(((LogBuffer)pendingBuffers.get(pendingBuffers.size() - 1)).bsn, true);
+          }
+          else
+          {
+            if (currentBuffer == null)
+            {
+              long startBufferWait = System.nanoTime();
+              do {
+                ++waitForBuffer;
+                bufferManagerLock.wait();
+              } while((currentBuffer = getFillBuffer(lane)) == null);
+              waitForBufferLatency.recordSince(startBufferWait);
+            }
+
+            // fillBuffer may have been replaced by another thread
+            token = putRecord(currentBuffer, type, data, buffers, reservation, sync);
+            if (token == 0)
+            {
+              ++noRoomInBuffer;
+              if (fqFull(currentBuffer)) bsn = currentBuffer.bsn;
+            }
+          }
+        }
+
+        // force current buffer if there was no room for data
+        if (bsn != 0)
+          force(false, bsn);
+      }
+    } while (token == 0);
+    } catch (LogRecordSizeException e) {
+      // reserved records must be contiguous
+      if (reservation != null) throw e;
+      return putFragments(type, data, buffers, sync, write, future, startPut);
+    }
+
+    // a reserved record is completed by commit()
+    if (reservation == null)
+      completePut(currentBuffer, token, sync, future, startPut);
+
+    if (write)
+      write(bsnFromMark(token));
+
+    return token;
+  }
+
+  /**
+   * puts a record that is too large for a single block
+   * as a sequence of fragments.
+   *
+   * <p>The record type and length, followed by the record data,
+   * are split into a FRAGMENT_FIRST that fills the current
+   * fillBuffer, zero or more FRAGMENT_MIDDLE records that
+   * fill entire blocks, and a FRAGMENT_LAST.  Only one
+   * record is continued at a time, and no other thread may
+   * obtain a new fillBuffer until the FRAGMENT_LAST has been
+   * put.  The FRAGMENT_FIRST is only put into the lane's
+   * fillBuffer if no other lane holds a newer buffer, so the
+   * fragments are stored in consecutive blocks.
+   * The middle and last fragments are put while their
+   * buffers are still sealed, before they are made available
+   * to other threads, so they are always the first user
+   * record of their block.
+   *
+   * <p>The block containing the FRAGMENT_LAST becomes the
+   * fillBuffer for the lane, and the caller waits for it
+   * to be forced as for any other record.  Blocks are forced in BSN
+   * order, so the entire record is durable when
+   * the wait completes.
+   *
+   * @param write true to write the block containing the
+   * FRAGMENT_LAST without waiting for a force.
+   * @param startPut System.nanoTime() when the put started.
+   * @return log key of the FRAGMENT_FIRST, which is
+   * the key of the reassembled record.
+   * @throws LogRecordSizeException
+   *   when the record is larger than the maximum length
+   *   of a LogRecord.
+   * @see LogRecordType#FRAGMENT_FIRST
+   * @see LogRecord#get(LogBuffer)
+   */
+  private long putFragments(short type, byte[][] data, ByteBuffer[] buffers,
+      boolean sync, boolean write, LogKeyFuture future, long startPut)
+    throws LogRecordSizeException, LogFileOverflowException,
+                InterruptedException, IOException
+  {
+    int dataSize = 0;
+    int fields = data != null ? data.length : buffers.length;
+    for (int i=0; i < fields; ++i)
+      dataSize += (data != null ? data[i].length : buffers[i].remaining()) + 2;
+
+    // LogRecord.length is a short
+    if (dataSize > Short.MAX_VALUE)
+      throw new LogRecordSizeException(Short.MAX_VALUE);
+
+    ByteBuffer record = ByteBuffer.allocate(4 + dataSize);
+    record.putShort(type).putShort((short)dataSize);
+    for (int i=0; i < fields; ++i)
+    {
+      if (data != null)
+      {
+        record.putShort((short)data[i].length).put(data[i]);
+      }
+      else
+      {
+        record.putShort((short)buffers[i].remaining());
+        record.put(buffers[i].duplicate());
+      }
+    }
+    record.flip();
+
+    int lane = lane();
+    long token = 0;
+    long lastBSN = 0;
+    LogBuffer currentBuffer = null;
+
+    synchronized(bufferManagerLock)
+    {
+      while (continuationThread != null)
+        bufferManagerLock.wait();
+      continuationThread = Thread.currentThread();
+      ++continuedRecords;
+    }
+
+    try
+    {
+      while (record.hasRemaining())
+      {
+        boolean first = token == 0;
+        long bsn = 0;
+        long fragmentKey = 0;
+
+        synchronized(bufferManagerLock)
+        {
+          // Another lane may already hold the next BSN, so the
+          // fragments would not be in consecutive blocks after the
+          // lane's fillBuffer.  That buffer is queued instead, and
+          // the FRAGMENT_FIRST starts the next BSN.
+          currentBuffer = first ? fillBuffer(lane) : null;
+          if (currentBuffer != null && currentBuffer.bsn != nextFillBSN - 1)
+            fqAdd(currentBuffer);
+
+          // FRAGMENT_FIRST uses what is left of the lane's fillBuffer
+          while ((currentBuffer = first ? getFillBuffer(lane) : nextBuffer()) == null)
+          {
+            long startBufferWait = System.nanoTime();
+            ++waitForBuffer;
+            bufferManagerLock.wait();
+            waitForBufferLatency.recordSince(startBufferWait);
+          }
+
+          // Middle and last fragments are put while the buffer is
+          // still sealed, so a thread holding a stale reference to
+          // the buffer cannot put a record ahead of the fragment.
+          if (!first) currentBuffer.initThread = Thread.currentThread();
+          try {
+            fragmentKey = currentBuffer.putFragment(first, record, sync);
+          } finally {
+            if (!first) currentBuffer.initThread = null;
+          }
+
+          if (record.hasRemaining())
+          {
+            // buffer is full
+            bsn = currentBuffer.bsn;
+            fqAdd(currentBuffer);
+          }
+          else
+          {
+            // subsequent records follow the FRAGMENT_LAST
+            lastBSN = currentBuffer.bsn;
+            if (!first) currentBuffer.unseal();
+            fillBuffers.set(lane, currentBuffer);
+          }
+        }
+
+        if (first) token = fragmentKey;
+
+        if (bsn != 0)
+        {
+          ++noRoomInBuffer;
+          force(false, bsn);
+        }
+      }
+    }
+    finally
+    {
+      synchronized(bufferManagerLock)
+      {
+        continuationThread = null;
+        bufferManagerLock.notifyAll();
+      }
+    }
+
+    completePut(currentBuffer, token, sync, future, startPut);
+
+    if (write)
+      write(lastBSN);
+
+    return token;
+  }
+
+  /**
+   * forces or waits for the buffer containing a record
+   * that has been put into <i> currentBuffer </i>.
+   * <p>Common tail of put() and commit().
+   * @param currentBuffer LogBuffer containing the record.
+   * @param token log key of the record.
+   * @param sync true if caller should wait for the force.
+   * @param future LogKeyFuture to be completed when the
+   * record is forced instead of waiting for the force.
+   * @param startPut System.nanoTime() when the put started.
+   * Used to record the put to durable latency when
+   * the caller waits for the force.
+   */
+  private void completePut(LogBuffer currentBuffer, long token, boolean sync, LogKeyFuture future,
+      long startPut)
+    throws InterruptedException, IOException
+  {
+    boolean forceNow = false;
+    long bsn = 0;
+
+    if (sync && flushPartialBuffers && (buffersWaitingForce == 0 || !pendingBuffers.isEmpty()))
+    {
       synchronized(bufferManagerLock)
       {
-        while((currentBuffer = getFillBuffer()) == null)
-        {
-          ++waitForBuffer;
-          bufferManagerLock.wait();
-        }
+        // make sure some other thread has not already queued the buffer;
+        // pending buffers are not in the forceQueue, so nobody will force them
+        forceNow = (buffersWaitingForce == pendingBuffers.size() &&
+            (isFillBuffer(currentBuffer) || pendingBuffers.contains(currentBuffer)));
+        if (forceNow)
+        {
+          bsn = currentBuffer.bsn;
+          fqAdd(currentBuffer);
+        }
+        // TODO: log  this event  level DEBUG
+      }
+    }
+
+    if (forceNow)
+    {
+      try {
+        force(true, bsn);
+      } catch (IOException e) {
+        // the buffer is never completed, so release our count
+        // or flushAll() will wait for it forever
+        releaseBuffer(currentBuffer);
+        throw e;
+      }
+    }
+
+    if (future != null)
+    {
+      // completed by completeBuffer() when the buffer is forced
+      future.setKey(token);
+      if (!currentBuffer.addFuture(future))
+        releaseBuffer(currentBuffer);
+    }
+    else if (forceNow && forceManager == null)
+    {
+      releaseBuffer(currentBuffer);
+      putLatency.recordSince(startPut);
+    }
+    else if (sync)  // otherwise sync as requested by caller
+    {
+      sync(currentBuffer);
+      putLatency.recordSince(startPut);
+    }
+  }
+
+  /**
+   * puts a record into <i> lb </i> using the byte[][] or the
+   * ByteBuffer[] form of the record, whichever is not null,
+   * or claims the record for <i> reservation </i>.
+   * @return log key, or 0 if there is no room in <i> lb </i>.
+   */
+  private long putRecord(LogBuffer lb, short type, byte[][] data, ByteBuffer[] buffers,
+      LogReservation reservation, boolean sync)
+    throws LogRecordSizeException
+  {
+    if (reservation != null) return lb.claim(type, reservation);
+    return data != null ? lb.put(type, data, sync) : lb.put(type, buffers, sync);
+  }
+
+  /**
+   * writes each byte[][] of <i> records </i> to the log and
+   * returns an array of log keys.
+   *
+   * <p>Buffers that are filled by the batch are moved to the
+   * forceQueue as they fill, but the calls to force() are
+   * deferred until the entire batch has been written, so that
+   * all of the buffers go through the force path together.
+   * If the buffer pool is exhausted before the batch is
+   * complete, the deferred forces are issued so buffers can
+   * be returned to the pool.
+   *
+   * <p>If <i> sync </i> is true, the caller waits once for the
+   * buffer containing the last record to be forced.  Buffers
+   * are forced in BSN order, so all prior records of the batch
+   * are also on disk when the wait completes.
+   *
+   * @param type record type for all records of the batch.
+   * @param records array of records to be written.
+   * @param sync true if caller should wait for the batch to be forced.
+   * @return log keys for the records in the same order as <i> records </i>.
+   * @throws LogRecordSizeException
+   *   when size of one of the records is larger than the maximum possible
+   *   record for the configured buffer size.  Records prior to the
+   *   failing record have been written to the log.
+   * @see #put(short, byte[][], boolean)
+   */
+  long[] putBatch(short type, byte[][][] records, boolean sync)
+    throws LogRecordSizeException, LogFileOverflowException,
+                InterruptedException, IOException
+  {
+    long[] keys = new long[records.length];
+    if (records.length == 0) return keys;
+
+    int last = records.length - 1;
+    int deferredForces = 0;   // buffers moved to the forceQueue by this batch
+    LogBuffer currentBuffer = null;
+    int lane = lane();
+
+    try
+    {
+      for (int i = 0; i < records.length; )
+      {
+        // only the buffer containing the last record is synchronized
+        boolean syncRecord = sync && i == last;
+        long token = 0;
 
-        token = currentBuffer.put(type, data, sync);
-        if (sync && buffersWaitingForce == 0)
-        {
-          forceNow = flushPartialBuffers;
-          // TODO: log  this event  level DEBUG
-        }
-        if (token == 0 || forceNow)
+        currentBuffer = fillBuffer(lane);
+        if (currentBuffer != null)
+          token = currentBuffer.put(type, records[i], syncRecord);
+
+        if (token == 0)
         {
-          fqAdd(currentBuffer);
+          synchronized(bufferManagerLock)
+          {
+            if ((currentBuffer = getFillBuffer(lane)) == null && deferredForces == 0)
+            {
+              long startBufferWait = System.nanoTime();
+              do {
+                ++waitForBuffer;
+                bufferManagerLock.wait();
+              } while((currentBuffer = getFillBuffer(lane)) == null && deferredForces == 0);
+              waitForBufferLatency.recordSince(startBufferWait);
+            }
+
+            if (currentBuffer != null)
+            {
+              token = currentBuffer.put(type, records[i], syncRecord);
+              if (token == 0)
+              {
+                fqAdd(currentBuffer);
+                ++deferredForces;
+                ++noRoomInBuffer;
+              }
+            }
+          }
+
+          if (currentBuffer == null)
+          {
+            // no free buffers; force the buffers we filled so they can be reused
+            deferredForces = 0;
+            forceBatch();
+          }
+
+          if (token == 0) continue;
         }
-      }
 
-      if (token == 0)
-      {
-        // force current buffer if there was no room for data
-        ++noRoomInBuffer;
-        force(false);
-      }
-      else if (forceNow)
-      {
-        force(true);
-        releaseBuffer(currentBuffer);
+        keys[i++] = token;
       }
-      else if (sync)  // otherwise sync as requested by caller
+
+      if (sync && flushPartialBuffers)
       {
-        sync(currentBuffer);
+        synchronized(bufferManagerLock)
+        {
+          // include the partial buffer with the other buffers of this batch
+          if (isFillBuffer(currentBuffer))
+          {
+            fqAdd(currentBuffer);
+            ++deferredForces;
+          }
+        }
       }
+    }
+    finally
+    {
+      // every buffer moved to the forceQueue must be forced
+      if (deferredForces > 0)
+        forceBatch();
+    }
 
-    } while (token == 0);
+    if (sync)
+      sync(currentBuffer);
 
-    return token;
+    return keys;
   }
 
   /**
@@ -728,21 +2371,18 @@ class LogBufferManager extends LogObject
    */
   void forceCurrentBuffer() throws IOException
   {
-    LogBuffer buffer = null;
+    long bsn = 0;
 
     synchronized(bufferManagerLock)
     {
-      if (fillBuffer != null)
-      {
-        buffer = fillBuffer;
-        fqAdd(buffer);
-      }
+      bsn = fqAddAll();
     } // release bufferManagerLock before we issue a force.
 
-    if (buffer != null)
+    if (bsn != 0)
     {
       try {
-        force(true);
+        force(true, bsn);
+        if (forceManager != null) waitForForce(bsn);
       } catch (InterruptedException e) {
         ; // ignore
       }
@@ -770,7 +2410,7 @@ class LogBufferManager extends LogObject
   void replay(ReplayListener listener, long mark, boolean replayCtrlRecords)
   	throws LogConfigurationException, InvalidLogKeyException
   {
-    int bsn = bsnFromMark(mark);
+    long bsn = bsnFromMark(mark);
     if (mark < 0 || (bsn == 0 && mark != 0))
       throw new InvalidLogKeyException(Long.toHexString(mark));
 
@@ -786,6 +2426,7 @@ class LogBufferManager extends LogObject
     // get a LogRecord from caller
     LogRecord record = listener.getLogRecord();
     record.buffer = buffer;
+    record.fragmentKey = 0;
 
     // read block containing requested mark
     try {
@@ -820,7 +2461,7 @@ class LogBufferManager extends LogObject
 
     // verify we have the desired block
     // if requested mark == 0 then we start with the oldest block available
-    int markBSN = (mark == 0) ? buffer.bsn : bsnFromMark(mark);
+    long markBSN = (mark == 0) ? buffer.bsn : bsnFromMark(mark);
     if (markBSN != buffer.bsn) {
       InvalidLogBufferException lbe = new InvalidLogBufferException(
           "block read [" + buffer.bsn + "] not block requested: " + markBSN);
@@ -844,7 +2485,8 @@ class LogBufferManager extends LogObject
         while(record.key < mark) {
           record.get(buffer);
         }
-        if (record.key != mark) {
+        // a continued record is returned when its last fragment is read
+        if (record.key != mark && record.fragmentKey != mark) {
           String msg = "The initial mark [" + Long.toHexString(mark) +
             "] requested for replay was not found in the log.";
           // BUG 300733 following line changed to throw an exception
@@ -860,41 +2502,239 @@ class LogBufferManager extends LogObject
      * If we get this far then we have found the requested mark.
      * Replay the log starting at the requested mark through the end of log.
      */
-    long nrecs = 0;
-    int nextBSN = 0;
-    while (true) {
-      if (record.isEOB()) {
-        // read next block from log
-        nextBSN = buffer.bsn + 1;
+    ReplayReader reader = null;
+    int readAhead = config.getReplayReadAhead();
+    if (readAhead > 0)
+    {
+      try {
+        reader = new ReplayReader(readAhead, buffer.bsn + 1);
+      } catch (ClassNotFoundException e) {
+        throw new LogConfigurationException(e.toString());
+      }
+    }
+
+    try {
+      long nrecs = 0;
+      long nextBSN = 0;
+      while (true) {
+        if (record.isEOB()) {
+          // read next block from log
+          nextBSN = buffer.bsn + 1;
+          try {
+            if (reader == null)
+              lfm.read(buffer, nextBSN);
+            else if ((buffer = reader.next()) != null)
+              record.buffer = buffer;
+          } catch (IOException e) {
+            listener.onError(new LogException(e.toString()));
+            return;
+          } catch (InvalidLogBufferException e) {
+            listener.onError(new LogException(e.toString()));
+            return;
+          } catch (InterruptedException e) {
+            listener.onError(new LogException(e.toString()));
+            return;
+          }
+
+          // return end of log indicator
+          if (buffer == null || buffer.bsn == -1 || buffer.bsn < nextBSN) {
+            record.type = LogRecordType.END_OF_LOG;
+            listener.onRecord(record);
+            return;
+          }
+        }
+        else if (!record.isCTRL() || replayCtrlRecords) {
+          listener.onRecord(record);
+        }
+
+        ++nrecs;
+
+        // get next record
         try {
-          lfm.read(buffer, nextBSN);
-        } catch (IOException e) {
-          listener.onError(new LogException(e.toString()));
-          return;
+          record.get(buffer);
         } catch (InvalidLogBufferException e) {
-          listener.onError(new LogException(e.toString()));
+          listener.onError(e);
           return;
         }
+      }
+    }
+    finally
+    {
+      if (reader != null) reader.close();
+    }
+  }
 
-        // return end of log indicator
-        if (buffer.bsn == -1 || buffer.bsn < nextBSN) {
-          record.type = LogRecordType.END_OF_LOG;
-          listener.onRecord(record);
-          return;
-        }
+  /**
+   * reads blocks ahead of replay() into a ring of LogBuffers.
+   *
+   * <p>The blocks are read, and their checksums verified, by a
+   * separate thread while the replay thread passes the records
+   * of the previous blocks to the ReplayListener.  The ring
+   * contains one buffer for the block being replayed plus
+   * one buffer for each block read ahead.
+   *
+   * <p>The reader stops at the end of the log, or when a block
+   * cannot be read.  The error is returned to the replay thread
+   * when it asks for the block that could not be read.
+   *
+   * @see Configuration#setReplayReadAhead(int)
+   */
+  class ReplayReader implements Runnable
+  {
+    /**
+     * buffers used to read blocks.
+     * <p>Block <i> n </i> of the replay is read into
+     * ring[n % ring.length].
+     */
+    private final LogBuffer[] ring;
+
+    /**
+     * number of blocks read into the ring.
+     * <p>protected by this ReplayReader.
+     */
+    private int put = 0;
+
+    /**
+     * number of blocks returned by next().
+     * <p>protected by this ReplayReader.
+     */
+    private int get = 0;
+
+    /**
+     * BSN of the next block to be read.
+     */
+    private long nextBSN;
+
+    /**
+     * true while the replay thread is using the buffer
+     * returned by the last call to next().
+     * <p>protected by this ReplayReader.
+     */
+    private boolean holding = false;
+
+    /**
+     * set true when the reader thread has stopped
+     * at the end of the log or after an error.
+     * <p>protected by this ReplayReader.
+     */
+    private boolean done = false;
+
+    /**
+     * exception that stopped the reader thread.
+     * <p>protected by this ReplayReader.
+     */
+    private Exception error = null;
+
+    /**
+     * set true by close() to stop the reader thread.
+     */
+    private volatile boolean isClosed = false;
+
+    /**
+     * construct a ReplayReader and start its thread.
+     * @param readAhead number of blocks to read ahead of replay.
+     * @param bsn BSN of the first block to be read.
+     * @throws ClassNotFoundException
+     * if the configured LogBuffer class cannot be found.
+     */
+    ReplayReader(int readAhead, long bsn)
+      throws ClassNotFoundException
+    {
+      ring = new LogBuffer[readAhead + 1];
+      for (int i = 0; i < ring.length; ++i)
+        ring[i] = getLogBuffer(-1);
+      nextBSN = bsn;
+
+      Thread thread = new Thread(this, replayReaderName);
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    /**
+     * returns the next block of the replay.
+     * <p>The buffer returned by the previous call is
+     * released to the reader thread.
+     * @return LogBuffer containing the next block, or
+     * null if the end of the log has been reached.
+     */
+    synchronized LogBuffer next()
+      throws IOException, InvalidLogBufferException, InterruptedException
+    {
+      if (holding) {
+        // release the buffer returned by the previous call
+        ++get;
+        holding = false;
+        notifyAll();
       }
-      else if (!record.isCTRL() || replayCtrlRecords) {
-        listener.onRecord(record);
+
+      while (get == put && !done)
+        wait();
+
+      if (get < put) {
+        holding = true;
+        return ring[get % ring.length];
       }
 
-      ++nrecs;
+      if (error instanceof IOException)
+        throw (IOException)error;
+      if (error instanceof InvalidLogBufferException)
+        throw (InvalidLogBufferException)error;
+      return null;
+    }
 
-      // get next record
-      try {
-        record.get(buffer);
-      } catch (InvalidLogBufferException e) {
-        listener.onError(e);
-        return;
+    /**
+     * stop the reader thread.
+     */
+    synchronized void close()
+    {
+      isClosed = true;
+      notifyAll();
+    }
+
+    public void run()
+    {
+      while (true)
+      {
+        LogBuffer lb = null;
+        synchronized(this)
+        {
+          // wait for the replay thread to release a buffer
+          while (put - get == ring.length && !isClosed)
+          {
+            try {
+              wait();
+            } catch (InterruptedException e) {
+              isClosed = true;
+            }
+          }
+          if (isClosed) return;
+          lb = ring[put % ring.length];
+        }
+
+        Exception e = null;
+        try {
+          lfm.read(lb, nextBSN);
+        } catch (IOException ioe) {
+          e = ioe;
+        } catch (InvalidLogBufferException lbe) {
+          e = lbe;
+        }
+
+        synchronized(this)
+        {
+          if (e != null || lb.bsn == -1 || lb.bsn < nextBSN)
+          {
+            // end of log or a block that cannot be read
+            error = e;
+            done = true;
+            notifyAll();
+            return;
+          }
+
+          ++put;
+          ++nextBSN;
+          notifyAll();
+        }
       }
     }
   }
@@ -912,7 +2752,13 @@ class LogBufferManager extends LogObject
   void open()
     throws ClassNotFoundException
   {
+    forcePolicy = getForcePolicy();
+
     int bufferPoolSize = config.getMinBuffers();
+
+    // leave at least one half of the pool for buffers waiting to be forced
+    int lanes = Math.max(1, Math.min(config.getAppendLanes(), bufferPoolSize / 2));
+    fillBuffers = new AtomicReferenceArray(lanes);
     freeBuffer = new LogBuffer[bufferPoolSize];
     bufferList = new LogBuffer[bufferPoolSize];
     for (short i=0; i< bufferPoolSize; ++i)
@@ -937,6 +2783,10 @@ class LogBufferManager extends LogObject
 
       flushManagerTask = config.getScheduler().scheduleWithFixedDelay(flushManager, flushSleepTime, flushSleepTime, TimeUnit.MILLISECONDS);
     }
+
+    if (forceManager != null) {
+      forceManager.start();
+    }
   }
 
   /**
@@ -949,6 +2799,11 @@ class LogBufferManager extends LogObject
       flushManager.isClosed = true; // BUG 303659
       flushManagerTask.cancel(false); // Stop further flushing
     }
+
+    // stop the force manager after flushAll() has emptied the forceQueue
+    if (forceManager != null) {
+      forceManager.shutdown();
+    }
   }
 
   /**
@@ -958,7 +2813,7 @@ class LogBufferManager extends LogObject
    * log files for writing buffers.
    * @param bsn last Block Sequence Number written by Logger.
    */
-  void init(LogFileManager lfm, int bsn)
+  void init(LogFileManager lfm, long bsn)
   {
     assert lfm != null : "LogFileManager parameter is null";
     this.lfm = lfm;
@@ -967,6 +2822,7 @@ class LogBufferManager extends LogObject
     synchronized(forceManagerLock)
     {
       nextWriteBSN = nextFillBSN;
+      lastForceBSN = bsn;   // blocks written by a previous execution are durable
     }
   }
 
@@ -978,25 +2834,24 @@ class LogBufferManager extends LogObject
    */
   void flushAll() throws IOException
   {
-    LogBuffer buffer = null;
+    long bsn = 0;
     try
     {
       // BUG 303659 prevent hang if FlushManager thread has stopped
-      // move current fillBuffer to forceQueue
+      // move current fillBuffers to forceQueue
       synchronized(bufferManagerLock)
       {
-        if (fillBuffer != null)
-        {
-          buffer = fillBuffer;
-          fqAdd(buffer);
-        }
+        bsn = fqAddAll();
       } // release bufferManagerLock before we issue a force.
 
-      if (buffer != null)
+      if (bsn != 0)
       {
-          force(true);
+          force(true, bsn);
       }
 
+      // buffers written by write() are not forced by their writer
+      if (hasUnforcedBuffers()) forceBuffers();
+
       // wait until all buffers are returned to the freeBuffer pool
       for (int i=0; i < freeBuffer.length; ++i)
       {
@@ -1056,14 +2911,20 @@ class LogBufferManager extends LogObject
            "\n  <growPoolCounter value='" + growPoolCounter + "'>Number of times buffer pool was grown</growPoolCounter>" +
            "\n  <bufferwait  value='" + getWaitForBuffer()     + "'>Wait for available buffer</bufferwait>" +
            "\n  <bufferfull  value='" + noRoomInBuffer    + "'>Buffer full</bufferfull>" +
+           "\n  <continuedRecords value='" + continuedRecords + "'>Records stored as fragments in consecutive blocks</continuedRecords>" +
+           "\n  <partialLaneBlocks value='" + partialLaneBlocks + "'>Buffers of other lanes written before they were full to keep blocks in BSN order</partialLaneBlocks>" +
            "\n  <nextfillbsn value='" + nextFillBSN       + "'></nextfillbsn>" +
            "\n  <writeStats>" +
            "\n    <writeCount  value='" + writeCount        + "'>Number of channel.write() calls</writeCount>" +
+           "\n    <gatheringWriteCount value='" + gatheringWriteCount + "'>Number of gathering writes of more than one buffer</gatheringWriteCount>" +
            "\n    <totalWriteTime   value='" + totalWriteTime         + "'>Total time (ms) spent in channel.write</totalWriteTime>" +
            "\n    <avgWriteTime value='" + avgWriteTime + "'>Average channel.write() time (ms)</avgWriteTime>" +
            "\n    <maxWriteTime value='" + maxWriteTime + "'>Maximum channel.write() time (ms)</maxWriteTime>" +
            "\n    <totalWaitForWriteLockTime   value='" + totalWaitForWriteLockTime         + "'>Total time (ms) spent waiting for forceManagerLock to issue a write</totalWaitForWriteLockTime>" +
            "\n    <avgWaitForWriteLockTime   value='" + avgWaitForWriteLockTime         + "'>Average time (ms) spent waiting for forceManagerLock to issue a write</avgWaitForWriteLockTime>" +
+           writeLatency.getStats("writeLatency", "channel.write() time") +
+           waitForWriteLockLatency.getStats("waitForWriteLockLatency", "time waiting for forceManagerLock") +
+           waitForBufferLatency.getStats("waitForBufferLatency", "time waiting for an available buffer") +
            "\n  </writeStats>" +
            "\n  <forceStats>" +
            "\n    <forceCount  value='" + forceCount        + "'>Number of channel.force() calls</forceCount>" +
@@ -1078,6 +2939,8 @@ class LogBufferManager extends LogObject
            "\n    <maxBuffersForced value='" + maxBuffersForced + "'>Maximum number of buffers forced</maxBuffersForced>" +
            "\n    <maxThreadsWaitingForce value='" + maxThreadsWaitingForce + "'>maximum threads waiting</maxThreadsWaitingForce>" +
            "\n    <avgThreadsWaitingForce value='" + avgThreadsWaitingForce + "'>Avg threads waiting force</avgThreadsWaitingForce>" +
+           forceLatency.getStats("forceLatency", "channel.force() time") +
+           putLatency.getStats("putLatency", "put() to durable time for sync puts") +
            "\n  </forceStats>" +
            "\n  <forceReasons>" +
            "\n    <forceOnTimeout value='" + forceOnTimeout + "'></forceOnTimeout>" +
@@ -1085,6 +2948,11 @@ class LogBufferManager extends LogObject
            "\n    <forceHalfOfBuffers value='" + forceHalfOfBuffers + "'>force due to 1/2 of buffers waiting</forceHalfOfBuffers>" +
            "\n    <forceMaxWaitingThreads value='" + forceMaxWaitingThreads + "'>force due to max waiting threads</forceMaxWaitingThreads>" +
            "\n    <forceOnFileSwitch value='" + forceOnFileSwitch + "'>force last block prior to switching to next file</forceOnFileSwitch>" +
+           "\n    <forceWaiterWakeups value='" + forceWaiterWakeups + "'>threads unparked after their buffers were forced</forceWaiterWakeups>" +
+           "\n    <durableMarkListenerErrors value='" + durableMarkListenerErrors + "'>exceptions thrown by the DurableMarkListener</durableMarkListenerErrors>" +
+           "\n    <writeWithoutForce value='" + writeWithoutForce + "'>buffers written for Durability.WRITTEN without a force</writeWithoutForce>" +
+           "\n    <forceHeld value='" + forceHeld + "'>force held by ForcePolicy to include more records</forceHeld>" +
+           "\n    <totalHoldTime value='" + totalHoldTime + "'>Total time (ms) forces were held by ForcePolicy</totalHoldTime>" +
            "\n  </forceReasons>" +
            "\n  <LogBufferPool>" +
            "\n"
@@ -1138,6 +3006,8 @@ class LogBufferManager extends LogObject
     public abstract int getMinBuffersForced();
     public abstract int getMaxBuffersForced();
     public abstract int getMaxThreadsWaitingForce();
+    public abstract double getForceTimePercentile(double percentile);
+    public abstract double getPutLatencyPercentile(double percentile);
   }
 
   public class ForceStats implements ForceStatsMBean {
@@ -1159,6 +3029,12 @@ class LogBufferManager extends LogObject
     public final int getMinBuffersForced() { return minBuffersForced; }
     public final int getMaxBuffersForced() { return maxBuffersForced; }
     public final int getMaxThreadsWaitingForce() { return maxThreadsWaitingForce; }
+    public final double getForceTimePercentile(double percentile) {
+      return forceLatency.getMillisAtPercentile(percentile);
+    }
+    public final double getPutLatencyPercentile(double percentile) {
+      return putLatency.getMillisAtPercentile(percentile);
+    }
   }
 
   public interface WriteStatsMBean {
@@ -1167,6 +3043,9 @@ class LogBufferManager extends LogObject
     public abstract double getMaximumWriteTime();
     public abstract double getAverageWaitForWriteLockTime();
     public abstract long getWaitForBuffer();
+    public abstract double getWriteTimePercentile(double percentile);
+    public abstract double getWaitForWriteLockTimePercentile(double percentile);
+    public abstract double getWaitForBufferTimePercentile(double percentile);
   }
 
   public class WriteStats implements WriteStatsMBean
@@ -1183,6 +3062,15 @@ class LogBufferManager extends LogObject
       LogBufferManager parent = LogBufferManager.this;
       return parent.getWaitForBuffer();
     }
+    public final double getWriteTimePercentile(double percentile) {
+      return writeLatency.getMillisAtPercentile(percentile);
+    }
+    public final double getWaitForWriteLockTimePercentile(double percentile) {
+      return waitForWriteLockLatency.getMillisAtPercentile(percentile);
+    }
+    public final double getWaitForBufferTimePercentile(double percentile) {
+      return waitForBufferLatency.getMillisAtPercentile(percentile);
+    }
   }
 
   /**
@@ -1192,9 +3080,9 @@ class LogBufferManager extends LogObject
    *
    * @return BSN portion of <i> mark </i>
    */
-  int bsnFromMark(long mark)
+  long bsnFromMark(long mark)
   {
-    return (int) (mark >> 24);
+    return mark >> offsetBits;
   }
 
   /**
@@ -1204,9 +3092,24 @@ class LogBufferManager extends LogObject
    * <p>May be zero to allow access to the beginning of a block.
    * @return a log key.
    */
-  long markFromBsn(int bsn, int offset)
+  long markFromBsn(long bsn, int offset)
+  {
+    return (bsn << offsetBits) | offset;
+  }
+
+  /**
+   * sets the number of log key bits used for the offset
+   * of a record within its block.
+   * <p>Called by LogFileManager.init() with the value stored
+   * in the FILE_HEADER of existing log files, before any
+   * buffers are filled.
+   * @param offsetBits number of bits for the offset.
+   */
+  void setOffsetBits(int offsetBits)
   {
-    return ((long)bsn << 24) | offset;
+    this.offsetBits = offsetBits;
+    for (int i = 0; i < bufferList.length; ++i)
+      bufferList[i].offsetBits = offsetBits;
   }
 
   /**
@@ -1249,6 +3152,7 @@ class LogBufferManager extends LogObject
     public void run()
     {
       LogBuffer buffer = null;
+      long bsn = 0;
 
       long waitForBuffer = parent.getWaitForBuffer();
 
@@ -1322,6 +3226,9 @@ class LogBufferManager extends LogObject
                   fqPut = fqx % forceQueue.length;  // guarantee value is valid
                 }
               }
+
+              // ForceManager may have seen fqGet and fqPut while they were being reset
+              if (forceManager != null) forceManager.signal();
             }
           }
           waitForBuffer = parent.getWaitForBuffer();
@@ -1329,21 +3236,41 @@ class LogBufferManager extends LogObject
           // end of resizing buffer pool logic
           // TODO: refactor to a method
 
+          bsn = 0;
           synchronized(bufferManagerLock)
           {
-            buffer = fillBuffer;
-            if (buffer != null && buffer.shouldForce())
+            for (int i = 0; i < fillBuffers.length(); ++i)
+            {
+              buffer = fillBuffer(i);
+              if (buffer != null && buffer.shouldForce(forcePolicy))
+              {
+                bsn = Math.max(bsn, buffer.bsn);
+                fqAdd(buffer);
+              }
+            }
+
+            // full buffers held back by an older lane that did not fill in time
+            for (int i = pendingBuffers.size() - 1; i >= 0; --i)
             {
-              fqAdd(buffer);
+              buffer = (LogBuffer)pendingBuffers.get(i);
+              if (buffer.shouldForce(forcePolicy))
+              {
+                bsn = Math.max(bsn, fqFlush(buffer.bsn, true));
+                break;
+              }
             }
-            else
-              buffer = null;
           } // release bufferManagerLock before we issue a force.
 
-          if (buffer != null)
+          if (bsn != 0)
+          {
+              parent.forceOnTimeout++;
+              force(true, bsn);
+          }
+          else if (hasUnforcedBuffers())
           {
+              // force buffers written by write()
               parent.forceOnTimeout++;
-              force(true);
+              forceBuffers();
           }
         }
         catch (InterruptedException e)
@@ -1358,5 +3285,175 @@ class LogBufferManager extends LogObject
         }
     }
   }
-}
 
+  /**
+   * A thread waiting for all blocks up to and including
+   * <i> bsn </i> to be forced.
+   * 
+   * <p>ForceWaiter objects are kept in the forceWaiters
+   * queue ordered by BSN so that a completed force unparks
+   * exactly the threads whose blocks are durable.
+   */
+  static final class ForceWaiter implements Comparable
+  {
+    /**
+     * BSN of the block the thread is waiting for.
+     */
+    final long bsn;
+
+    /**
+     * the waiting thread.
+     */
+    final Thread thread = Thread.currentThread();
+
+    /**
+     * set true, under forceManagerLock, before the thread is unparked.
+     */
+    volatile boolean done = false;
+
+    ForceWaiter(long bsn)
+    {
+      this.bsn = bsn;
+    }
+
+    public int compareTo(Object o)
+    {
+      long other = ((ForceWaiter)o).bsn;
+      return bsn < other ? -1 : (bsn == other ? 0 : 1);
+    }
+  }
+
+  /**
+   * dedicated thread that writes and forces buffers
+   * from the forceQueue.
+   *
+   * <p>When the ForceManager is running, application threads
+   * never call channel.write() or channel.force().  Threads that
+   * add buffers to the forceQueue call signal() and then wait
+   * in LogBuffer.sync() for the buffer to be forced.
+   *
+   * <p>Every buffer that is in the forceQueue when the ForceManager
+   * wakes up is written and included in a single force.
+   *
+   * @see Configuration#setDedicatedForceThread(boolean)
+   */
+  class ForceManager implements Runnable
+  {
+    /**
+     * mutex used by the ForceManager to wait for
+     * buffers to be added to the forceQueue.
+     */
+    private final Object forceQueueLock = new Object();
+
+    /**
+     * set true by shutdown() to stop the thread.
+     */
+    private volatile boolean isClosed = false;
+
+    /**
+     * thread running this ForceManager.
+     */
+    private Thread thread = null;
+
+    /**
+     * start the ForceManager thread.
+     */
+    void start()
+    {
+      isClosed = false;
+      thread = new Thread(this, forceManagerName);
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    /**
+     * stop the ForceManager thread and wait for it to end.
+     * <p>The ForceManager writes any buffers remaining in
+     * the forceQueue before it ends.
+     */
+    void shutdown()
+    {
+      isClosed = true;
+      signal();
+      if (thread != null)
+      {
+        try {
+          thread.join();
+        } catch (InterruptedException e) {
+          // ignore it
+        }
+        thread = null;
+      }
+    }
+
+    /**
+     * notify the ForceManager that a buffer has been added
+     * to the forceQueue.
+     */
+    void signal()
+    {
+      synchronized(forceQueueLock)
+      {
+        forceQueueLock.notifyAll();
+      }
+    }
+
+    /**
+     * waits for the time allowed by the ForcePolicy so that
+     * more buffers can be included in the next force.
+     * <p>The hold ends early if one half of the buffers
+     * are waiting in the forceQueue.
+     */
+    private void holdForce() throws InterruptedException
+    {
+      long startHold = System.currentTimeMillis();
+      long startHoldNanos = System.nanoTime();
+      long hold = 0;
+      synchronized(forceManagerLock)
+      {
+        if (fqGet == fqPut) return;
+        hold = forcePolicy.getHoldTime(startHoldNanos - forceQueue[fqGet].todNanos);
+        if (hold <= 0) return;
+        ++forceHeld;
+      }
+
+      long holdUntil = startHoldNanos + hold;
+      synchronized(forceQueueLock)
+      {
+        for (long remaining = hold; remaining > 0; remaining = holdUntil - System.nanoTime())
+        {
+          int queued = (fqPut - fqGet + forceQueue.length) % forceQueue.length;
+          if (isClosed || queued > (freeBuffer.length/2)) break;
+          forceQueueLock.wait(remaining / 1000000L, (int)(remaining % 1000000L));
+        }
+      }
+
+      synchronized(forceManagerLock)
+      {
+        totalHoldTime += elapsedTime(startHold);
+      }
+    }
+
+    public void run()
+    {
+      while (true)
+      {
+        try {
+          synchronized(forceQueueLock)
+          {
+            while (fqGet == fqPut && !isClosed)
+              forceQueueLock.wait();
+          }
+          if (fqGet == fqPut && isClosed) return;
+
+          holdForce();
+        } catch (InterruptedException e) {
+          // we have been shut down
+          return;
+        }
+
+        forceBuffers();
+      }
+    }
+  }
+}
@@ -42,8 +42,17 @@ import java.io.IOException;
 import java.io.File;
 import java.io.RandomAccessFile;
 
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
 
 /**
  * An individual file within a set of log files managed by a Logger.
@@ -56,6 +65,28 @@ import java.nio.channels.FileLock;
  */
 class LogFile
 {
+  /**
+   * logFileMode that opens the file with
+   * com.sun.nio.file.ExtendedOpenOption.DIRECT so
+   * reads and writes bypass the file system cache.
+   */
+  static final String DIRECT_MODE = "direct";
+  
+  /**
+   * logFileMode that opens the file with StandardOpenOption.DSYNC
+   * so each write returns after the data is on the media.
+   */
+  static final String DSYNC_MODE = "dsync";
+  
+  /**
+   * alignment of the ByteBuffers used with DIRECT_MODE.
+   * <p>Direct IO requires buffer addresses, file positions
+   * and transfer sizes that are multiples of the device
+   * block size.  LogBuffer sizes must be a multiple
+   * of this value as well.
+   */
+  static final int DIRECT_ALIGNMENT = 4096;
+  
   File file = null;
   
   /**
@@ -120,7 +151,20 @@ class LogFile
    * <p>Used by LogFileManager.read() to calculate offset into a file to
    * read a specific block.
    */
-  int firstBSN = 0;
+  long firstBSN = 0;
+  
+  /**
+   * format version from the FILE_HEADER of the file.
+   * <p>Set by LogFileManager when the file is opened or reused.
+   * @see LogFileManager#FORMAT_VERSION
+   */
+  int formatVersion = 0;
+  
+  /**
+   * number of log key offset bits from the FILE_HEADER of the file.
+   * <p>Version 1 files always use 24 offset bits.
+   */
+  int offsetBits = 0;
   
   /**
    * currentTimeMillis when LogFileManager switched to this LogFile. 
@@ -140,11 +184,95 @@ class LogFile
    */
   boolean newFile = true;
   
+  /**
+   * indicates that preallocate() has been called for this file.
+   * <p>Once the LogFileManager switches to a file, the file must
+   * not be extended by a background preallocation, so
+   * preallocation is attempted at most once per open.
+   * @see #preallocate(long, int)
+   */
+  boolean preallocated = false;
+  
+  /**
+   * total number of bytes written by preallocate().
+   */
+  long bytesPreallocated = 0;
+  
+  /**
+   * true if the blocks of this file may be compact blocks.
+   * <p>Set by LogFileManager from the blockFormat of the
+   * FILE_HEADER when the file is opened, or from the
+   * configuration when the LogFileManager switches to this file.
+   * @see LogFileManager#COMPACT_BLOCKS
+   */
+  boolean compactBlocks = false;
+  
+  /**
+   * file position of each block in the file, indexed
+   * by (BSN - firstBSN).
+   * 
+   * <p>Allocated by the LogFileManager when the file
+   * contains compact blocks.  Blocks no longer start
+   * at a multiple of the block size, so entries are added by
+   * write() as blocks are written, and by the LogFileManager
+   * as it reads the headers of blocks written by a previous
+   * execution.
+   * <p>null if blocks are located by their BSN.
+   * @see Configuration#isCompactBlocks()
+   */
+  long[] blockDirectory = null;
+  
+  /**
+   * number of blocks in blockDirectory.
+   * <p>synchronized on this LogFile.
+   */
+  int directorySize = 0;
+  
+  /**
+   * file position following the last block in blockDirectory.
+   * <p>synchronized on this LogFile.
+   */
+  long directoryEnd = 0;
+  
   /**
    * FileLock acquired when file is opened.
    */
   FileLock lock = null;
   
+  /**
+   * memory mapped view of the entire file.
+   * <p>Created by the first call to map().  Once the file is
+   * mapped, force() forces the mapped region instead of
+   * the FileChannel.
+   * <p>Callers must use a duplicate of the MappedByteBuffer
+   * so the position and limit of the mapping are never changed.
+   * @see #map(long)
+   */
+  volatile MappedByteBuffer mappedBuffer = null;
+  
+  /**
+   * first byte of the mapped region that has been
+   * changed since the last force().
+   * <p>Maintained by markDirty() and force() while the
+   * LogBufferManager holds its forceManagerLock.
+   */
+  int dirtyStart = Integer.MAX_VALUE;
+  
+  /**
+   * end of the mapped region that has been changed
+   * since the last force().
+   * @see #dirtyStart
+   */
+  int dirtyEnd = 0;
+  
+  /**
+   * MappedByteBuffer.force(int, int), or null if the
+   * Java runtime does not provide it.
+   * <p>The method is called by name because it is
+   * not available before Java 13.
+   */
+  private static final Method forceRange = getForceRange();
+  
   /**
    * construct an instance of LogFile for a given file name
    * @param file filename
@@ -158,8 +286,15 @@ class LogFile
    * open the file and get the associated nio FileChannel for the file.
    * 
    * <p>If the file does not exist, then the newFile member is set true.
+   * A file that was preallocated but has never been written
+   * is also considered to be a new file.
    * 
-   * @param fileMode value passed to RandomAccessFile constructor.
+   * <p>If <i> fileMode </i> is DIRECT_MODE or DSYNC_MODE the channel
+   * is opened for read and write with ExtendedOpenOption.DIRECT
+   * or StandardOpenOption.DSYNC.
+   * 
+   * @param fileMode value passed to RandomAccessFile constructor,
+   * DIRECT_MODE or DSYNC_MODE.
    * @throws FileNotFoundException
    * if the parent directory structure does not exist. 
    * @see java.io.RandomAccessFile#RandomAccessFile(java.lang.String, java.lang.String)
@@ -174,7 +309,21 @@ class LogFile
     // if it already existed, but length is zero, then it is still a new file
     if (!newFile) newFile = file.length() == 0;
     
-    channel = new RandomAccessFile(file, fileMode).getChannel();
+    if (fileMode.equals(DIRECT_MODE) || fileMode.equals(DSYNC_MODE))
+    {
+      OpenOption option = fileMode.equals(DIRECT_MODE) ?
+          getDirectOption() : StandardOpenOption.DSYNC;
+      try {
+        channel = FileChannel.open(file.toPath(), new OpenOption[] {
+            StandardOpenOption.READ, StandardOpenOption.WRITE,
+            StandardOpenOption.CREATE, option });
+      } catch (IOException e) {
+        throw new LogConfigurationException("Unable to open " + file.getAbsolutePath() +
+            " with logFileMode " + fileMode, e);
+      }
+    }
+    else
+      channel = new RandomAccessFile(file, fileMode).getChannel();
     assert channel != null : "RandomAccessFile() returns null";
     
     //  FEATURE 300922; lock file to prevent simultanious access
@@ -198,9 +347,112 @@ class LogFile
     // TODO: log lock acquired
     // System.err.println(file.getName() + " open");
     
+    // a preallocated file is new until the first block is written
+    if (!newFile)
+    {
+      try {
+        ByteBuffer headerId = fileMode.equals(DIRECT_MODE) ?
+            allocateAligned(DIRECT_ALIGNMENT) : ByteBuffer.allocate(4);
+        channel.read(headerId, 0);
+        newFile = headerId.getInt(0) == 0;
+      } catch (IOException e) {
+        throw new LogConfigurationException(e);
+      }
+    }
+    
     return this;
   }
   
+  /**
+   * Returns com.sun.nio.file.ExtendedOpenOption.DIRECT.
+   * <p>The option is loaded by name because it is not
+   * available on all Java runtimes.
+   * 
+   * @return the DIRECT OpenOption.
+   * @throws LogConfigurationException
+   * if the Java runtime does not support direct IO.
+   */
+  static OpenOption getDirectOption() throws LogConfigurationException
+  {
+    try {
+      Class cls = Class.forName("com.sun.nio.file.ExtendedOpenOption");
+      return (OpenOption)Enum.valueOf(cls, "DIRECT");
+    } catch (ClassNotFoundException e) {
+      throw new LogConfigurationException("logFileMode " + DIRECT_MODE + " is not supported", e);
+    } catch (IllegalArgumentException e) {
+      throw new LogConfigurationException("logFileMode " + DIRECT_MODE + " is not supported", e);
+    }
+  }
+  
+  /**
+   * Returns the block size of the device containing <i> file </i>.
+   * <p>Returns DIRECT_ALIGNMENT if the Java runtime
+   * does not report the block size.
+   * 
+   * @param file file or directory on the device.
+   * @return block size of the device in bytes.
+   * @see FileStore
+   */
+  static int getDeviceBlockSize(File file)
+  {
+    try {
+      FileStore store = Files.getFileStore(file.toPath());
+      Method getBlockSize = FileStore.class.getMethod("getBlockSize", new Class[0]);
+      return ((Long)getBlockSize.invoke(store, new Object[0])).intValue();
+    } catch (IOException e) {
+      return DIRECT_ALIGNMENT;
+    } catch (NoSuchMethodException e) {
+      return DIRECT_ALIGNMENT;
+    } catch (IllegalAccessException e) {
+      return DIRECT_ALIGNMENT;
+    } catch (InvocationTargetException e) {
+      return DIRECT_ALIGNMENT;
+    }
+  }
+  
+  /**
+   * Returns MappedByteBuffer.force(int, int).
+   * @return the Method, or null if the Java runtime
+   * does not provide it.
+   */
+  private static Method getForceRange()
+  {
+    try {
+      return MappedByteBuffer.class.getMethod("force", new Class[] { Integer.TYPE, Integer.TYPE });
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+  }
+  
+  /**
+   * Allocates a direct ByteBuffer whose address is a
+   * multiple of DIRECT_ALIGNMENT.
+   * <p>ByteBuffer.alignedSlice() is called by name because it is
+   * not available on all Java runtimes.  Runtimes without
+   * alignedSlice() do not support DIRECT_MODE, so an unaligned
+   * buffer is returned.
+   * 
+   * @param capacity capacity of the buffer, which must be
+   * a multiple of DIRECT_ALIGNMENT.
+   * @return the aligned ByteBuffer.
+   */
+  static ByteBuffer allocateAligned(int capacity)
+  {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(capacity + DIRECT_ALIGNMENT);
+    try {
+      Method alignedSlice = ByteBuffer.class.getMethod("alignedSlice", new Class[] { Integer.TYPE });
+      buffer = (ByteBuffer)alignedSlice.invoke(buffer, new Object[] { Integer.valueOf(DIRECT_ALIGNMENT) });
+    } catch (NoSuchMethodException e) {
+      // not available -- use unaligned buffer
+    } catch (IllegalAccessException e) {
+      // not available -- use unaligned buffer
+    } catch (InvocationTargetException e) {
+      // not available -- use unaligned buffer
+    }
+    buffer.limit(capacity);
+    return buffer.slice();
+  }
+  
   /**
    * Close the channel associated with this LogFile.
    * <p>Also releases the lock that is held on the file.
@@ -235,6 +487,65 @@ class LogFile
     return this;
   }
   
+  /**
+   * removes every block from the blockDirectory.
+   * <p>called when the LogFileManager switches to this
+   * file so the blocks of the previous use of the file
+   * are not found.
+   */
+  synchronized void resetDirectory()
+  {
+    directorySize = 0;
+    directoryEnd = 0;
+  }
+  
+  /**
+   * returns the BSN of a block of this file from the low order
+   * 32 bits of the BSN stored in the block header.
+   * 
+   * <p>A file contains fewer than 2^31 blocks, so the BSN is the
+   * value closest to firstBSN with the same low order bits.
+   * Stale blocks that were written before the file was reused
+   * have a BSN less than firstBSN.
+   * <p>Until firstBSN is known the stored value is returned.
+   * 
+   * @param bsn low order bits of the BSN from the block header.
+   * @return the BSN of the block.
+   */
+  long blockBSN(int bsn)
+  {
+    return firstBSN + (bsn - (int)firstBSN);
+  }
+  
+  /**
+   * returns the file position of a block.
+   * 
+   * @param index index of the block in the file (BSN - firstBSN).
+   * @return file position of the block, or -1 if the block
+   * is not in the blockDirectory.
+   */
+  synchronized long getBlockPosition(int index)
+  {
+    return (index >= 0 && index < directorySize) ? blockDirectory[index] : -1L;
+  }
+  
+  /**
+   * adds a block to the blockDirectory.
+   * 
+   * <p>Blocks are added in file order, so the block is
+   * ignored unless it follows the last block in the directory.
+   * 
+   * @param index index of the block in the file (BSN - firstBSN).
+   * @param position file position of the block.
+   * @param size number of bytes in the block.
+   */
+  synchronized void addBlock(int index, long position, int size)
+  {
+    if (index != directorySize || index >= blockDirectory.length) return;
+    blockDirectory[directorySize++] = position;
+    directoryEnd = position + size;
+  }
+  
   /**
    * Helper provides access to the FileChannel.write() method for
    * the FileChannel associated with this LogFile.
@@ -251,6 +562,9 @@ class LogFile
         lb.rewind = false;
       }
 
+      if (blockDirectory != null)
+        addBlock((int)(lb.bsn - firstBSN), channel.position(), lb.buffer.remaining());
+
       bytesWritten += channel.write(lb.buffer);
       position = channel.position();
     } catch (IOException e) {
@@ -262,6 +576,74 @@ class LogFile
     }
   }
   
+  /**
+   * Helper provides access to the FileChannel gathering write
+   * method for the FileChannel associated with this LogFile.
+   * 
+   * <p>Writes <i> length </i> consecutive LogBuffers with a
+   * single gathering write.  All of the buffers must be
+   * assigned to this LogFile.  Only the first buffer may
+   * request a rewind.
+   * 
+   * @param lb array of LogBuffer objects to be written.
+   * @param offset index of the first LogBuffer to be written.
+   * @param length number of LogBuffers to be written.
+   * @throws IOException
+   * @see FileChannel#write(ByteBuffer[], int, int)
+   */
+  void write(LogBuffer[] lb, int offset, int length) throws IOException
+  {
+    if (length == 1)
+    {
+      write(lb[offset]);
+      return;
+    }
+
+    ByteBuffer[] srcs = new ByteBuffer[length];
+    long remaining = 0;
+    for (int i = 0; i < length; ++i)
+    {
+      assert lb[offset + i].lf == this : "LogBuffer is not assigned to " + file.getName();
+      assert i == 0 || !lb[offset + i].rewind : "rewind requested within gathering write";
+      srcs[i] = lb[offset + i].buffer;
+      remaining += srcs[i].remaining();
+    }
+
+    try {
+      if (lb[offset].rewind)
+      {
+        channel.position(0);
+        ++rewindCounter;
+        lb[offset].rewind = false;
+      }
+
+      if (blockDirectory != null)
+      {
+        long blockPosition = channel.position();
+        for (int i = 0; i < length; ++i)
+        {
+          addBlock((int)(lb[offset + i].bsn - firstBSN), blockPosition, srcs[i].remaining());
+          blockPosition += srcs[i].remaining();
+        }
+      }
+
+      // a gathering write may return before all bytes are written
+      while (remaining > 0)
+      {
+        long bytes = channel.write(srcs);
+        bytesWritten += bytes;
+        remaining -= bytes;
+      }
+      position = channel.position();
+    } catch (IOException e) {
+      // BUG 303907 - add message to IOException
+      IOException ioe = new IOException("LogFile.write(): attempting to write " + 
+          file.getName() + " [" + e.getMessage() + "]");
+      ioe.setStackTrace(e.getStackTrace());
+      throw ioe;
+    }
+  }
+  
   /**
    * Helper provides access to the FileChannel.force() method for
    * the FileChannel associated with this LogFile.
@@ -279,14 +661,25 @@ class LogFile
    * method *always* does a force() regardless of
    * the file open mode.
    * 
+   * <p>If the file is memory mapped, the MappedByteBuffer is
+   * forced instead, and <i> forceMetadata </i> is ignored.
+   * Only the region changed since the last force is forced
+   * if the Java runtime provides MappedByteBuffer.force(int, int).
+   * 
    * @param forceMetadata as defined by FileChannel.force()
    * @throws IOException
    * @see FileChannel#force(boolean)
+   * @see MappedByteBuffer#force()
+   * @see #markDirty(long, int)
    */
   void force(boolean forceMetadata) throws IOException
   {
     try {
-      channel.force(forceMetadata);
+      MappedByteBuffer mappedBuffer = this.mappedBuffer;
+      if (mappedBuffer != null)
+        forceMapped(mappedBuffer);
+      else
+        channel.force(forceMetadata);
     } catch (IOException e) {
       // BUG 303907 - add message to IOException
       IOException ioe = new IOException("LogFile.force(): attempting to force" + 
@@ -296,6 +689,130 @@ class LogFile
     }
   }
   
+  /**
+   * forces the region of <i> mappedBuffer </i> that has
+   * been changed since the last force.
+   * <p>The entire mapping is forced if the Java runtime does
+   * not provide MappedByteBuffer.force(int, int), or if
+   * no changed region has been recorded.
+   * @param mappedBuffer the mapping of this LogFile.
+   */
+  private void forceMapped(MappedByteBuffer mappedBuffer)
+  {
+    int start = dirtyStart;
+    int end = dirtyEnd;
+    dirtyStart = Integer.MAX_VALUE;
+    dirtyEnd = 0;
+    
+    if (forceRange != null && start < end)
+    {
+      try {
+        forceRange.invoke(mappedBuffer, new Object[] { Integer.valueOf(start), Integer.valueOf(end - start) });
+        return;
+      } catch (IllegalAccessException e) {
+        // not available -- force the entire mapping
+      } catch (InvocationTargetException e) {
+        // force the entire mapping, which reports the error
+      }
+    }
+    mappedBuffer.force();
+  }
+  
+  /**
+   * records that the mapped region at <i> position </i>
+   * has been changed and must be forced by the next force().
+   * <p>PRECONDITION: caller holds the forceManagerLock
+   * of the LogBufferManager.
+   * @param position file position of the changed region.
+   * @param length number of bytes changed.
+   */
+  void markDirty(long position, int length)
+  {
+    dirtyStart = Math.min(dirtyStart, (int)position);
+    dirtyEnd = Math.max(dirtyEnd, (int)position + length);
+  }
+  
+  /**
+   * Returns a memory mapped view of the file.
+   * 
+   * <p>The file is mapped READ_WRITE on the first call, which
+   * extends the file to <i> size </i> bytes if it is smaller.
+   * Subsequent calls return the same MappedByteBuffer.
+   * 
+   * @param size number of bytes to be mapped.
+   * @return MappedByteBuffer for the file.
+   * @throws IOException
+   * if the file cannot be mapped.
+   * @see MappedBlockLogBuffer
+   */
+  synchronized MappedByteBuffer map(long size) throws IOException
+  {
+    if (mappedBuffer == null)
+    {
+      if (size > Integer.MAX_VALUE)
+        throw new IOException("LogFile.map(): size " + size + " of " +
+            file.getName() + " exceeds " + Integer.MAX_VALUE);
+      try {
+        mappedBuffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+      } catch (IOException e) {
+        // BUG 303907 - add message to IOException
+        IOException ioe = new IOException("LogFile.map(): attempting to map " + 
+            file.getName() + " [" + e.getMessage() + "]");
+        ioe.setStackTrace(e.getStackTrace());
+        throw ioe;
+      }
+    }
+    return mappedBuffer;
+  }
+  
+  /**
+   * Extend the file to <i> size </i> bytes by writing
+   * zero filled blocks past the current end of file.
+   * 
+   * <p>Writes are positional so the FileChannel.position()
+   * used by write() is not changed.  The file metadata
+   * is forced once when the file has been extended so
+   * subsequent calls to force() only need to sync data.
+   * 
+   * <p>Method is synchronized so a LogFileManager that
+   * needs the file will wait for a background
+   * preallocation to complete.  Only the first call
+   * has any effect.
+   * 
+   * @param size number of bytes to preallocate.
+   * @param blockSize number of bytes to write with each call
+   * to FileChannel.write().
+   * @throws IOException
+   */
+  synchronized void preallocate(long size, int blockSize) throws IOException
+  {
+    if (preallocated) return;
+    preallocated = true;
+    
+    try {
+      long pos = channel.size();
+      if (pos >= size) return;
+      
+      ByteBuffer zeros = fileMode.equals(DIRECT_MODE) ?
+          allocateAligned(blockSize) : ByteBuffer.allocateDirect(blockSize);
+      while (pos < size)
+      {
+        zeros.clear();
+        if (size - pos < blockSize) zeros.limit((int)(size - pos));
+        while (zeros.hasRemaining())
+          pos += channel.write(zeros, pos);
+        bytesPreallocated += zeros.limit();
+      }
+      channel.force(true);
+    } catch (IOException e) {
+      // BUG 303907 - add message to IOException
+      IOException ioe = new IOException("LogFile.preallocate(): attempting to preallocate " + 
+          file.getName() + " [" + e.getMessage() + "]");
+      ioe.setStackTrace(e.getStackTrace());
+      throw ioe;
+    }
+  }
+  
   /**
    * return statistics for this LogFile as an XML string.
    * @return XML string containing LogFile statistics.
@@ -306,6 +823,7 @@ class LogFile
     "\n  <rewindCount value='" + rewindCounter + "'>Number of times this file was rewind to position(0)</rewindCount>" +
     "\n  <bytesWritten value='" + bytesWritten + "'>Number of bytes written to the file</bytesWritten>" +
     "\n  <position value='" + position + "'>FileChannel.position()</position>" +
+    "\n  <bytesPreallocated value='" + bytesPreallocated + "'>Number of bytes written to preallocate the file</bytesPreallocated>" +
     "\n</LogFile>" +
     "\n" 
     );
@@ -69,6 +69,55 @@ class LogFileManager extends LogObject
    * @see #getLogFileForWrite(LogBuffer)
    */
   int maxBlocksPerFile = Integer.MAX_VALUE;
+  
+  /**
+   * format version recorded in the FILE_HEADER of
+   * log files written by this LogFileManager.
+   * 
+   * <p>Version 1 files contain 32 bit BSNs and log keys
+   * with 24 offset bits.  Version 2 adds the format version,
+   * the number of log key offset bits and the 64 bit BSN of
+   * the first block of the file to the FILE_HEADER.
+   * Version 3 adds the blockFormat flags.
+   * All versions are accepted when existing files are opened.
+   * 
+   * @see #readFileHeader(LogBuffer, LogFile)
+   */
+  static final short FORMAT_VERSION = 3;
+  
+  /**
+   * size of the data in a version 1 FILE_HEADER record.
+   */
+  private static final int FILE_HEADER_V1_SIZE = 35;
+  
+  /**
+   * size of the data in a version 2 FILE_HEADER record.
+   */
+  private static final int FILE_HEADER_V2_SIZE = 46;
+  
+  /**
+   * flag set in the blockFormat field of the FILE_HEADER
+   * of a file that is written with compact blocks.
+   * @see LogFile#compactBlocks
+   */
+  static final byte COMPACT_BLOCKS = 0x01;
+  
+  /**
+   * position of the format version within the data of a
+   * version 2 FILE_HEADER record, following the field length.
+   */
+  private static final int FILE_HEADER_VERSION_POSITION = 2 + 33;
+  
+  /**
+   * true if log files are written with compact blocks
+   * when the LogFileManager switches to them.
+   * 
+   * <p>Files that were written by a previous execution are
+   * read according to the blockFormat of their FILE_HEADER.
+   * @see Configuration#isCompactBlocks()
+   * @see LogFile#compactBlocks
+   */
+  boolean compactBlocks = false;
 
   /**
    * The log key for the oldest active entry in the log.
@@ -163,9 +212,17 @@ class LogFileManager extends LogObject
    * long     prevSwitchTod      byte[8]  time of previous file switch
    * int      fileSet.length     byte[4]  number of files in fileSet
    * int      maxBlocksPerFile   byte[4]  
+   * short    formatVersion      byte[2]  FORMAT_VERSION
+   * byte     offsetBits         byte[1]  log key offset bits
+   * long     firstBSN           byte[8]  BSN of first block in the file
+   * byte     blockFormat        byte[1]  COMPACT_BLOCKS
    * byte[2]  crlf               byte[2]
+   * 
+   * <p>Version 1 files do not have the formatVersion, offsetBits
+   * and firstBSN fields.  Version 2 files do not have the
+   * blockFormat field.
    */
-  byte[][] fileHeader = new byte[1][35];
+  byte[][] fileHeader = new byte[1][47];
   
   /**
    * ByteBuffer wrapper for fileHeader to facilitate conversion of numeric
@@ -277,6 +334,19 @@ class LogFileManager extends LogObject
    */
   private boolean initComplete = false; // BUG 300934
   
+  /**
+   * state of the log files saved when the log is closed.
+   * <p>null unless Configuration#isStateFileEnabled() is true.
+   * @see LogState
+   */
+  LogState logState = null;
+  
+  /**
+   * true if init() restored the state of the log files
+   * from the state file.
+   */
+  boolean stateRestored = false;
+  
   /**
    * construct LogFileManager with Configuration supplied by caller.
    * @param config Configuration object.
@@ -304,13 +374,13 @@ class LogFileManager extends LogObject
   LogFile getLogFileForMark(long mark)
   {
     LogFile lf = null;
-    int requestBsn = bmgr.bsnFromMark(mark);
+    long requestBsn = bmgr.bsnFromMark(mark);
     int fsl = fileSet.length;
     
     // handle request for oldest known mark
     if (mark == 0)
     {
-      int minBsn = Integer.MAX_VALUE;
+      long minBsn = Long.MAX_VALUE;
       int minIndex = fsl;
       
       for (int i=0; i < fsl; ++i)
@@ -382,6 +452,9 @@ class LogFileManager extends LogObject
           if (activeMark > 0 &&  activeMark < nextLogFile.highMark)
             throw new LogFileOverflowException(activeMark, nextLogFile.highMark, nextLogFile.file);
 
+          // wait for (or perform) preallocation before the file is written
+          preallocate(nextLogFile);
+
           ++lfIndex;
           
           // remember the TOD we switched to this file
@@ -389,6 +462,9 @@ class LogFileManager extends LogObject
           
           // remember first BSN in the file
           nextLogFile.firstBSN = lb.bsn;
+          nextLogFile.formatVersion = FORMAT_VERSION;
+          setCompactBlocks(nextLogFile, compactBlocks);
+          nextLogFile.resetDirectory();
 
           // fabricate log key for beginning of new bsn as high mark for current file
           // this value is used to compare with activeMark the next time this object is
@@ -416,6 +492,10 @@ class LogFileManager extends LogObject
           fileHeaderBB.putLong(switchTod);
           fileHeaderBB.putInt(fileSet.length);
           fileHeaderBB.putInt(maxBlocksPerFile);
+          fileHeaderBB.putShort(FORMAT_VERSION);
+          fileHeaderBB.put((byte)bmgr.offsetBits);
+          fileHeaderBB.putLong(lb.bsn);
+          fileHeaderBB.put(compactBlocks ? COMPACT_BLOCKS : 0);
           fileHeaderBB.put(crlf);
           assert fileHeader[0].length == fileHeaderBB.position()
             : "byte[] fileHeader size error";
@@ -470,7 +550,7 @@ class LogFileManager extends LogObject
    * 
    * @see #getLogFileForWrite(LogBuffer)
    */
-  private void detectLogOverflow(int bsn)
+  private void detectLogOverflow(long bsn)
   {
     if ((bsn % maxBlocksPerFile) > (maxBlocksPerFile / 2))
     {
@@ -628,11 +708,13 @@ class LogFileManager extends LogObject
    * requested bsn.
    * <li>compute position as (requested bsn - first bsn in file) * block size;
    * </ol>
+   * <p>When the file contains compact blocks, the position
+   * is obtained from the blockDirectory of the file instead.
    * @return block serial number of block read.
    * <p>returns -1 if the requested BSN does
    * not exist in the current fileSet[].
    */
-  int read(LogBuffer lb, int bsn) throws IOException, InvalidLogBufferException
+  long read(LogBuffer lb, long bsn) throws IOException, InvalidLogBufferException
   {
     if (bsn < 0)
       throw new IllegalArgumentException("BSN must be >= zero");
@@ -647,6 +729,12 @@ class LogFileManager extends LogObject
       return -1;
     }
     
+    if (lf.compactBlocks && bsn > 0)
+    {
+      readCompactBlock(lb, lf, (int)(bsn - lf.firstBSN));
+      return (lb.bsn < bsn) ? -1 : lb.bsn;
+    }
+    
     // compute position of requested block
     long position = 0;
     if (bsn > 0) {
@@ -659,6 +747,83 @@ class LogFileManager extends LogObject
     return (lb.bsn < bsn) ? -1 : lb.bsn;  // BUG 300969
   }
   
+  /**
+   * reads block <i> index </i> of LogFile <i> lf </i>
+   * into LogBuffer <i> lb </i> using the blockDirectory of the file.
+   * 
+   * <p>sets lb.bsn to -1 if the block has not been written.
+   * 
+   * @param lb LogBuffer to read data into.
+   * @param lf LogFile containing the block.
+   * @param index index of the block within the file (BSN - firstBSN).
+   */
+  private void readCompactBlock(LogBuffer lb, LogFile lf, int index)
+    throws IOException, InvalidLogBufferException
+  {
+    long position = lf.getBlockPosition(index);
+    if (position < 0)
+    {
+      if (readDirectory(lb, lf, index))
+        return;
+      
+      // another thread may have added the block to the directory
+      position = lf.getBlockPosition(index);
+    }
+    
+    if (position < 0)
+      lb.bsn = -1;
+    else
+      lb.read(lf, position);
+  }
+  
+  /**
+   * reads the blocks of LogFile <i> lf </i> that follow the
+   * last block in its blockDirectory and adds them to the directory.
+   * 
+   * <p>Each block header contains the size of the block, so the
+   * position of the next block is known once a block has been read.
+   * The walk ends when block <i> index </i> has been read, or when
+   * the next block in the file is not the next BSN of the file.
+   * An invalid block marks the end of the blocks that have been
+   * written to the file.
+   * 
+   * @param lb LogBuffer used to read the blocks.
+   * @param lf LogFile to be read.
+   * @param index index of the last block to be read.
+   * @return true if block <i> index </i> was read into <i> lb </i>.
+   */
+  private boolean readDirectory(LogBuffer lb, LogFile lf, int index)
+    throws IOException
+  {
+    int next = 0;
+    long position = 0;
+    synchronized(lf)
+    {
+      next = lf.directorySize;
+      position = lf.directoryEnd;
+    }
+    
+    while (next <= index && next < maxBlocksPerFile)
+    {
+      try {
+        lb.read(lf, position);
+      } catch (InvalidLogBufferException e) {
+        lb.bsn = -1;
+        return false;
+      }
+      if (lb.bsn != lf.firstBSN + next)
+        return false;
+      
+      lf.addBlock(next, position, lb.blockSize);
+      if (next == index)
+        return true;
+      
+      position += lb.blockSize;
+      ++next;
+    }
+    return false;
+  }
+  
   /**
    * Sets the LogFile marking mode.
    * 
@@ -726,6 +891,20 @@ class LogFileManager extends LogObject
     // TODO: if current log file position is > 50% then notify NOW
   }
   
+  /**
+   * reports an event to the LogEventListener registered
+   * by the application, if any.
+   * @param level log level defined by LogEventListener
+   * @param message text to be logged
+   * @param thrown Throwable related to the event being logged.
+   */
+  void log(int level, String message, Throwable thrown)
+  {
+    LogEventListener eventListener = this.eventListener;
+    if (eventListener != null && eventListener.isLoggable(level))
+      eventListener.log(level, message, thrown);
+  }
+  
   /**
    * Create a JVM wide lock on a File.
    * <p>Feature 30922
@@ -771,6 +950,7 @@ class LogFileManager extends LogObject
     
     // retrieve configuration properties for this object
     maxBlocksPerFile = config.getMaxBlocksPerFile();
+    compactBlocks = config.isCompactBlocks() || config.isCompressBlocks();
     
     // make sure we have at least two log files
     int maxLogFiles = config.getMaxLogFiles();
@@ -786,6 +966,18 @@ class LogFileManager extends LogObject
     File dir = new File(logDir);
     dir.mkdirs();
     
+    // direct IO transfers must be aligned with the device blocks
+    if (config.getLogFileMode().equals(LogFile.DIRECT_MODE))
+    {
+      int blockSize = config.getBufferSize() * 1024;
+      int deviceBlockSize = LogFile.getDeviceBlockSize(dir);
+      if (blockSize % LogFile.DIRECT_ALIGNMENT != 0 || blockSize % deviceBlockSize != 0)
+        throw new LogConfigurationException("bufferSize [" + blockSize +
+            "] must be a multiple of " + LogFile.DIRECT_ALIGNMENT +
+            " and of the device block size [" + deviceBlockSize + "] for logFileMode " +
+            LogFile.DIRECT_MODE);
+    }
+    
     int existingFiles = 0;
     
     // allocate the set of log files
@@ -832,6 +1024,9 @@ class LogFileManager extends LogObject
     }
     currentLogFile = null;
     
+    if (config.isStateFileEnabled() && !compactBlocks)
+      logState = new LogState(new File(logDir, logFileName + ".state"));
+    
   }
   
   /**
@@ -851,7 +1046,8 @@ class LogFileManager extends LogObject
     this.bmgr = bmgr;
     
     short lfIndex = 0;
-    int bsn = 0;
+    long bsn = 0;
+    int offsetBits = 0;
     LogFile lf = null;
     
     LogBuffer lb = null;
@@ -861,86 +1057,122 @@ class LogFileManager extends LogObject
       throw new LogConfigurationException("LogBuffer.class not found", e);
     }
     
-    for (short i = 0; i < fileSet.length; ++i)
+    int blockSize = lb.buffer.capacity();
+    long fpos = blockSize;
+    long lastBlock = 0;  // position of the last block written
+    
+    stateRestored = restoreState(lb);
+    if (stateRestored)
     {
-      lf = fileSet[i];
-      assert lf != null : "LogFile pointer lf is null";
+      // the log was closed cleanly -- resume after the last block it wrote
+      lfIndex = (short)logState.activeIndex;
+      bsn = logState.lastBSN;
+      currentLogFile = fileSet[lfIndex];
+      lf = currentLogFile;
+      fpos = logState.position;
+      lastBlock = fpos - blockSize;
+    }
+    else
+    {
+      for (short i = 0; i < fileSet.length; ++i)
+      {
+        lf = fileSet[i];
+        assert lf != null : "LogFile pointer lf is null";
       
-      // skip newly created files
-      if (lf.newFile) continue;
+        // skip newly created files
+        if (lf.newFile) continue;
       
-      try {
-        lb.read(lf, 0L);
-      } catch (IOException e) {
-        // BUG 303907 -- add message to IOException
-        IOException ioe = new IOException("LogFileManager.init(): error reading block zero " + 
-            lf.file.getName() + " [" + e.getMessage() + "]");
-        ioe.setStackTrace(e.getStackTrace());
-        throw ioe;
-      }
+        try {
+          lb.read(lf, 0L);
+        } catch (IOException e) {
+          // BUG 303907 -- add message to IOException
+          IOException ioe = new IOException("LogFileManager.init(): error reading block zero " + 
+              lf.file.getName() + " [" + e.getMessage() + "]");
+          ioe.setStackTrace(e.getStackTrace());
+          throw ioe;
+        }
+      
+        if (lb.bsn != -1)
+        {
+          // restore the 64 bit BSN of the first block in the file
+          readFileHeader(lb, lf);
+          if (lf.formatVersion > 1) lb.bsn = lf.firstBSN;
+        
+          // all files of the set must use the same log key format
+          if (offsetBits == 0)
+            offsetBits = lf.offsetBits;
+          else if (offsetBits != lf.offsetBits)
+            throw new LogConfigurationException("Log key offset bits [" +
+                lf.offsetBits + "] in file " + lf.file.getName() +
+                " not equal offset bits in previous files [" + offsetBits + "]");
+        }
       
-      // save BSN of first block in file
-      lf.firstBSN = lb.bsn;
+        // save BSN of first block in file
+        lf.firstBSN = lb.bsn;
       
-      // locate the last file to be written
-      if (lb.bsn > bsn)
+        // locate the last file to be written
+        if (lb.bsn > bsn)
+        {
+          bsn = lb.bsn;
+          lfIndex = i;
+        }
+      }
+    
+      // log keys of existing files override the configured format
+      if (offsetBits != 0)
       {
-        bsn = lb.bsn;
-        lfIndex = i;
+        bmgr.setOffsetBits(offsetBits);
+        lb.offsetBits = offsetBits;
       }
-    }
     
-    /*
-     * If we get this far then all the files are
-     * properly formatted or new.
-     * 
-     * We can now set the highMark for each file
-     * using the firstBSN field of the subsequent file.
-     */
-    int fsl = fileSet.length;
-    for (int i=0; i < fsl; ++i)
-    {
-      if (fileSet[i].newFile) continue;
+      /*
+       * If we get this far then all the files are
+       * properly formatted or new.
+       * 
+       * We can now set the highMark for each file
+       * using the firstBSN field of the subsequent file.
+       */
+      int fsl = fileSet.length;
+      for (int i=0; i < fsl; ++i)
+      {
+        if (fileSet[i].newFile) continue;
       
-      int next = (i + 1) % fsl;
-      if (fileSet[next].newFile) continue;
+        int next = (i + 1) % fsl;
+        if (fileSet[next].newFile) continue;
       
-      fileSet[i].highMark = bmgr.markFromBsn(fileSet[next].firstBSN, 0);
-    }
-    
-    // reposition the last active file
-    int blockSize = lb.buffer.capacity();
+        fileSet[i].highMark = bmgr.markFromBsn(fileSet[next].firstBSN, 0);
+      }
     
-    currentLogFile = fileSet[lfIndex];
-    lf = currentLogFile;
+      // reposition the last active file
+      currentLogFile = fileSet[lfIndex];
+      lf = currentLogFile;
     
-    // compare file header with current configuration
-    validateFileHeader(lb);
+      // compare file header with current configuration
+      validateFileHeader(lb);
 
-    long fpos = blockSize;
-    if (lb.bsn > 0)
-    {
-      // locate last block written starting in second block
-      try {
-        while(lb.read(lf, fpos).bsn > bsn) {
-          fpos += blockSize;
-          bsn = lb.bsn;
+      if (lb.bsn > 0 && lf.compactBlocks)
+      {
+        // locate last block written by following the sizes in the block headers
+        readDirectory(lb, lf, maxBlocksPerFile - 1);
+        synchronized(lf)
+        {
+          bsn = lf.firstBSN + lf.directorySize - 1;
+          fpos = lf.directoryEnd;
+          lastBlock = lf.getBlockPosition(lf.directorySize - 1);
         }
-      } catch (InvalidLogBufferException e) {
-        /*
-         * Ignore this exception here during restart processing.
-         * An invalid block marks the end of the log.
-         */
-        System.err.println(e);
-      } catch (IOException e) {
-        IOException ioe = new IOException("LogFileManager.init(): " +
-            "Attempting to loacate last block of file " + lf.file.getName() +
-            " at position " + fpos + " [" + e.getMessage() + "]");
-        ioe.setStackTrace(e.getStackTrace());
-        ioe.printStackTrace();
-        throw ioe;
+      }
+      else if (lb.bsn > 0)
+      {
+        // locate last block written
+        int last = findLastBlock(lb, lf);
+        bsn = lf.firstBSN + last;
+        lastBlock = (long)last * blockSize;
+        fpos = lastBlock + blockSize;
       }
     }
+    
+    // the state is not valid once the log is written again
+    if (logState != null) logState.lock();
 
     // set this.lfIndex to next file to be used
     this.lfIndex = (lf.newFile ? 0 : (lfIndex + 1));
@@ -963,13 +1195,13 @@ class LogFileManager extends LogObject
     if (bsn > 0)
     {
       try {
-        lb.read(lf, fpos-blockSize);
+        lb.read(lf, lastBlock);
       } catch (IOException e) {
         // BUG 303907 - add message to IOException
         IOException ioe = new IOException("LogFileManager.init(): " +
             "process MARK records in last block of file " +
             lf.file.getName() +
-            " at position " + (fpos - blockSize) + " [" + e.getMessage() + "]");
+            " at position " + lastBlock + " [" + e.getMessage() + "]");
         ioe.setStackTrace(e.getStackTrace());
         throw ioe;
       }
@@ -1028,12 +1260,134 @@ class LogFileManager extends LogObject
 
     }
     
+    // extend the active file before we resume writing it, then
+    // preallocate the remaining files in the background
+    if (config.isPreallocateFiles())
+    {
+      if (!lf.newFile) preallocate(lf);
+
+      final int firstIndex = this.lfIndex;
+      config.getScheduler().execute(new Runnable() {
+        public void run() {
+          for (int i = 0; i < fileSet.length; ++i)
+            preallocate(fileSet[(firstIndex + i) % fileSet.length]);
+        }
+      });
+    }
+    
     // indicate that initialization is complete
     initComplete = true;  // BUG 300934
+  }
+  
+  /**
+   * returns the index of the last block written to LogFile <i> lf </i>.
+   * 
+   * <p>Block <i> n </i> of the file has been written if it is a valid
+   * block with BSN lf.firstBSN + <i> n </i>.  The blocks that follow the
+   * last block written are unused, or contain blocks written
+   * before the file was reused.  The last block is located with a
+   * binary search over the block positions, so the file is not read
+   * sequentially during restart.
+   * 
+   * <p>Blocks are written in BSN order, but blocks that were
+   * not yet forced may not have reached the disk in that order.
+   * The blocks that precede the last block, up to the number of buffers
+   * in the pool, are read sequentially so the end of the log is the
+   * first block that is missing.
+   * 
+   * @param lb LogBuffer used to read the blocks.
+   * @param lf LogFile to be searched.  Block zero must be valid.
+   * @return index of the last block written.
+   * @throws IOException
+   */
+  private int findLastBlock(LogBuffer lb, LogFile lf)
+    throws IOException
+  {
+    int blockSize = lb.buffer.capacity();
+    
+    // blocks [0, low] have been written, blocks [high, ...) have not
+    int low = 0;
+    int high = (int)Math.min(maxBlocksPerFile, lf.channel.size() / blockSize);
+    while (high - low > 1)
+    {
+      int mid = (low + high) >>> 1;
+      if (isBlockWritten(lb, lf, mid))
+        low = mid;
+      else
+        high = mid;
+    }
+    
+    // blocks that may have been written since the last force
+    int window = Math.max(config.getMinBuffers(), config.getMaxBuffers());
+    for (int i = Math.max(1, low - window); i < low; ++i)
+    {
+      if (!isBlockWritten(lb, lf, i))
+        return i - 1;
+    }
+    return low;
+  }
+  
+  /**
+   * reads block <i> index </i> of LogFile <i> lf </i> and
+   * returns true if it is a valid block written with the BSN
+   * expected for the position.
+   * 
+   * @param lb LogBuffer used to read the block.
+   * @param lf LogFile to be read.
+   * @param index index of the block within the file.
+   * @return true if the block has been written since lf was
+   * last reused.
+   * @throws IOException
+   */
+  private boolean isBlockWritten(LogBuffer lb, LogFile lf, int index)
+    throws IOException
+  {
+    long position = (long)index * lb.buffer.capacity();
+    try {
+      lb.read(lf, position);
+    } catch (InvalidLogBufferException e) {
+      /*
+       * Ignore this exception here during restart processing.
+       * An invalid block marks the end of the log.
+       */
+      return false;
+    } catch (IOException e) {
+      IOException ioe = new IOException("LogFileManager.init(): " +
+          "Attempting to locate last block of file " + lf.file.getName() +
+          " at position " + position + " [" + e.getMessage() + "]");
+      ioe.setStackTrace(e.getStackTrace());
+      throw ioe;
+    }
+    return lb.bsn == lf.firstBSN + index;
+  }
+  
+  /**
+   * Extends a LogFile to its full size if the
+   * preallocateFiles option is configured.
+   * 
+   * <p>Called by the background preallocation task started
+   * by init() and by getLogFileForWrite() when switching
+   * to a new file.
+   * 
+   * <p>Preallocation is an optimization.  If it fails,
+   * the file is extended by normal writes, so the
+   * IOException is reported and otherwise ignored.
+   * 
+   * @param lf LogFile to be preallocated.
+   * @see Configuration#isPreallocateFiles()
+   */
+  void preallocate(LogFile lf)
+  {
+    if (!config.isPreallocateFiles()) return;
     
-    // TODO: validate information against state file.
-    //       a. define a state file and update during close
-    //       b. validate current log information against state file
+    int blockSize = config.getBufferSize() * 1024;
+    try {
+      lf.preallocate((long)maxBlocksPerFile * blockSize, blockSize);
+    } catch (IOException e) {
+      // files closed while a background preallocation is in progress
+      // TODO: log preallocation failure
+      if (lf.channel.isOpen()) System.err.println(e);
+    }
   }
   
   /**
@@ -1049,18 +1403,7 @@ class LogFileManager extends LogObject
     lb.read(lf, 0L);
     if (lb.bsn == -1) return; // end of file or empty file
 
-    LogRecord fh = new LogRecord(fileHeader[0].length);
-
-    fh.get(lb);
-    if (fh.type != LogRecordType.FILE_HEADER)
-    {
-      throw new InvalidLogBufferException("HEADER_TYPE: " + Integer.toHexString(fh.type));
-    }
-    if (fh.length != fileHeader[0].length + 2)
-    {
-      throw new InvalidLogBufferException("HEADER_SIZE: expected length(" +
-          (fileHeader[0].length + 2) + ") found (" + fh.length + ")");   
-    }
+    LogRecord fh = readFileHeader(lb, lf);
     
     // we have a file header -- validate the data
     ByteBuffer dataBuffer = fh.dataBuffer;
@@ -1088,15 +1431,218 @@ class LogFileManager extends LogObject
     if (nBlocks != maxBlocksPerFile)
       throw new LogConfigurationException("Configured file size [" +
           maxBlocksPerFile + "] blocks not equal previous file size [" + nBlocks + "] blocks");
+    if (lf.formatVersion > 1)
+    {
+      dataBuffer.getShort(); // short formatVersion -- see readFileHeader
+      dataBuffer.get();      // byte offsetBits
+      dataBuffer.getLong();  // long firstBSN
+    }
+    if (lf.formatVersion > 2)
+      dataBuffer.get();      // byte blockFormat
     short crlf = dataBuffer.getShort();
     if (crlf != 0x0D0A)
       throw new InvalidLogBufferException("FILE_HEADER: expecting CRLF found " +
           Integer.toHexString(crlf));
     
-    assert dataBuffer.capacity() == dataBuffer.position()
+    assert fh.length == dataBuffer.position()
       : "byte[] fileHeader size error";
   }
 
+  /**
+   * reads the FILE_HEADER record from block zero of LogFile <i> lf </i>.
+   * 
+   * <p>Sets lf.formatVersion and lf.offsetBits from the header.
+   * Version 1 headers do not contain these fields, so the
+   * defaults of the original format are used.  For version 2 headers,
+   * lf.firstBSN is set to the 64 bit BSN of the first block in the file.
+   * lf.compactBlocks is set from the blockFormat of version 3
+   * headers.  Version 2 files are assumed to be written with the
+   * configured compactBlocks option.
+   * 
+   * @param lb LogBuffer containing block zero of the file.
+   * @param lf LogFile that was read into <i> lb </i>.
+   * @return LogRecord containing the FILE_HEADER.
+   * @throws InvalidLogBufferException
+   * if the first record is not a FILE_HEADER of a known version.
+   */
+  LogRecord readFileHeader(LogBuffer lb, LogFile lf)
+    throws InvalidLogBufferException
+  {
+    LogRecord fh = new LogRecord(fileHeader[0].length + 2);
+
+    fh.get(lb);
+    if (fh.type != LogRecordType.FILE_HEADER)
+    {
+      throw new InvalidLogBufferException("HEADER_TYPE: " + Integer.toHexString(fh.type));
+    }
+    
+    ByteBuffer dataBuffer = fh.dataBuffer;
+    boolean compact = false;
+    if (fh.length == FILE_HEADER_V1_SIZE + 2)
+    {
+      lf.formatVersion = 1;
+      lf.offsetBits = Configuration.MAX_LOG_KEY_OFFSET_BITS;
+    }
+    else if (fh.length == FILE_HEADER_V2_SIZE + 2 || fh.length == fileHeader[0].length + 2)
+    {
+      lf.formatVersion = dataBuffer.getShort(FILE_HEADER_VERSION_POSITION);
+      lf.offsetBits = dataBuffer.get(FILE_HEADER_VERSION_POSITION + 2);
+      lf.firstBSN = dataBuffer.getLong(FILE_HEADER_VERSION_POSITION + 3);
+      if (fh.length == FILE_HEADER_V2_SIZE + 2)
+        compact = compactBlocks;
+      else
+        compact = (dataBuffer.get(FILE_HEADER_VERSION_POSITION + 11) & COMPACT_BLOCKS) != 0;
+    }
+    else
+    {
+      throw new InvalidLogBufferException("HEADER_SIZE: expected length(" +
+          (fileHeader[0].length + 2) + ") found (" + fh.length + ")");   
+    }
+    
+    if (lf.formatVersion < 1 || lf.formatVersion > FORMAT_VERSION ||
+        (lf.formatVersion > 2) != (fh.length == fileHeader[0].length + 2))
+      throw new InvalidLogBufferException("HEADER_VERSION: " + lf.formatVersion);
+    
+    setCompactBlocks(lf, compact);
+    
+    return fh;
+  }
+  
+  /**
+   * records whether LogFile <i> lf </i> contains compact blocks.
+   * 
+   * <p>A blockDirectory is allocated for a file with compact
+   * blocks, since the blocks do not start at a multiple of the
+   * block size.  Files with blocks of fixed size do not need
+   * a directory.
+   * 
+   * @param lf LogFile whose block format is known.
+   * @param compact true if the file contains compact blocks.
+   */
+  private void setCompactBlocks(LogFile lf, boolean compact)
+  {
+    lf.compactBlocks = compact;
+    if (!compact)
+      lf.blockDirectory = null;
+    else if (lf.blockDirectory == null)
+      lf.blockDirectory = new long[maxBlocksPerFile];
+  }
+
+  /**
+   * restores the state of the log files from the state
+   * file saved when the log was closed.
+   * 
+   * <p>The state is used only if the log files have not
+   * been modified since the state was saved, and the last
+   * block recorded in the state is the last block of
+   * the active file.  Otherwise, init() reads the log files.
+   * 
+   * @param lb LogBuffer used to read the last block.
+   * @return true if the state of the log files was restored.
+   * @throws IOException
+   */
+  private boolean restoreState(LogBuffer lb)
+    throws IOException
+  {
+    if (logState == null || !logState.load()) return false;
+    
+    int fsl = fileSet.length;
+    int blockSize = lb.buffer.capacity();
+    if (logState.firstBSN.length != fsl ||
+        logState.maxBlocksPerFile != maxBlocksPerFile ||
+        logState.blockSize != blockSize)
+      return false;
+    
+    for (int i = 0; i < fsl; ++i)
+    {
+      LogFile lf = fileSet[i];
+      if (lf.newFile != logState.newFile[i] ||
+          lf.file.length() != logState.length[i] ||
+          lf.file.lastModified() != logState.lastModified[i])
+        return false;
+    }
+    
+    // make sure the last block is where the state says it is
+    LogFile lf = fileSet[logState.activeIndex];
+    long lastBlock = logState.position - blockSize;
+    if (lf.newFile || logState.lastBSN <= 0 ||
+        lastBlock != (logState.lastBSN - logState.firstBSN[logState.activeIndex]) * blockSize)
+      return false;
+    
+    lf.firstBSN = logState.firstBSN[logState.activeIndex];
+    lb.offsetBits = logState.offsetBits;
+    try {
+      if (lb.read(lf, lastBlock).bsn != logState.lastBSN)
+        return false;
+    } catch (InvalidLogBufferException e) {
+      return false;
+    }
+    if (isBlockWritten(lb, lf, (int)(logState.position / blockSize)))
+      return false;
+    
+    // state matches the log files
+    for (int i = 0; i < fsl; ++i)
+    {
+      fileSet[i].firstBSN = logState.firstBSN[i];
+      fileSet[i].highMark = logState.highMark[i];
+      fileSet[i].formatVersion = logState.formatVersion[i];
+      fileSet[i].offsetBits = logState.newFile[i] ? 0 : logState.offsetBits;
+    }
+    bmgr.setOffsetBits(logState.offsetBits);
+    automark = logState.automark;
+    activeMark = logState.activeMark;
+    
+    return true;
+  }
+  
+  /**
+   * saves the state of the log files to the state file.
+   * 
+   * <p>Called by close() after the log files are closed.  The
+   * state is saved only if every block has been forced.
+   * 
+   * <p>The state file is an optimization.  If it cannot be
+   * written, the IOException is reported and otherwise ignored.
+   */
+  private void saveState()
+  {
+    long lastBSN = bmgr.nextWriteBSN - 1;
+    if (currentLogFile == null || bmgr.lastForceBSN != lastBSN) return;
+    
+    // the state assumes every block is at a fixed file position
+    for (int i = 0; i < fileSet.length; ++i)
+      if (fileSet[i].compactBlocks) return;
+    
+    int fsl = fileSet.length;
+    int blockSize = config.getBufferSize() * 1024;
+    logState.setFiles(fsl);
+    logState.maxBlocksPerFile = maxBlocksPerFile;
+    logState.blockSize = blockSize;
+    logState.offsetBits = bmgr.offsetBits;
+    logState.lastBSN = lastBSN;
+    logState.activeMark = activeMark;
+    logState.automark = automark;
+    for (int i = 0; i < fsl; ++i)
+    {
+      LogFile lf = fileSet[i];
+      if (lf == currentLogFile) logState.activeIndex = i;
+      logState.firstBSN[i] = lf.firstBSN;
+      logState.highMark[i] = lf.highMark;
+      logState.formatVersion[i] = lf.formatVersion;
+      logState.newFile[i] = lf.newFile;
+      logState.length[i] = lf.file.length();
+      logState.lastModified[i] = lf.file.lastModified();
+    }
+    logState.position = (lastBSN - currentLogFile.firstBSN + 1) * blockSize;
+    
+    try {
+      logState.save();
+    } catch (IOException e) {
+      // TODO: log state file failure
+      System.err.println(e);
+    }
+  }
+  
   /**
    * Write a CLOSE record and shut down the buffer manager
    * if we have one.
@@ -1146,35 +1692,46 @@ class LogFileManager extends LogObject
   /**
    * Gracefully close the log files.
    * 
+   * <p>The state of the log files is saved to the state
+   * file if the log was closed cleanly.
+   * 
+   * <p>The log files are closed even if the buffers could
+   * not be flushed because of an earlier IOException.
+   * 
    * @throws IOException
-   * If FileChannel.close() encounters an error.
+   * If FileChannel.close() encounters an error, or
+   * the buffers could not be flushed.
    * @see java.nio.channels.FileChannel#close()
    */
   void close()
     throws IOException, InterruptedException
   {
-  	// TODO: record the fact that the LOG was closed
-    // write a status record at end of current journal.
-    // logger will have to locate the status record during a restart.
-    // status should include mark information, number of files and
-    // max blocks per file.
-    // alternative: write status to a separate log.status file
-    
     boolean interrupted = false;
+    boolean closed = false;
     InterruptedException exception = null;
+    IOException ioexception = null;
     
     // BUG 300953 don't close if fileSet[] is null 
     if (fileSet == null) return;
     
     try {
       // BUG 300934 don't close Buffer Manager if initialization is not complete
+      closed = initComplete;
       if (initComplete) closeBufferManager(); // BUG 300934
       initComplete = false; // don't close Buffer Manager more than once
     } catch (InterruptedException e) {
       interrupted = true;  // remember and throw it on the way out.
       exception = e;
+    } catch (IOException e) {
+      // the log could not be flushed, but the files must still be closed
+      ioexception = e;
+      bmgr.close();
+      initComplete = false;
     }
 
+    // remember the state of a log that was closed cleanly
+    boolean saveState = closed && logState != null && !interrupted && ioexception == null;
+    
     // close the log files
     for (int i=0; i < fileSet.length; ++i)
     {
@@ -1185,7 +1742,10 @@ class LogFileManager extends LogObject
       }
     }
     
+    if (saveState) saveState();
+    
     if (interrupted) throw exception;
+    if (ioexception != null) throw ioexception;
     
   }
   
@@ -1214,6 +1774,9 @@ class LogFileManager extends LogObject
         "\n<restartAutoMark value='" + restartAutoMark + "'>" +
           "automark value restored from prior log file" +
         "</restartAutoMark>" +
+        "\n<stateRestored value='" + stateRestored + "'>" +
+          "log file state restored from state file" +
+        "</stateRestored>" +
         "\n<overflowNotificationCount value='" + overflowNotificationCount + "'>" +
           "number of times LogEventListener.logOverflowNotification was called" +
         "</overflowNotificationCount>"
@@ -64,6 +64,15 @@ public class LogFileOverflowException extends LogException
    * Constructs an instance of this class.
    */
   public LogFileOverflowException() { }
+
+    /**
+     * Construct an exception with message describing the problem
+     * @param s message describing the overflow
+     */
+    public LogFileOverflowException(String s)
+    {
+      super(s);
+    }
     
     /**
      * Construct an exception with message describing the problem
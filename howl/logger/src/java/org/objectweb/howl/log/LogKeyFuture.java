@@ -0,0 +1,85 @@
+/*
+ * JOnAS: Java(TM) Open Application Server
+ * Copyright (C) 2004 Bull S.A.
+ * All rights reserved.
+ * 
+ * Contact: howl@objectweb.org
+ * 
+ * This software is licensed under the BSD license.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *     
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *     
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * ------------------------------------------------------------------------------
+ * $Id$
+ * ------------------------------------------------------------------------------
+ */
+package org.objectweb.howl.log;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Result of an asynchronous put to the log.
+ * 
+ * <p>The log key of the record is available from getKey()
+ * as soon as putAsync() returns.  The future completes with
+ * the same key once the LogBuffer containing the record
+ * has been forced to disk.  If the buffer cannot be written
+ * or forced, the future completes exceptionally with
+ * the IOException reported by the LogBufferManager.
+ * 
+ * <p>Dependent actions that run on the completing thread
+ * are executed by the thread that forced the buffer.
+ * Such actions must not put records to the log;
+ * use one of the <i> async </i> methods of
+ * CompletableFuture to run them on another thread.
+ * 
+ * @see Logger#putAsync(byte[][])
+ */
+public class LogKeyFuture extends CompletableFuture<Long>
+{
+  /**
+   * log key of the record.
+   */
+  private long key = 0L;
+
+  /**
+   * set by LogBufferManager once the record has been
+   * added to a LogBuffer.
+   * @param key log key of the record
+   */
+  void setKey(long key)
+  {
+    this.key = key;
+  }
+
+  /**
+   * @return log key of the record.
+   * <p>The key can be used with mark() and get()
+   * before the future completes.
+   */
+  public long getKey()
+  {
+    return key;
+  }
+}
@@ -143,6 +143,32 @@ public class LogRecord
    */
   private boolean filterCtrlRecords = false;
   
+  /**
+   * log key of the FRAGMENT_FIRST of a record that is
+   * being reassembled by get(), or zero if get() has
+   * not returned all of the fragments of a record.
+   * <p>Fragments are stored in consecutive blocks, so get()
+   * returns an EOB record while the record is incomplete.
+   * @see LogRecordType#FRAGMENT_FIRST
+   */
+  long fragmentKey = 0;
+  
+  /**
+   * BSN of the block containing the last fragment added
+   * to the record being reassembled.
+   */
+  private long fragmentBSN = 0;
+  
+  /**
+   * fragments of the record being reassembled.
+   */
+  private byte[] fragments = null;
+  
+  /**
+   * number of bytes in <i> fragments </i>.
+   */
+  private int fragmentsLength = 0;
+  
   /**
    * Set the filterCtrlRecords member
    * @param filterCtrlRecords 
@@ -171,23 +197,147 @@ public class LogRecord
    * <p>Sets the limit of this LogRecord to the number of bytes in the logical
    * record being retreived.
    * <p>LogBuffer.position() is unchanged if any exception is thrown.
+   * <p>Records that were put as fragments are reassembled
+   * and returned when the FRAGMENT_LAST is reached, with the
+   * type of the original record and the log key of the
+   * FRAGMENT_FIRST.  Fragments of a record whose
+   * FRAGMENT_FIRST was not seen by this LogRecord are skipped.
+   * While a record is being reassembled, only EOB and the
+   * records put by the LogFileManager at the start of a file
+   * are returned.
+   * <p>FILLER records of aborted reservations are always skipped.
    * 
    * @param lb LogBuffer to get the next logical record from.
    * @return this LogRecord.
    * @throws InvalidLogBufferException
-   * if the size of the data record exceeds the bytes used for the buffer.
+   * if the size of the data record exceeds the bytes used for the buffer,
+   * or the fragments of a continued record are not stored in
+   * consecutive blocks.
    * @see LogRecordType
    */
   protected LogRecord get(LogBuffer lb) throws InvalidLogBufferException
   {
-    do {
+    while (true) {
       getNext(lb); // get the next record
-      if (isEOB() || !isCTRL())
+      if (type == LogRecordType.FILLER)
+        continue;
+      if ((isFragment() || fragmentKey != 0) && !assemble(lb))
+        continue;
+      if (isEOB() || !isCTRL() || !filterCtrlRecords)
         break;
-    } while (filterCtrlRecords == true);
+    }
     return this;
   }
   
+  /**
+   * @return true if the current record is a fragment
+   * of a record that spans blocks.
+   */
+  private boolean isFragment()
+  {
+    return type == LogRecordType.FRAGMENT_FIRST ||
+      type == LogRecordType.FRAGMENT_MIDDLE ||
+      type == LogRecordType.FRAGMENT_LAST;
+  }
+  
+  /**
+   * helper for get().
+   * <p>adds the current fragment to the record being reassembled.
+   * @param lb LogBuffer containing the current record.
+   * @return true if the fragment completes the record and
+   * this LogRecord has been updated with the original record,
+   * or if the current record is not a fragment and is to be
+   * returned by get().
+   * @throws InvalidLogBufferException
+   * if the reassembled length does not match the length
+   * stored in the FRAGMENT_FIRST, or if a record is being
+   * reassembled and the current record is not its next fragment.
+   */
+  private boolean assemble(LogBuffer lb) throws InvalidLogBufferException
+  {
+    if (!isFragment())
+    {
+      // records put by the LogFileManager when it switches
+      // files may precede the next fragment of a block
+      if (type == LogRecordType.EOB || type == LogRecordType.FILE_HEADER ||
+          type == LogRecordType.MARKKEY)
+        return true;
+      throw fragmentException("record type " + Integer.toHexString(type) +
+          " [" + Long.toHexString(key) + "]");
+    }
+    
+    if (type == LogRecordType.FRAGMENT_FIRST)
+    {
+      if (fragmentKey != 0)
+        throw fragmentException("FRAGMENT_FIRST [" + Long.toHexString(key) + "]");
+      fragmentKey = key;
+      fragmentsLength = 0;
+    }
+    else if (fragmentKey == 0)
+    {
+      // fragment of a record that precedes the first record read
+      return false;
+    }
+    else if (lb.bsn != fragmentBSN + 1)
+    {
+      throw fragmentException("block " + lb.bsn + " following block " + fragmentBSN);
+    }
+    fragmentBSN = lb.bsn;
+    
+    if (fragments == null || fragmentsLength + length > fragments.length)
+    {
+      byte[] grow = new byte[Math.max(fragmentsLength + length, 2 * data.length)];
+      if (fragmentsLength > 0)
+        System.arraycopy(fragments, 0, grow, 0, fragmentsLength);
+      fragments = grow;
+    }
+    System.arraycopy(data, 0, fragments, fragmentsLength, length);
+    fragmentsLength += length;
+    
+    if (type != LogRecordType.FRAGMENT_LAST)
+      return false;
+    
+    ByteBuffer record = ByteBuffer.wrap(fragments, 0, fragmentsLength);
+    short type = record.getShort();
+    short length = record.getShort();
+    if (length != record.remaining())
+    {
+      fragmentKey = 0;
+      throw new InvalidLogBufferException("continued record [" + Long.toHexString(key) +
+          "] length: " + length + " fragments: " + record.remaining());
+    }
+    
+    if (length > data.length) {
+      // reallocate buffer to accomodate record
+      data = new byte[length];
+      dataBuffer = ByteBuffer.wrap(data);
+    }
+    record.get(data, 0, length);
+    
+    this.type = type;
+    this.length = length;
+    this.key = fragmentKey;
+    fragmentKey = 0;
+    
+    dataBuffer.clear().limit(length);
+    
+    return true;
+  }
+  
+  /**
+   * abandons the record being reassembled.
+   * @param found description of the record that was found
+   * instead of the next fragment.
+   * @return InvalidLogBufferException to be thrown by the caller.
+   */
+  private InvalidLogBufferException fragmentException(String found)
+  {
+    String msg = "continued record [" + Long.toHexString(fragmentKey) +
+      "] next fragment not found: " + found;
+    fragmentKey = 0;
+    return new InvalidLogBufferException(msg);
+  }
+  
   /**
    * helper for get().
    * <p>returns the next record in the LogBuffer.
@@ -209,7 +359,7 @@ public class LogRecord
     {
       // save current record position so we can reset on errors
       buffer.mark();
-      long logKey = ((long) lb.bsn << 24) | (buffer.position() & 0xffffff ) ;
+      long logKey = lb.logKey(buffer.position());
 
       try {
         type = buffer.getShort();
@@ -240,7 +390,7 @@ public class LogRecord
       type = LogRecordType.EOB;
       
       // set key to first record in next block 
-      key = ((long) (lb.bsn + 1) << 24); 
+      key = (lb.bsn + 1) << lb.offsetBits; 
     }
     
     this.type = type;
@@ -38,12 +38,14 @@ package org.objectweb.howl.log;
 
 /**
  * Checked exception thrown when the byte[] passed to <i>put</i>
- * is larger than the configured buffer size.
+ * is larger than the maximum record size.
  * 
- * <p>LogBufferManager does not support spanned records
- * (records that span physical blocks).  Increase the
- * configured journal block size to accomodate larger
- * records.
+ * <p>LogBufferManager stores records that are larger than
+ * the configured buffer size as fragments in consecutive
+ * blocks.  The total size of a record, including the
+ * length of each field, is limited by the size of the
+ * LogRecord.length field.  Records that are reserved
+ * with Logger.reserve() must fit in a single block.
  */
 public class LogRecordSizeException extends LogException
 {
@@ -109,7 +109,45 @@ public interface LogRecordType
    * XACOMMIT record from the activeTx table. 
    */
   static final short XACOMMITMOVED = XACOMMIT | XADONE;
-  
+
+  /**
+   * first fragment of a record that is too large for
+   * the remaining space in a block.
+   *
+   * <p>Data portion of the first fragment begins with the
+   * type and length of the original record, followed by
+   * the first bytes of the record data.  The remaining data
+   * is stored in FRAGMENT_MIDDLE and FRAGMENT_LAST records
+   * at the start of the blocks that follow.
+   *
+   * <p>Fragments are never returned by LogRecord.get().
+   * The fragments are reassembled and the original record
+   * is returned with the log key of the first fragment.
+   */
+  static final short FRAGMENT_FIRST = CTRL | 0x0020;
+
+  /**
+   * fragment of a record that fills an entire block.
+   * @see #FRAGMENT_FIRST
+   */
+  static final short FRAGMENT_MIDDLE = CTRL | 0x0030;
+
+  /**
+   * fragment that completes a record.
+   * @see #FRAGMENT_FIRST
+   */
+  static final short FRAGMENT_LAST = CTRL | 0x0010;
+
+  /**
+   * space of a reserved record that was aborted.
+   *
+   * <p>The data of a FILLER record is meaningless.
+   * FILLER records are never returned by LogRecord.get(),
+   * even when control records are being replayed.
+   * @see LogReservation#abort()
+   */
+  static final short FILLER = CTRL | 0x0008;
+
   /**
    * Type returned by get() methods to signal end of buffer.
    * 
@@ -0,0 +1,183 @@
+/*
+ * JOnAS: Java(TM) Open Application Server
+ * Copyright (C) 2004 Bull S.A.
+ * All rights reserved.
+ * 
+ * Contact: howl@objectweb.org
+ * 
+ * This software is licensed under the BSD license.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *     
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *     
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * ------------------------------------------------------------------------------
+ * $Id$
+ * ------------------------------------------------------------------------------
+ */
+package org.objectweb.howl.log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Space claimed in a LogBuffer for a record that the
+ * caller encodes in place.
+ * 
+ * <p>Returned by Logger.reserve().  The caller puts exactly
+ * the number of bytes that were reserved into the ByteBuffer
+ * returned by getBuffer(), and then calls commit().
+ * If the record cannot be encoded, the caller calls abort()
+ * and the space is written to the log as a record that
+ * replay skips.
+ * The record is stored as a single field, so during replay
+ * it is returned in the same format as a record written
+ * with put(byte[], boolean).
+ * 
+ * <p>The LogBuffer cannot be written until the reservation is
+ * committed or aborted.  Callers should encode the record and
+ * commit immediately, must commit or abort every reservation,
+ * and must not hold more than one uncommitted reservation
+ * per thread.  A reservation that is held for more than a
+ * few seconds fails the write of the buffer, and the log
+ * reports an IOException for all subsequent operations.
+ * 
+ * @see Logger#reserve(int)
+ */
+public class LogReservation
+{
+  /**
+   * Logger that created the reservation.
+   */
+  final Logger logger;
+
+  /**
+   * LogBuffer containing the reserved record.
+   */
+  LogBuffer lb = null;
+
+  /**
+   * log key of the reserved record.
+   */
+  long key = 0L;
+
+  /**
+   * slice of the LogBuffer for the record data.
+   */
+  ByteBuffer buffer = null;
+
+  /**
+   * number of data bytes reserved.
+   */
+  final int size;
+
+  /**
+   * initCounter of the LogBuffer when the record was claimed.
+   * <p>Used to detect a reservation that was completed after
+   * the LogBuffer was reused.
+   */
+  int initCounter = 0;
+
+  /**
+   * set true by commit() or abort().
+   */
+  private boolean committed = false;
+
+  /**
+   * @param logger Logger that created the reservation.
+   * @param size number of data bytes to reserve.
+   */
+  LogReservation(Logger logger, int size)
+  {
+    this.logger = logger;
+    this.size = size;
+  }
+
+  /**
+   * @return ByteBuffer positioned at the start of the record
+   * data with the limit set to the end of the reserved space.
+   */
+  public ByteBuffer getBuffer()
+  {
+    return buffer;
+  }
+
+  /**
+   * @return log key of the reserved record.
+   * <p>The key can be used with mark() once the
+   * reservation has been committed.
+   */
+  public long getKey()
+  {
+    return key;
+  }
+
+  /**
+   * makes the record available to be written to the log.
+   * 
+   * <p>if <i> sync </i> parameter is true, then the method will
+   * block until the record is forced to disk.
+   * 
+   * @param sync true if call should block until force
+   * @return log key of the record.
+   * @throws IllegalStateException
+   * if the reservation has already been committed.
+   * @throws InterruptedException
+   * @throws IOException
+   */
+  public long commit(boolean sync)
+    throws InterruptedException, IOException
+  {
+    synchronized(this)
+    {
+      if (committed) throw new IllegalStateException("LogReservation already committed");
+      committed = true;
+    }
+
+    logger.commit(this, sync);
+    return key;
+  }
+
+  /**
+   * releases the reserved space without committing the record.
+   * 
+   * <p>Called when the record cannot be encoded.  Any data
+   * already put into the ByteBuffer is discarded, and the
+   * space is written to the log as a FILLER record that
+   * is not returned by replay or get().
+   * 
+   * @throws IllegalStateException
+   * if the reservation has already been committed or aborted.
+   * @throws IOException
+   * @see LogRecordType#FILLER
+   */
+  public void abort() throws IOException
+  {
+    synchronized(this)
+    {
+      if (committed) throw new IllegalStateException("LogReservation already committed");
+      committed = true;
+    }
+
+    logger.abort(this);
+  }
+}
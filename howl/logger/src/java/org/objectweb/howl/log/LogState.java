@@ -2,22 +2,22 @@
  * JOnAS: Java(TM) Open Application Server
  * Copyright (C) 2004 Bull S.A.
  * All rights reserved.
- * 
+ *
  * Contact: howl@objectweb.org
- * 
+ *
  * This software is licensed under the BSD license.
- * 
+ *
  * Redistribution and use in source and binary forms, with or without
  * modification, are permitted provided that the following conditions
  * are met:
- * 
+ *
  *   * Redistributions of source code must retain the above copyright
  *     notice, this list of conditions and the following disclaimer.
- *     
+ *
  *   * Redistributions in binary form must reproduce the above copyright
  *     notice, this list of conditions and the following disclaimer in the
  *     documentation and/or other materials provided with the distribution.
- *     
+ *
  * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
  * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
  * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
@@ -29,7 +29,7 @@
  * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
  * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
  * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
- * 
+ *
  * ------------------------------------------------------------------------------
  * $Id: LogState.java,v 1.3 2005-06-23 23:28:15 girouxm Exp $
  * ------------------------------------------------------------------------------
@@ -37,67 +37,276 @@
 package org.objectweb.howl.log;
 
 import java.io.File;
-import java.util.Properties;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
 
 
 /**
  * Manage state variables for the Logger instance.
- * 
+ *
  * <p>state variables are saved when logger is closed.
- * 
- * <p>when a logger is open, a lock file is created
- * to record the fact that a logger is active.  Whe the
- * logger is closed, the lock file is deleted.  If the
- * system or JVM crashes before the logger is closed, 
- * the lock file will serve to notify future users of
- * the log that recovery may be necessary.  
- * 
+ *
+ * <p>The state file describes the set of log files
+ * as it was when the logger was closed: the file that was
+ * being written, the last block written and the
+ * mark information.  When the state file is present and
+ * matches the log files, LogFileManager.init() can resume
+ * writing without reading the header of every file
+ * and searching for the last block written.
+ *
+ * <p>When a logger is open, the state file is deleted
+ * to record the fact that a logger is active.  If the
+ * system or JVM crashes before the logger is closed,
+ * the missing state file notifies future users of
+ * the log that recovery may be necessary, and the log
+ * files are read to locate the end of the log.
+ *
+ * <p>The state file is protected by a CRC32 checksum.
+ * A state file that cannot be read or has an invalid
+ * checksum is ignored.
+ *
  * @author Michael Giroux
  *
  */
 class LogState
 {
-  Properties state = null;
-  
-  File lockFile = new File(".lock");
-  File stateFile = new File(".state");
-  
+  /**
+   * identifies a state file.
+   */
+  private static final int STATE_ID = 0x484f574c; // HOWL
+
+  /**
+   * version of the state file format.
+   */
+  private static final short STATE_VERSION = 1;
+
+  /**
+   * file containing the state variables.
+   */
+  File stateFile = null;
+
+  /**
+   * maxBlocksPerFile of the log files.
+   */
+  int maxBlocksPerFile = 0;
+
+  /**
+   * size of the blocks in the log files.
+   */
+  int blockSize = 0;
+
+  /**
+   * number of log key offset bits of the log files.
+   */
+  int offsetBits = 0;
+
+  /**
+   * index within fileSet[] of the file that was
+   * being written when the log was closed.
+   */
+  int activeIndex = 0;
+
+  /**
+   * BSN of the last block written.
+   */
+  long lastBSN = 0;
+
+  /**
+   * file position following the last block written.
+   */
+  long position = 0;
+
+  /**
+   * active mark when the log was closed.
+   */
+  long activeMark = 0;
+
+  /**
+   * automark mode when the log was closed.
+   */
+  boolean automark = false;
+
+  /**
+   * firstBSN of each LogFile.
+   */
+  long[] firstBSN = new long[0];
+
+  /**
+   * highMark of each LogFile.
+   */
+  long[] highMark = new long[0];
+
+  /**
+   * formatVersion of each LogFile.
+   */
+  int[] formatVersion = new int[0];
+
+  /**
+   * true for each LogFile that had not been written.
+   */
+  boolean[] newFile = new boolean[0];
+
+  /**
+   * length of each LogFile after it was closed.
+   */
+  long[] length = new long[0];
+
+  /**
+   * last modified time of each LogFile after it was closed.
+   */
+  long[] lastModified = new long[0];
+
   /**
    * Construct LogState instance.
+   * @param stateFile file used to save the state variables.
    */
-  LogState()
+  LogState(File stateFile)
   {
+    this.stateFile = stateFile;
   }
-  
+
   /**
-   * loads state variables from property file.
+   * allocate the arrays for a set of <i> files </i> log files.
+   * @param files number of files in the set.
    */
-  void load()
+  void setFiles(int files)
   {
-    
+    firstBSN = new long[files];
+    highMark = new long[files];
+    formatVersion = new int[files];
+    newFile = new boolean[files];
+    length = new long[files];
+    lastModified = new long[files];
   }
-  
+
   /**
-   * saves state variables to property file.
+   * loads state variables from the state file.
+   * @return true if a valid state file was read.
    */
-  void save()
+  boolean load()
   {
-    
+    if (!stateFile.exists()) return false;
+
+    byte[] data = new byte[(int)Math.min(stateFile.length(), Integer.MAX_VALUE)];
+    try {
+      FileInputStream in = new FileInputStream(stateFile);
+      try {
+        int n = 0;
+        while (n < data.length) {
+          int count = in.read(data, n, data.length - n);
+          if (count < 0) return false;
+          n += count;
+        }
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      // state is not available -- LogFileManager reads the log files
+      return false;
+    }
+
+    if (data.length < 8) return false;
+    ByteBuffer state = ByteBuffer.wrap(data);
+    CRC32 crc = new CRC32();
+    crc.update(data, 0, data.length - 4);
+    if ((int)crc.getValue() != state.getInt(data.length - 4)) return false;
+
+    if (state.getInt() != STATE_ID || state.getShort() != STATE_VERSION) return false;
+
+    int files = state.getInt();
+    if (data.length != size(files)) return false;
+
+    maxBlocksPerFile = state.getInt();
+    blockSize = state.getInt();
+    offsetBits = state.get();
+    activeIndex = state.getInt();
+    lastBSN = state.getLong();
+    position = state.getLong();
+    activeMark = state.getLong();
+    automark = state.get() == 1;
+
+    setFiles(files);
+    for (int i = 0; i < files; ++i)
+    {
+      firstBSN[i] = state.getLong();
+      highMark[i] = state.getLong();
+      formatVersion[i] = state.getShort();
+      newFile[i] = state.get() == 1;
+      length[i] = state.getLong();
+      lastModified[i] = state.getLong();
+    }
+
+    return activeIndex >= 0 && activeIndex < files;
   }
-  
+
   /**
-   * make state unavailable whil log is open.
-   * 
-   * <p>Locking the state is accomplished by 
-   * creating a ".lock" file.  Presence of the
-   * lock file indicates that an instance of
+   * saves state variables to the state file.
+   * <p>The state file is forced to disk before save() returns.
+   */
+  void save() throws IOException
+  {
+    int files = firstBSN.length;
+    ByteBuffer state = ByteBuffer.allocate(size(files));
+    state.putInt(STATE_ID);
+    state.putShort(STATE_VERSION);
+    state.putInt(files);
+    state.putInt(maxBlocksPerFile);
+    state.putInt(blockSize);
+    state.put((byte)offsetBits);
+    state.putInt(activeIndex);
+    state.putLong(lastBSN);
+    state.putLong(position);
+    state.putLong(activeMark);
+    state.put((byte)(automark ? 1 : 0));
+    for (int i = 0; i < files; ++i)
+    {
+      state.putLong(firstBSN[i]);
+      state.putLong(highMark[i]);
+      state.putShort((short)formatVersion[i]);
+      state.put((byte)(newFile[i] ? 1 : 0));
+      state.putLong(length[i]);
+      state.putLong(lastModified[i]);
+    }
+    CRC32 crc = new CRC32();
+    crc.update(state.array(), 0, state.position());
+    state.putInt((int)crc.getValue());
+
+    FileOutputStream out = new FileOutputStream(stateFile);
+    try {
+      out.write(state.array());
+      out.getFD().sync();
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * make state unavailable while log is open.
+   *
+   * <p>Locking the state is accomplished by
+   * deleting the state file.  Absence of the
+   * state file indicates that an instance of
    * the logger is currently open, or that a
    * previous instance failed to close properly,
    * perhaps due to system or JVM failure.
    */
   void lock()
   {
+    stateFile.delete();
+  }
 
+  /**
+   * returns the size of a state file for a set of
+   * <i> files </i> log files.
+   * @param files number of files in the set.
+   * @return size of the state file in bytes.
+   */
+  private static int size(int files)
+  {
+    return 48 + (files * 35) + 4;
   }
-  
+
 }
@@ -37,6 +37,7 @@
 package org.objectweb.howl.log;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Manage a configured set of two or more physical log files.
@@ -131,6 +132,11 @@ public class Logger extends LogObject
    * block (in bmgr.put()) until the <i> data </i> buffer is forced to disk.
    * Otherwise, the method returns immediately.
    * 
+   * <p>Records that are larger than a block are split into
+   * fragments that are stored in consecutive blocks.  The
+   * fragments are reassembled by replay() and get(), so the
+   * record is returned exactly as if it had fit in one block.
+   * 
    * @param data record data
    * @param sync true if call should block until force
    * 
@@ -144,6 +150,7 @@ public class Logger extends LogObject
    * 
    * @throws LogClosedException
    * @throws LogRecordSizeException
+   * if the record is larger than the maximum LogRecord.length.
    * @throws LogFileOverflowException
    * @throws InterruptedException
    * @throws IOException
@@ -181,6 +188,232 @@ public class Logger extends LogObject
     return put(LogRecordType.USER, new byte[][]{data}, sync);
   }
 
+  /**
+   * add a USER record consisting of byte[][] to log
+   * with a specified durability.
+   * 
+   * <p>The method blocks until the record has reached the
+   * requested <i> durability </i>.  Durability.BUFFERED returns
+   * as soon as the record is in a log buffer, Durability.WRITTEN
+   * returns after the buffer has been written to the log file,
+   * and Durability.FORCED returns after the buffer has been
+   * forced to disk.
+   * 
+   * @param data record data
+   * @param durability one of the levels defined by Durability
+   * @return log key for the record
+   * @throws LogClosedException
+   * @throws LogRecordSizeException
+   * @throws LogFileOverflowException
+   * @throws InterruptedException
+   * @throws IOException
+   * 
+   * @see Durability
+   * @see #getDurableMark()
+   */
+  public long put(byte[][] data, int durability)
+    throws LogClosedException, LogRecordSizeException, LogFileOverflowException,
+                InterruptedException, IOException
+  {
+    return put(LogRecordType.USER, data, durability);
+  }
+  
+  /**
+   * add a USER record consisting of byte[] to the log
+   * with a specified durability.
+   * 
+   * <p>wrap byte[] <i> data </i> in a new byte[][]
+   * and delegates call to put(byte[][], int)
+   *  
+   * @param data byte[] to be written to log
+   * @param durability one of the levels defined by Durability
+   * @return log key for the record
+   * @throws LogClosedException
+   * @throws LogRecordSizeException
+   * @throws LogFileOverflowException
+   * @throws InterruptedException
+   * @throws IOException
+   */
+  public long put(byte[] data, int durability)
+    throws LogClosedException, LogRecordSizeException, LogFileOverflowException,
+      InterruptedException, IOException
+  {
+    return put(LogRecordType.USER, new byte[][]{data}, durability);
+  }
+
+  /**
+   * add a USER record consisting of ByteBuffer[] to log.
+   * 
+   * <p>The remaining bytes of each ByteBuffer are copied
+   * directly into the log buffer, so callers that build records
+   * in heap or direct ByteBuffers do not need to copy them
+   * into byte[] first.  The position of each ByteBuffer
+   * is unchanged on return.
+   * 
+   * <p>The record is stored in the same format as a record
+   * written by put(byte[][], boolean), with one field
+   * for each ByteBuffer.
+   * 
+   * @param data record data
+   * @param sync true if call should block until force
+   * @return log key for the record
+   * @throws LogClosedException
+   * @throws LogRecordSizeException
+   * @throws LogFileOverflowException
+   * @throws InterruptedException
+   * @throws IOException
+   * @see #put(byte[][], boolean)
+   */
+  public long put(ByteBuffer[] data, boolean sync)
+    throws LogClosedException, LogRecordSizeException, LogFileOverflowException,
+      InterruptedException, IOException
+  {
+    return put(LogRecordType.USER, data, sync);
+  }
+
+  /**
+   * claim space in the log for a USER record of <i> size </i>
+   * bytes that the caller encodes in place.
+   * 
+   * <p>The caller puts exactly <i> size </i> bytes into
+   * the ByteBuffer returned by LogReservation.getBuffer() and then
+   * calls LogReservation.commit().  The record is copied into the log
+   * buffer by the caller's encoder, so no intermediate byte[]
+   * is needed.  During replay the record is returned as
+   * a single field, just as for put(byte[], boolean).
+   * 
+   * <p>The log buffer containing the record cannot be written
+   * until the reservation is committed, so the record should be
+   * encoded and committed immediately.  A thread must not
+   * hold more than one uncommitted reservation.
+   * 
+   * @param size number of bytes of record data.
+   * @return LogReservation for the record.
+   * @throws LogClosedException
+   * @throws LogRecordSizeException
+   * @throws LogFileOverflowException
+   * @throws InterruptedException
+   * @throws IOException
+   * @see LogReservation#commit(boolean)
+   */
+  public LogReservation reserve(int size)
+    throws LogClosedException, LogRecordSizeException, LogFileOverflowException,
+      InterruptedException, IOException
+  {
+    return reserve(LogRecordType.USER, size);
+  }
+
+  /**
+   * add a USER record consisting of byte[][] to log without
+   * waiting for the record to be forced to disk.
+   * 
+   * <p>The returned LogKeyFuture provides the log key immediately,
+   * and completes when the LogBuffer containing the record has
+   * been forced to disk.  This allows callers that use an
+   * event driven model to avoid parking a thread for every
+   * record that must be durable.
+   * 
+   * @param data record data
+   * 
+   * @return LogKeyFuture for the record.
+   * 
+   * @throws LogClosedException
+   * @throws LogRecordSizeException
+   * @throws LogFileOverflowException
+   * @throws InterruptedException
+   * @throws IOException
+   * 
+   * @see #put(byte[][], boolean)
+   * @see LogKeyFuture
+   */
+  public LogKeyFuture putAsync(byte[][] data)
+    throws LogClosedException, LogRecordSizeException, LogFileOverflowException,
+                InterruptedException, IOException
+  {
+    return putAsync(LogRecordType.USER, data);
+  }
+
+  /**
+   * Sub-classes call this method to write log records with
+   * a specific record type without waiting for the
+   * record to be forced to disk.
+   * 
+   * @param type a record type defined in LogRecordType.
+   * @param data record data to be logged.
+   * 
+   * @return LogKeyFuture for the record.
+   * @see #put(short, byte[][], boolean)
+   */
+  protected LogKeyFuture putAsync(short type, byte[][] data)
+  throws LogClosedException, LogRecordSizeException, LogFileOverflowException,
+  InterruptedException, IOException
+  {
+    synchronized(this)
+    {
+      if (isClosed) throw new LogClosedException();
+    }
+    
+    LogKeyFuture future = bmgr.putAsync(type, data);
+    lfmgr.setCurrentKey(future.getKey());
+    
+    return future;
+  }
+
+  /**
+   * add a batch of USER records to the log.
+   * 
+   * <p>All records are written before the caller waits for
+   * the force.  If <i> sync </i> is true, the method blocks once
+   * until every record of the batch has been forced to disk.
+   * 
+   * @param records array of records, each consisting of byte[][] data.
+   * @param sync true if call should block until the batch is forced.
+   * 
+   * @return array of log keys, one for each record of the batch.
+   * 
+   * @throws LogClosedException
+   * @throws LogRecordSizeException
+   * @throws LogFileOverflowException
+   * @throws InterruptedException
+   * @throws IOException
+   * 
+   * @see #put(byte[][], boolean)
+   */
+  public long[] putBatch(byte[][][] records, boolean sync)
+    throws LogClosedException, LogRecordSizeException, LogFileOverflowException,
+                InterruptedException, IOException
+  {
+    return putBatch(LogRecordType.USER, records, sync);
+  }
+  
+  /**
+   * Sub-classes call this method to write a batch of
+   * log records with a specific record type.
+   * 
+   * @param type a record type defined in LogRecordType.
+   * @param records array of records to be logged.
+   * @param sync boolean indicating whether call should
+   * wait for the batch to be written to physical disk.
+   * 
+   * @return array of log keys for the records.
+   * @see #put(short, byte[][], boolean)
+   */
+  protected long[] putBatch(short type, byte[][][] records, boolean sync)
+  throws LogClosedException, LogRecordSizeException, LogFileOverflowException,
+  InterruptedException, IOException
+  {
+    synchronized(this)
+    {
+      if (isClosed) throw new LogClosedException();
+    }
+    
+    long[] keys = bmgr.putBatch(type, records, sync);
+    if (keys.length > 0)
+      lfmgr.setCurrentKey(keys[keys.length - 1]);
+    
+    return keys;
+  }
+  
   /**
    * Sub-classes call this method to write log records with
    * a specific record type.
@@ -210,6 +443,111 @@ public class Logger extends LogObject
     return key;
   }
   
+  /**
+   * Sub-classes call this method to write log records with
+   * a specific record type and durability.
+   * 
+   * @param type a record type defined in LogRecordType.
+   * @param data record data to be logged.
+   * @param durability one of the levels defined by Durability.
+   * 
+   * @return a log key that can be used to reference
+   * the record.
+   */
+  protected long put(short type, byte[][] data, int durability)
+  throws LogClosedException, LogRecordSizeException, LogFileOverflowException,
+  InterruptedException, IOException
+  {
+    synchronized(this)
+    {
+      if (isClosed) throw new LogClosedException();
+    }
+    
+    long key = bmgr.put(type, data, durability);
+    lfmgr.setCurrentKey(key);
+    
+    return key;
+  }
+  
+  /**
+   * Sub-classes call this method to claim space for log records
+   * with a specific record type.
+   * 
+   * @param type a record type defined in LogRecordType.
+   * @param size number of bytes of record data.
+   * 
+   * @return LogReservation for the record.
+   * @see #reserve(int)
+   */
+  protected LogReservation reserve(short type, int size)
+  throws LogClosedException, LogRecordSizeException, LogFileOverflowException,
+  InterruptedException, IOException
+  {
+    synchronized(this)
+    {
+      if (isClosed) throw new LogClosedException();
+    }
+    
+    LogReservation reservation = new LogReservation(this, size);
+    bmgr.reserve(type, reservation);
+    
+    return reservation;
+  }
+  
+  /**
+   * called by LogReservation.commit() to complete a
+   * record that was claimed by reserve().
+   * 
+   * @param reservation the LogReservation to be committed.
+   * @param sync boolean indicating whether call should
+   * wait for data to be written to physical disk.
+   */
+  void commit(LogReservation reservation, boolean sync)
+  throws InterruptedException, IOException
+  {
+    bmgr.commit(reservation, sync);
+    lfmgr.setCurrentKey(reservation.getKey());
+  }
+  
+  /**
+   * called by LogReservation.abort() to release a
+   * record that was claimed by reserve().
+   * 
+   * @param reservation the LogReservation to be aborted.
+   */
+  void abort(LogReservation reservation) throws IOException
+  {
+    bmgr.abort(reservation);
+  }
+  
+  /**
+   * Sub-classes call this method to write log records
+   * consisting of ByteBuffer fields with a specific record type.
+   * 
+   * @param type a record type defined in LogRecordType.
+   * @param data record data to be logged.
+   * @param sync boolean indicating whether call should
+   * wait for data to be written to physical disk.
+   * 
+   * @return a log key that can be used to reference
+   * the record.
+   * @see #put(short, byte[][], boolean)
+   */
+  protected long put(short type, ByteBuffer[] data, boolean sync)
+  throws LogClosedException, LogRecordSizeException, LogFileOverflowException,
+  InterruptedException, IOException
+  {
+    synchronized(this)
+    {
+      if (isClosed) throw new LogClosedException();
+    }
+    
+    long key = bmgr.put(type, data, sync);
+    lfmgr.setCurrentKey(key);
+    
+    return key;
+  }
+  
   /**
    * sets the LogFile's mark.
    * 
@@ -330,6 +668,36 @@ public class Logger extends LogObject
     lfmgr.setLogEventListener(eventListener);
   }
   
+  /**
+   * Registers a DurableMarkListener to be notified
+   * when the durable mark advances.
+   * 
+   * @param listener object to be notified, or null
+   * to stop notifications.
+   * @see #getDurableMark()
+   */
+  public void setDurableMarkListener(DurableMarkListener listener)
+  {
+    bmgr.setDurableMarkListener(listener);
+  }
+  
+  /**
+   * returns the durable mark of the log.
+   * 
+   * <p>Every record with a log key less than the durable
+   * mark has been forced to disk.  Applications that put
+   * records with Durability.BUFFERED or Durability.WRITTEN
+   * may compare their keys with the durable mark to
+   * learn when the records are durable.
+   * 
+   * @return the durable mark.
+   * @see DurableMarkListener
+   */
+  public long getDurableMark()
+  {
+    return bmgr.getDurableMark();
+  }
+  
   /**
    * Replays log from a specified mark forward to the current mark.
    * 
@@ -420,7 +788,7 @@ public class Logger extends LogObject
     LogException, InvalidLogBufferException
   {
     /* this code is similar to LogBufferManager.replay() -- potential for refactor */
-    int bsn = bmgr.bsnFromMark(mark);
+    long bsn = bmgr.bsnFromMark(mark);
     if (mark < 0 || (bsn == 0 && mark != 0))
       throw new InvalidLogKeyException(Long.toHexString(mark));
     
@@ -455,7 +823,7 @@ public class Logger extends LogObject
     
     // verify we have the desired block
     // if requested mark == 0 then we start with the oldest block available
-    int markBSN = (mark == 0) ? buffer.bsn : bmgr.bsnFromMark(mark);
+    long markBSN = (mark == 0) ? buffer.bsn : bmgr.bsnFromMark(mark);
     if (markBSN != buffer.bsn) {
       InvalidLogBufferException lbe = new InvalidLogBufferException(
           "block read [" + buffer.bsn + "] not block requested: " + markBSN);
@@ -470,10 +838,13 @@ public class Logger extends LogObject
      * of a record.  This protects against using marks that were
      * not generated by the current Logger.
      */
-    lr.get(buffer); // get first record in buffer
+    lr.fragmentKey = 0;
+    getRecord(lr); // get first record in buffer
     if (mark > 0 && mark > bmgr.markFromBsn(markBSN,0)) {
-      while(lr.key < mark) {
-        lr.get(buffer);
+      // records at the start of a file may be returned
+      // before a continued record is complete
+      while(lr.key < mark || lr.fragmentKey == mark) {
+        getRecord(lr);
       }
       if (lr.key != mark) {
         String msg = "The requested mark [" + Long.toHexString(mark) + 
@@ -502,33 +873,75 @@ public class Logger extends LogObject
   {
     if (lr == null || lr.buffer == null) throw new IllegalArgumentException();
     
-    LogBuffer buffer = lr.buffer;
-    
     // get next record
-    lr.get(buffer);
+    getRecord(lr);
     
     if (lr.isEOB())
     {
-      long bsn = buffer.bsn;  // so we can test for wraparound
-      try {
-        lfmgr.read(buffer, buffer.bsn+1);
-      } catch (IOException e) {
-        LogFile lf = lr.buffer.lf;
-        String msg = "Error reading " + lf.file + " @ position [" + lf.position + "]";
-        throw new LogException(msg, e);
-      }
-      
-      if (buffer.bsn == -1 || buffer.bsn < bsn) // BUG 304982
-      {
-        lr.type = LogRecordType.END_OF_LOG;
+      if (!readNextBlock(lr))
         return lr;
-      }
       
-      lr.get(buffer);
+      getRecord(lr);
     }
 
     return lr;
   }
+  
+  /**
+   * helper for get() and getNext().
+   * <p>gets the next record from lr.buffer.  If the record
+   * was put as fragments, the blocks that follow are read
+   * until the record has been reassembled.
+   * <p>Records that LogRecord.get() returns between the
+   * fragments, such as the FILE_HEADER of a new file, are
+   * returned to the caller.  The LogRecord continues
+   * reassembling the record on the next call.
+   * @param lr LogRecord to be updated with the next record.
+   * @return lr
+   */
+  private LogRecord getRecord(LogRecord lr)
+    throws InvalidLogBufferException, LogException
+  {
+    lr.get(lr.buffer);
+    
+    while (lr.fragmentKey != 0 && lr.isEOB())
+    {
+      if (!readNextBlock(lr))
+        break;
+      
+      lr.get(lr.buffer);
+    }
+    
+    return lr;
+  }
+  
+  /**
+   * reads the block that follows lr.buffer.
+   * @param lr LogRecord containing the LogBuffer to be read.
+   * @return false if there are no more blocks, and lr.type has
+   * been set to END_OF_LOG.
+   */
+  private boolean readNextBlock(LogRecord lr)
+    throws InvalidLogBufferException, LogException
+  {
+    LogBuffer buffer = lr.buffer;
+    long bsn = buffer.bsn;  // so we can test for wraparound
+    try {
+      lfmgr.read(buffer, buffer.bsn+1);
+    } catch (IOException e) {
+      LogFile lf = lr.buffer.lf;
+      String msg = "Error reading " + lf.file + " @ position [" + lf.position + "]";
+      throw new LogException(msg, e);
+    }
+    
+    if (buffer.bsn == -1 || buffer.bsn < bsn) // BUG 304982
+    {
+      lr.type = LogRecordType.END_OF_LOG;
+      return false;
+    }
+    
+    return true;
+  }
 
   /**
    * return an XML node containing statistics for the Logger,
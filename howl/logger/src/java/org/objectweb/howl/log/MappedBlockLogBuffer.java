@@ -0,0 +1,179 @@
+/*
+ * JOnAS: Java(TM) Open Application Server
+ * Copyright (C) 2004 Bull S.A.
+ * All rights reserved.
+ * 
+ * Contact: howl@objectweb.org
+ * 
+ * This software is licensed under the BSD license.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *     
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *     
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * ------------------------------------------------------------------------------
+ * $Id$
+ * ------------------------------------------------------------------------------
+ */
+package org.objectweb.howl.log;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An implementation of BlockLogBuffer that fills records
+ * directly into a memory mapped region of the LogFile.
+ * 
+ * <p>Each LogFile is mapped in its entirety the first time
+ * a block is assigned to the file.  init() builds the block
+ * header in the ByteBuffer allocated by LogBuffer, then
+ * moves it into the mapped region for the block.  Records
+ * are copied into the mapping, so write() does not
+ * copy the block with FileChannel.write(), and
+ * LogFile.force() forces the mapping.
+ * 
+ * <p>Blocks are read by copying them from the mapping
+ * into the ByteBuffer allocated by LogBuffer, so replay
+ * does not call FileChannel.read().
+ * 
+ * <p>Select this implementation by setting the
+ * bufferClassName configuration property to
+ * org.objectweb.howl.log.MappedBlockLogBuffer.
+ * 
+ * @see LogFile#map(long)
+ */
+class MappedBlockLogBuffer extends BlockLogBuffer
+{
+  /**
+   * ByteBuffer allocated by LogBuffer.
+   * <p>Used by init() to build the block header before
+   * the LogFile is known, and by read().
+   */
+  private final ByteBuffer blockBuffer;
+  
+  /**
+   * number of bytes to be mapped for each LogFile.
+   */
+  private final long mapSize;
+  
+  /**
+   * default constructor calls super class constructor.
+   */
+  MappedBlockLogBuffer(Configuration config)
+  {
+    super(config);
+    blockBuffer = buffer;
+    mapSize = (long)config.getMaxBlocksPerFile() * buffer.capacity();
+  }
+  
+  /**
+   * @see BlockLogBuffer#init(int, LogFileManager)
+   */
+  LogBuffer init(long bsn, LogFileManager lfm) throws LogFileOverflowException, IOException
+  {
+    buffer = blockBuffer;
+    return super.init(bsn, lfm);
+  }
+  
+  /**
+   * Moves the block header, the records put by the
+   * LogFileManager, and the block footer into the mapped
+   * region for this block, then uses the mapped region
+   * as the buffer.
+   */
+  void fileAssigned() throws IOException
+  {
+    ByteBuffer block = mappedBlock(lf, (long)(bsn - lf.firstBSN) * blockBuffer.capacity());
+    
+    blockBuffer.clear().limit(fillPosition.get() & ~SEALED);
+    block.put(blockBuffer);
+    
+    blockBuffer.clear().position(fillLimit);
+    block.position(fillLimit);
+    block.put(blockBuffer);
+    
+    buffer = block;
+  }
+  
+  /**
+   * updates the block header in the mapped region.
+   * <p>The block is recorded as changed so the
+   * next LogFile.force() includes it.
+   * @return false because the block is already in the LogFile.
+   */
+  boolean prepareWrite() throws IOException
+  {
+    super.prepareWrite();
+    lf.bytesWritten += buffer.capacity();
+    lf.markDirty((long)(bsn - lf.firstBSN) * buffer.capacity(), buffer.capacity());
+    return false;
+  }
+  
+  /**
+   * blocks of a mapped LogFile remain at fixed positions,
+   * so compact blocks are never written.
+   * @return buffer.capacity()
+   */
+  int compactSize(int used)
+  {
+    return buffer.capacity();
+  }
+  
+  /**
+   * copies a block from the mapped LogFile into the
+   * ByteBuffer allocated by LogBuffer.
+   * <p>Blocks that are past the end of the file are
+   * read by BlockLogBuffer so the file is not extended
+   * by a read.
+   */
+  int readBlock(LogFile lf, long position) throws IOException
+  {
+    buffer = blockBuffer;
+    
+    int blockSize = blockBuffer.capacity();
+    if (position + blockSize > mapSize || position >= lf.channel.size())
+      return super.readBlock(lf, position);
+    
+    blockBuffer.clear();
+    blockBuffer.put(mappedBlock(lf, position));
+    return blockSize;
+  }
+  
+  /**
+   * returns a ByteBuffer for the region of the mapped
+   * LogFile <i> lf </i> that contains the block at
+   * <i> position </i>.
+   * 
+   * @param lf LogFile to be mapped.
+   * @param position file position of the block.
+   * @return ByteBuffer for the block.
+   * @throws IOException
+   */
+  private ByteBuffer mappedBlock(LogFile lf, long position) throws IOException
+  {
+    ByteBuffer block = lf.map(mapSize).duplicate();
+    block.limit((int)position + blockBuffer.capacity());
+    block.position((int)position);
+    return block.slice();
+  }
+}
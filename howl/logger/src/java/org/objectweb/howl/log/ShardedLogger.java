@@ -0,0 +1,618 @@
+/*
+ * JOnAS: Java(TM) Open Application Server
+ * Copyright (C) 2004 Bull S.A.
+ * All rights reserved.
+ * 
+ * Contact: howl@objectweb.org
+ * 
+ * This software is licensed under the BSD license.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 
+ *   * Redistributions of source code must retain the above copyright
+ *     notice, this list of conditions and the following disclaimer.
+ *     
+ *   * Redistributions in binary form must reproduce the above copyright
+ *     notice, this list of conditions and the following disclaimer in the
+ *     documentation and/or other materials provided with the distribution.
+ *     
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * ------------------------------------------------------------------------------
+ * $Id$
+ * ------------------------------------------------------------------------------
+ */
+package org.objectweb.howl.log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Distributes records over several independent Loggers (shards).
+ * 
+ * <p>Each shard is a complete Logger with its own
+ * Configuration, LogFileManager and LogBufferManager.
+ * Each shard has its own logFileDir, so shards
+ * placed on different devices write and force independently.
+ * 
+ * <p>Records are routed to a shard by a caller supplied shard key.
+ * Records with the same shard key are always written to the same
+ * shard, in the order they are put.
+ * 
+ * <p>put() returns a composite log key that carries the
+ * index of the shard in bits 56 through 62, and the log key
+ * returned by the shard in the low order bits.
+ * Composite keys are accepted by mark() and get().
+ * The log keys of a shard must fit in 56 bits, so a shard
+ * can write 2^(56 - logKeyOffsetBits) blocks.  open() rejects
+ * a shard that cannot write every block of its file set
+ * once more within that limit, and put() throws
+ * LogFileOverflowException when a key does not fit.
+ *
+ * <p>Every record is prefixed with an 8 byte field
+ * containing a global sequence number.  replay() reads all
+ * shards concurrently and returns the records of all shards
+ * merged by sequence number.  The sequence field is removed
+ * before the record is passed to the ReplayListener, so records
+ * are returned with the fields that were passed to put().
+ * Records that are put concurrently to the same shard are
+ * returned in the order they were written to that shard.
+ * 
+ * <p>open() replays each shard to recover the last sequence
+ * number used.
+ */
+public class ShardedLogger
+{
+  /**
+   * number of bits the shard index is shifted in a composite log key.
+   */
+  static final int SHARD_SHIFT = 56;
+
+  /**
+   * maximum number of shards supported by the composite log key.
+   */
+  public static final int MAX_SHARDS = 127;
+
+  /**
+   * size of the sequence field including the field length.
+   */
+  private static final int SEQUENCE_FIELD_SIZE = 2 + 8;
+
+  /**
+   * maximum number of records queued by each shard during replay.
+   */
+  private static final int REPLAY_QUEUE_SIZE = 256;
+
+  /**
+   * the shards.
+   */
+  private final Logger[] shards;
+
+  /**
+   * last global sequence number assigned by put().
+   */
+  private final AtomicLong sequence = new AtomicLong();
+
+  /**
+   * construct a ShardedLogger with one shard for each Configuration.
+   * 
+   * @param config array of Configuration objects, one for each shard.
+   * Each Configuration must specify a different logFileDir.
+   * @throws LogConfigurationException
+   * if the number of shards is not between 1 and MAX_SHARDS,
+   * or two shards are configured with the same logFileDir.
+   * @throws IOException
+   */
+  public ShardedLogger(Configuration[] config)
+    throws LogConfigurationException, IOException
+  {
+    if (config.length < 1 || config.length > MAX_SHARDS)
+      throw new LogConfigurationException("number of shards [" + config.length +
+          "] must be between 1 and " + MAX_SHARDS);
+
+    HashSet dirs = new HashSet();
+    for (int i = 0; i < config.length; ++i)
+    {
+      String dir = new File(config[i].getLogFileDir()).getAbsolutePath();
+      if (!dirs.add(dir))
+        throw new LogConfigurationException("logFileDir [" + dir + "] is used by more than one shard");
+    }
+
+    shards = new Logger[config.length];
+    for (int i = 0; i < config.length; ++i)
+      shards[i] = new Logger(config[i]);
+  }
+
+  /**
+   * @return number of shards.
+   */
+  public int getShardCount()
+  {
+    return shards.length;
+  }
+
+  /**
+   * returns the shard that records with <i> shardKey </i> are written to.
+   * @param shardKey caller supplied shard key.
+   * @return index of the shard.
+   */
+  public int getShard(int shardKey)
+  {
+    return (shardKey & 0x7fffffff) % shards.length;
+  }
+
+  /**
+   * returns the index of the shard from a composite log key.
+   * @param key composite log key returned by put().
+   * @return index of the shard.
+   */
+  public static int shardFromKey(long key)
+  {
+    return (int)(key >>> SHARD_SHIFT);
+  }
+
+  /**
+   * returns the log key of the shard from a composite log key.
+   * @param key composite log key returned by put().
+   * @return log key within the shard.
+   */
+  public static long shardKey(long key)
+  {
+    return key & ((1L << SHARD_SHIFT) - 1);
+  }
+
+  /**
+   * builds a composite log key.
+   * @throws LogFileOverflowException
+   * if <i> key </i> does not fit below the shard index.
+   */
+  private static long compositeKey(int shard, long key)
+    throws LogFileOverflowException
+  {
+    if ((key >>> SHARD_SHIFT) != 0)
+      throw new LogFileOverflowException("log key " + Long.toHexString(key) + " of shard " + shard +
+          " does not fit in " + SHARD_SHIFT + " bits");
+    return ((long)shard << SHARD_SHIFT) | key;
+  }
+
+  /**
+   * verifies that the log keys of a shard fit in
+   * SHARD_SHIFT bits until the shard has written
+   * every block of its file set once more.
+   * @param shard index of the shard.
+   * @throws LogConfigurationException
+   * if BSN bits + logKeyOffsetBits exceed SHARD_SHIFT.
+   */
+  private void checkKeyBits(int shard)
+    throws LogConfigurationException
+  {
+    LogBufferManager bmgr = shards[shard].bmgr;
+    long blocks = (long)bmgr.config.getMaxLogFiles() * bmgr.config.getMaxBlocksPerFile();
+    int bsnBits = 64 - Long.numberOfLeadingZeros(bmgr.nextFillBSN + blocks);
+    if (bsnBits + bmgr.offsetBits > SHARD_SHIFT)
+      throw new LogConfigurationException("shard " + shard + " needs " + bsnBits + " BSN bits and " +
+          bmgr.offsetBits + " logKeyOffsetBits, but the log keys of a shard are limited to " +
+          SHARD_SHIFT + " bits");
+  }
+
+  /**
+   * returns the Logger for the shard of a composite log key.
+   * @throws InvalidLogKeyException
+   * if the key does not identify a shard.
+   */
+  private Logger shardFor(long key) throws InvalidLogKeyException
+  {
+    int shard = shardFromKey(key);
+    if (key < 0 || shard >= shards.length)
+      throw new InvalidLogKeyException(Long.toHexString(key));
+    return shards[shard];
+  }
+
+  /**
+   * open each shard and recover the global sequence number.
+   * @throws LogConfigurationException
+   * if the log keys of a shard may not fit in a composite log key.
+   */
+  public void open()
+    throws InvalidFileSetException,
+           IOException, LogConfigurationException, InvalidLogBufferException, InterruptedException
+  {
+    for (int i = 0; i < shards.length; ++i)
+    {
+      shards[i].open();
+      try {
+        checkKeyBits(i);
+      } catch (LogConfigurationException e) {
+        for (int j = 0; j <= i; ++j)
+          shards[j].close();
+        throw e;
+      }
+    }
+
+    // recover the last sequence number used by any shard
+    for (int i = 0; i < shards.length; ++i)
+    {
+      SequenceReader reader = new SequenceReader();
+      shards[i].replay(reader);
+      if (reader.exception != null)
+        throw new LogConfigurationException(reader.exception);
+      if (reader.maxSequence > sequence.get())
+        sequence.set(reader.maxSequence);
+    }
+  }
+
+  /**
+   * close each shard.
+   */
+  public void close() throws IOException, InterruptedException
+  {
+    for (int i = 0; i < shards.length; ++i)
+      shards[i].close();
+  }
+
+  /**
+   * add a USER record consisting of byte[][] to the shard
+   * selected by <i> shardKey </i>.
+   * 
+   * <p>if <i> sync </i> parameter is true, then the method will
+   * block until the record is forced to disk by the shard.
+   * 
+   * @param shardKey caller supplied key used to select the shard.
+   * @param data record data
+   * @param sync true if call should block until force
+   * @return composite log key for the record.
+   * @see Logger#put(byte[][], boolean)
+   */
+  public long put(int shardKey, byte[][] data, boolean sync)
+    throws LogClosedException, LogRecordSizeException, LogFileOverflowException,
+                InterruptedException, IOException
+  {
+    int shard = getShard(shardKey);
+
+    byte[][] record = new byte[data.length + 1][];
+    record[0] = new byte[8];
+    System.arraycopy(data, 0, record, 1, data.length);
+
+    ByteBuffer.wrap(record[0]).putLong(sequence.incrementAndGet());
+
+    return compositeKey(shard, shards[shard].put(record, sync));
+  }
+
+  /**
+   * add a USER record consisting of byte[] to the shard
+   * selected by <i> shardKey </i>.
+   * 
+   * @param shardKey caller supplied key used to select the shard.
+   * @param data record data
+   * @param sync true if call should block until force
+   * @return composite log key for the record.
+   * @see #put(int, byte[][], boolean)
+   */
+  public long put(int shardKey, byte[] data, boolean sync)
+    throws LogClosedException, LogRecordSizeException, LogFileOverflowException,
+                InterruptedException, IOException
+  {
+    return put(shardKey, new byte[][] { data }, sync);
+  }
+
+  /**
+   * sets the mark of the shard identified by a composite log key.
+   * 
+   * @param key composite log key returned by put().
+   * @param force true if the caller should wait for the mark
+   * to be forced to disk.
+   * @see Logger#mark(long, boolean)
+   */
+  public void mark(long key, boolean force)
+    throws InvalidLogKeyException, LogClosedException, IOException, InterruptedException
+  {
+    shardFor(key).mark(shardKey(key), force);
+  }
+
+  /**
+   * sets the marking mode of every shard.
+   * @param autoMark true to indicate automatic marking.
+   * @see Logger#setAutoMark(boolean)
+   */
+  public void setAutoMark(boolean autoMark)
+    throws InvalidLogKeyException, LogClosedException, LogFileOverflowException, IOException, InterruptedException
+  {
+    for (int i = 0; i < shards.length; ++i)
+      shards[i].setAutoMark(autoMark);
+  }
+
+  /**
+   * Read a specific record from the log.
+   * 
+   * <p>The sequence field is removed, and the key of the
+   * LogRecord is set to the composite log key.
+   * 
+   * @param lr LogRecord to be updated or null if caller wishes a new
+   *           LogRecord to be allocated.
+   * @param key composite log key returned by put().
+   * @return LogRecord containing requested record
+   * @see Logger#get(LogRecord, long)
+   */
+  public LogRecord get(LogRecord lr, long key)
+    throws InvalidLogKeyException, LogConfigurationException,
+      LogException, InvalidLogBufferException
+  {
+    lr = shardFor(key).get(lr, shardKey(key));
+    if (lr.type == LogRecordType.USER)
+      removeSequence(lr, key);
+    return lr;
+  }
+
+  /**
+   * Replays all shards and returns USER records merged
+   * by global sequence number.
+   * 
+   * <p>Each shard is replayed from its active mark by a separate
+   * thread.  When all shards reach the end of the log, one final
+   * record with a type of END_OF_LOG is returned.  If an error is
+   * encountered by any shard, the <i> listener </i> onError method
+   * is called and replay terminates.
+   * 
+   * @param listener an object that implements ReplayListener interface.
+   * @see Logger#replay(ReplayListener)
+   */
+  public void replay(ReplayListener listener)
+  {
+    ShardReader[] readers = new ShardReader[shards.length];
+    LogRecord[] heads = new LogRecord[shards.length];
+    for (int i = 0; i < shards.length; ++i)
+    {
+      readers[i] = new ShardReader(shards[i]);
+      readers[i].start();
+    }
+
+    LogRecord lr = listener.getLogRecord();
+    try
+    {
+      for (int i = 0; i < shards.length; ++i)
+        heads[i] = readers[i].take();
+
+      while (true)
+      {
+        // select the record with the lowest sequence number
+        int next = -1;
+        for (int i = 0; i < shards.length; ++i)
+        {
+          if (heads[i] == ShardReader.END) continue;
+          if (next < 0 || getSequence(heads[i]) < getSequence(heads[next]))
+            next = i;
+        }
+
+        if (next < 0) break;
+
+        LogRecord head = heads[next];
+        copy(head, lr);
+        removeSequence(lr, compositeKey(next, head.key));
+        listener.onRecord(lr);
+
+        heads[next] = readers[next].take();
+      }
+
+      for (int i = 0; i < shards.length; ++i)
+      {
+        if (readers[i].exception != null)
+        {
+          listener.onError(readers[i].exception);
+          return;
+        }
+      }
+
+      lr.type = LogRecordType.END_OF_LOG;
+      lr.length = 0;
+      lr.key = 0L;
+      lr.dataBuffer.clear().limit(0);
+      lr.fields = null;
+      listener.onRecord(lr);
+    }
+    catch (InterruptedException e)
+    {
+      listener.onError(new LogException(e.toString()));
+    }
+    catch (LogFileOverflowException e)
+    {
+      // the key of a replayed record does not fit in a composite key
+      listener.onError(e);
+    }
+    finally
+    {
+      for (int i = 0; i < shards.length; ++i)
+        readers[i].shutdown();
+    }
+  }
+
+  /**
+   * returns the global sequence number of a record
+   * that still contains the sequence field.
+   */
+  private static long getSequence(LogRecord lr)
+  {
+    return lr.dataBuffer.getLong(2);
+  }
+
+  /**
+   * copies the record in <i> from </i> into <i> to </i>.
+   */
+  private static void copy(LogRecord from, LogRecord to)
+  {
+    if (to.data.length < from.length)
+    {
+      to.data = new byte[from.length];
+      to.dataBuffer = ByteBuffer.wrap(to.data);
+    }
+    System.arraycopy(from.data, 0, to.data, 0, from.length);
+    to.type = from.type;
+    to.length = from.length;
+    to.key = from.key;
+    to.tod = from.tod;
+  }
+
+  /**
+   * removes the sequence field from a USER record and
+   * sets the key of the record to <i> key </i>.
+   */
+  private static void removeSequence(LogRecord lr, long key)
+  {
+    int length = lr.length - SEQUENCE_FIELD_SIZE;
+    System.arraycopy(lr.data, SEQUENCE_FIELD_SIZE, lr.data, 0, length);
+    lr.length = (short)length;
+    lr.key = key;
+    lr.dataBuffer.clear().limit(length);
+    lr.fields = null;
+  }
+
+  /**
+   * return statistics for each shard as an XML string.
+   * @return XML string containing the statistics of every shard.
+   * @see Logger#getStats()
+   */
+  public String getStats()
+  {
+    StringBuffer stats = new StringBuffer(
+        "<ShardedLogger  shards='" + shards.length + "'>\n");
+    for (int i = 0; i < shards.length; ++i)
+      stats.append(shards[i].getStats());
+    stats.append("</ShardedLogger>\n");
+    return stats.toString();
+  }
+
+  /**
+   * ReplayListener that records the largest sequence number
+   * found in a shard.
+   */
+  private static class SequenceReader implements ReplayListener
+  {
+    final LogRecord lr = new LogRecord(80);
+    long maxSequence = 0L;
+    LogException exception = null;
+
+    public void onRecord(LogRecord lr)
+    {
+      if (lr.type == LogRecordType.USER && lr.length >= SEQUENCE_FIELD_SIZE)
+        maxSequence = Math.max(maxSequence, getSequence(lr));
+    }
+
+    public void onError(LogException exception)
+    {
+      this.exception = exception;
+    }
+
+    public LogRecord getLogRecord()
+    {
+      return lr;
+    }
+  }
+
+  /**
+   * replays one shard on a separate thread and queues
+   * copies of the USER records for the merge in replay().
+   */
+  private static class ShardReader extends Thread implements ReplayListener
+  {
+    /**
+     * queued after the last record of the shard.
+     */
+    static final LogRecord END = new LogRecord(0);
+
+    final Logger shard;
+    final LogRecord lr = new LogRecord(80);
+    final BlockingQueue queue = new ArrayBlockingQueue(REPLAY_QUEUE_SIZE);
+    volatile boolean stopped = false;
+    volatile LogException exception = null;
+
+    ShardReader(Logger shard)
+    {
+      super("HOWL-ShardReader");
+      setDaemon(true);
+      this.shard = shard;
+    }
+
+    public void run()
+    {
+      try {
+        shard.replay(this);
+      } catch (LogConfigurationException e) {
+        exception = e;
+      } finally {
+        enqueue(END);
+      }
+    }
+
+    public void onRecord(LogRecord lr)
+    {
+      if (lr.type != LogRecordType.USER) return;
+
+      LogRecord copy = new LogRecord(lr.length);
+      ShardedLogger.copy(lr, copy);
+      copy.dataBuffer.clear().limit(copy.length);
+      enqueue(copy);
+    }
+
+    public void onError(LogException exception)
+    {
+      this.exception = exception;
+    }
+
+    public LogRecord getLogRecord()
+    {
+      return lr;
+    }
+
+    /**
+     * adds a record to the queue unless replay has been stopped.
+     */
+    private void enqueue(LogRecord record)
+    {
+      try {
+        while (!stopped && !queue.offer(record, 100, TimeUnit.MILLISECONDS))
+          ;
+      } catch (InterruptedException e) {
+        stopped = true;
+      }
+    }
+
+    /**
+     * @return the next record of the shard, or END.
+     */
+    LogRecord take() throws InterruptedException
+    {
+      return (LogRecord)queue.take();
+    }
+
+    /**
+     * stops the reader and waits for it to finish.
+     */
+    void shutdown()
+    {
+      stopped = true;
+      queue.clear();
+      try {
+        join();
+      } catch (InterruptedException e) {
+        interrupt();
+      }
+    }
+  }
+}
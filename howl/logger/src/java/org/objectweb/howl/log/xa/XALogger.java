@@ -40,6 +40,9 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 
 import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.BiFunction;
 
 import org.objectweb.howl.log.Configuration;
 import org.objectweb.howl.log.InvalidFileSetException;
@@ -49,9 +52,11 @@ import org.objectweb.howl.log.LogClosedException;
 import org.objectweb.howl.log.LogConfigurationException;
 import org.objectweb.howl.log.LogException;
 import org.objectweb.howl.log.LogFileOverflowException;
+import org.objectweb.howl.log.LogKeyFuture;
 import org.objectweb.howl.log.LogRecord;
 import org.objectweb.howl.log.LogRecordSizeException;
 import org.objectweb.howl.log.LogRecordType;
+import org.objectweb.howl.log.LogReservation;
 import org.objectweb.howl.log.Logger;
 import org.objectweb.howl.log.LogEventListener;
 import org.objectweb.howl.log.ReplayListener;
@@ -350,6 +355,103 @@ public class XALogger extends Logger
     return put(LogRecordType.USER, data, sync);
   }
   
+  /**
+   * add a USER record consisting of ByteBuffer[] to the log.
+   * <p>waits for overflow notification processing to complete
+   * prior to putting the data to the log.
+   * 
+   * @throws LogClosedException
+   * If the TM has called open() but has not called replay().
+   * Also thrown if log is actually closed.
+   * Check the toString() for details.
+   * 
+   * @see org.objectweb.howl.log.Logger#put(ByteBuffer[], boolean)
+   */
+  public long put(ByteBuffer[] data, boolean sync)
+  throws LogClosedException, LogRecordSizeException, LogFileOverflowException,
+    InterruptedException, IOException
+  {
+    checkPutEnabled();
+    
+    // wait for overflow notification processor to finish.
+    onpWait();
+    
+    return put(LogRecordType.USER, data, sync);
+  }
+  
+  /**
+   * claim space for a USER record to be encoded in place.
+   * <p>waits for overflow notification processing to complete
+   * prior to claiming space in the log.
+   * 
+   * @throws LogClosedException
+   * If the TM has called open() but has not called replay().
+   * Also thrown if log is actually closed.
+   * Check the toString() for details.
+   * 
+   * @see org.objectweb.howl.log.Logger#reserve(int)
+   */
+  public LogReservation reserve(int size)
+  throws LogClosedException, LogRecordSizeException, LogFileOverflowException,
+    InterruptedException, IOException
+  {
+    checkPutEnabled();
+    
+    // wait for overflow notification processor to finish.
+    onpWait();
+    
+    return reserve(LogRecordType.USER, size);
+  }
+  
+  /**
+   * add a batch of USER records to the log.
+   * <p>waits for overflow notification processing to complete
+   * prior to putting the data to the log.
+   * 
+   * @throws LogClosedException
+   * If the TM has called open() but has not called replay().
+   * Also thrown if log is actually closed.
+   * Check the toString() for details.
+   * 
+   * @see org.objectweb.howl.log.Logger#putBatch(byte[][][], boolean)
+   */
+  public long[] putBatch(byte[][][] records, boolean sync)
+  throws LogClosedException, LogRecordSizeException, LogFileOverflowException,
+    InterruptedException, IOException
+  {
+    checkPutEnabled();
+    
+    // wait for overflow notification processor to finish.
+    onpWait();
+    
+    return putBatch(LogRecordType.USER, records, sync);
+  }
+  
+  /**
+   * add a USER record consisting of byte[][] to the log
+   * without waiting for the force.
+   * <p>waits for overflow notification processing to complete
+   * prior to putting the data to the log.
+   * 
+   * @throws LogClosedException
+   * If the TM has called open() but has not called replay().
+   * Also thrown if log is actually closed.
+   * Check the toString() for details.
+   * 
+   * @see org.objectweb.howl.log.Logger#putAsync(byte[][])
+   */
+  public LogKeyFuture putAsync(byte[][] data)
+  throws LogClosedException, LogRecordSizeException, LogFileOverflowException,
+    InterruptedException, IOException
+  {
+    checkPutEnabled();
+    
+    // wait for overflow notification processor to finish.
+    onpWait();
+    
+    return putAsync(LogRecordType.USER, data);
+  }
+  
   /**
    * wait for overflow notification processor to finish.
    * 
@@ -425,7 +527,104 @@ public class XALogger extends Logger
   }
   
   /**
-   * Used by putCommit() and by OpenReplayListener#onRecord() 
+   * Write a begin COMMIT record to the log without waiting
+   * for the data to be forced to disk.
+   * 
+   * <p>The returned future completes with the XACommittingTx
+   * for the transaction once the COMMIT record has been
+   * forced.
+   * 
+   * <p>Unlike putCommit(), the XACommittingTx is added to the
+   * list of active transactions as soon as the COMMIT record
+   * has been put, so overflow processing that starts before the
+   * force completes moves the record like any other active
+   * transaction.  If the force fails, the entry is removed and
+   * the future completes exceptionally.
+   * 
+   * <p>Dependent actions that run on the completing thread
+   * must not put records to the log.
+   * 
+   * @param record byte[][] containing data to be logged
+   * 
+   * @return CompletableFuture that provides the XACommittingTx
+   * object to be used when putting the DONE record.
+   * 
+   * @throws LogClosedException
+   * If the TM has called open() but has not called replay().
+   * Also thrown if log is actually closed.
+   * Check the toString() for details.
+   * 
+   * @throws IOException
+   * @throws InterruptedException
+   * @throws LogFileOverflowException
+   * @throws LogRecordSizeException
+   * @see #putCommit(byte[][])
+   * @see LogKeyFuture
+   */
+  public CompletableFuture<XACommittingTx> putCommitAsync(final byte[][] record)
+  throws LogClosedException, LogRecordSizeException, LogFileOverflowException, InterruptedException, IOException
+  {
+    LogKeyFuture future = null;
+    XACommittingTx tx = null;
+    long key = 0L;
+    long overflowFence = 0L;
+    
+    checkPutEnabled();
+    
+    // wait for overflow notification processor to finish.
+    onpWait();
+    
+    /*
+     * The record is not forced when putAsync() returns, so
+     * overflow processing could move the fence past the record
+     * before the future completes.  The record is registered in
+     * activeTx right away so overflow processing that sets the
+     * fence from now on will move it.  If the fence was already
+     * set, the scan of activeTx may have passed the entry, so we
+     * wait for overflow processing to finish and re-put the record
+     * unless it has been moved.  See putCommit() for a discussion
+     * of the loop.
+     */
+    do
+    {
+      future = putAsync(LogRecordType.XACOMMIT, record);
+      key = future.getKey();
+      if (tx == null)
+        tx = activeTxAdd(key, record);
+      else
+        synchronized(tx) { tx.setLogKey(key); }
+      synchronized(this) { overflowFence = this.overflowFence; }
+      if (key < overflowFence)
+      {
+        onpWait();
+        synchronized(tx)
+        {
+          if (tx.getLogKey() != key)
+            overflowFence = 0L;  // overflow processing moved the record
+        }
+      }
+    } while (key < overflowFence);
+    
+    final XACommittingTx committing = tx;
+    return future.handle(new BiFunction<Long, Throwable, XACommittingTx>() {
+      public XACommittingTx apply(Long forced, Throwable error) {
+        if (error == null)
+          return committing;
+        
+        // the COMMIT record may not be durable
+        try {
+          activeTxRemove(committing);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        activeTxRelease(committing);
+        throw new CompletionException(error);
+      }
+    });
+  }
+  
+  /**
+   * Used by putCommit(), putCommitAsync() and by OpenReplayListener#onRecord() 
    * to add entries to the activeTx table.
    * 
    * @param key log key for the XACOMMIT record
@@ -514,24 +713,7 @@ public class XALogger extends Logger
     
     assert tx != null : "XACommitingTX is null";
     
-    // remove this entry from the activeTx table so overflow processor does not see it
-    synchronized(activeTxLock)
-    {
-      int index = tx.getIndex();
-      if (activeTx[index] != tx) throw new IllegalArgumentException();
-      activeTx[index] = null;
-    }
-    
-    // mark entry as DONE and wait (if necessary) for move to complete
-    synchronized(tx)
-    {
-      // let logOverflowNotification know that this entry does not have to be moved
-      tx.setDone(true);
-      
-      // in case logOverflowNotification got into the object first
-      while (tx.isMoving())
-        tx.wait();
-    }
+    activeTxRemove(tx);
     
     long doneKey = 0L;
     if (record != null)
@@ -556,7 +738,51 @@ public class XALogger extends Logger
       }
     } while (xadoneKey == 0L);
 
-    // make entry available for re-use.
+    activeTxRelease(tx);
+    
+    return doneKey;
+  }
+  
+  /**
+   * Used by putDone() and putCommitAsync() to remove an entry
+   * from the activeTx table so the overflow processor does not see it.
+   * <p>Waits (if necessary) for the overflow processor to finish
+   * moving the record.
+   * 
+   * @param tx XACommittingTx to be removed.
+   * @throws IllegalArgumentException
+   * if <i> tx </i> is not in the activeTx table.
+   * @throws InterruptedException
+   */
+  private void activeTxRemove(XACommittingTx tx)
+  throws InterruptedException
+  {
+    synchronized(activeTxLock)
+    {
+      int index = tx.getIndex();
+      if (activeTx[index] != tx) throw new IllegalArgumentException();
+      activeTx[index] = null;
+    }
+    
+    // mark entry as DONE and wait (if necessary) for move to complete
+    synchronized(tx)
+    {
+      // let logOverflowNotification know that this entry does not have to be moved
+      tx.setDone(true);
+      
+      // in case logOverflowNotification got into the object first
+      while (tx.isMoving())
+        tx.wait();
+    }
+  }
+  
+  /**
+   * Used by putDone() and putCommitAsync() to make an entry
+   * that has been removed from the activeTx table available for re-use.
+   * @param tx XACommittingTx to be re-used.
+   */
+  private void activeTxRelease(XACommittingTx tx)
+  {
     synchronized(activeTxLock)
     {
       tx.setLogKey(0); // prevent duplicate entries in log BUG: 303907 
@@ -566,8 +792,6 @@ public class XALogger extends Logger
       --atxUsed;
       assert atxUsed >= 0 : "Negative atxUsed (" + atxUsed + ")";
     }
-    
-    return doneKey;
   }
   
   /**
@@ -335,7 +335,26 @@ public class ConfigurationTest extends TestCase
       throw e;
     }
   }
-  
+
+  public void testLogKeyOffsetBitsRange()
+  {
+    prop.setProperty("logKeyOffsetBits", "14");
+    try {
+      cfg = new Configuration(prop);
+      fail("Expected LogConfigurationException");
+    } catch (LogConfigurationException e) {
+      // ignore the error
+    }
+
+    prop.setProperty("logKeyOffsetBits", "25");
+    try {
+      cfg = new Configuration(prop);
+      fail("Expected LogConfigurationException");
+    } catch (LogConfigurationException e) {
+      // ignore the error
+    }
+  }
+
   public void testConstrucFromFile_FileNotFound()
   throws LogException, Exception
   {
@@ -408,6 +427,17 @@ public class ConfigurationTest extends TestCase
     assertEquals("maxBuffers", this.cfg.getMaxBuffers(),       cfg.getMaxBuffers());
     assertEquals("maxLogFiles", this.cfg.getMaxLogFiles(),      cfg.getMaxLogFiles());
     assertEquals("threadsWaitingForceThreshold", this.cfg.getThreadsWaitingForceThreshold(), cfg.getThreadsWaitingForceThreshold());
+    assertEquals("dedicatedForceThread", this.cfg.isDedicatedForceThread(), cfg.isDedicatedForceThread());
+    assertEquals("forcePolicyClassName", this.cfg.getForcePolicyClassName(), cfg.getForcePolicyClassName());
+    assertEquals("commitLatencyTarget", this.cfg.getCommitLatencyTarget(), cfg.getCommitLatencyTarget());
+    assertEquals("appendLanes", this.cfg.getAppendLanes(), cfg.getAppendLanes());
+    assertEquals("preallocateFiles", this.cfg.isPreallocateFiles(), cfg.isPreallocateFiles());
+    assertEquals("crc32cChecksum", this.cfg.isCrc32cChecksumEnabled(), cfg.isCrc32cChecksumEnabled());
+    assertEquals("compactBlocks", this.cfg.isCompactBlocks(), cfg.isCompactBlocks());
+    assertEquals("compressBlocks", this.cfg.isCompressBlocks(), cfg.isCompressBlocks());
+    assertEquals("logKeyOffsetBits", this.cfg.getLogKeyOffsetBits(), cfg.getLogKeyOffsetBits());
+    assertEquals("replayReadAhead", this.cfg.getReplayReadAhead(), cfg.getReplayReadAhead());
+    assertEquals("stateFileEnabled", this.cfg.isStateFileEnabled(), cfg.isStateFileEnabled());
   }
 
   public void testConstructFromProperties()
@@ -422,6 +452,17 @@ public class ConfigurationTest extends TestCase
     prop.setProperty("bufferSize", Integer.toString(cfg.getBufferSize())); // BUG 300957
     prop.setProperty("flushSleepTime", Integer.toString(cfg.getFlushSleepTime()));
     prop.setProperty("flushPartialBuffers", Boolean.toString(cfg.isFlushPartialBuffers()));
+    prop.setProperty("dedicatedForceThread", Boolean.toString(cfg.isDedicatedForceThread()));
+    prop.setProperty("forcePolicyClassName", cfg.getForcePolicyClassName());
+    prop.setProperty("commitLatencyTarget", Integer.toString(cfg.getCommitLatencyTarget()));
+    prop.setProperty("appendLanes", Integer.toString(cfg.getAppendLanes()));
+    prop.setProperty("preallocateFiles", Boolean.toString(cfg.isPreallocateFiles()));
+    prop.setProperty("crc32cChecksum", Boolean.toString(cfg.isCrc32cChecksumEnabled()));
+    prop.setProperty("compactBlocks", Boolean.toString(cfg.isCompactBlocks()));
+    prop.setProperty("compressBlocks", Boolean.toString(cfg.isCompressBlocks()));
+    prop.setProperty("logKeyOffsetBits", Integer.toString(cfg.getLogKeyOffsetBits()));
+    prop.setProperty("replayReadAhead", Integer.toString(cfg.getReplayReadAhead()));
+    prop.setProperty("stateFileEnabled", Boolean.toString(cfg.isStateFileEnabled()));
     prop.setProperty("maxLogFiles", Integer.toString(cfg.getMaxLogFiles()));
     prop.setProperty("maxBlocksPerFile", Integer.toString(cfg.getMaxBlocksPerFile()));
     prop.setProperty("maxBuffers", Integer.toString(cfg.getMaxBuffers()));
@@ -451,6 +492,17 @@ public class ConfigurationTest extends TestCase
     cfg3.setFlushSleepTime(cfg.getFlushSleepTime());
     cfg3.setThreadsWaitingForceThreshold(cfg.getThreadsWaitingForceThreshold());
     cfg3.setFlushPartialBuffers(cfg.isFlushPartialBuffers());
+    cfg3.setDedicatedForceThread(cfg.isDedicatedForceThread());
+    cfg3.setForcePolicyClassName(cfg.getForcePolicyClassName());
+    cfg3.setCommitLatencyTarget(cfg.getCommitLatencyTarget());
+    cfg3.setAppendLanes(cfg.getAppendLanes());
+    cfg3.setPreallocateFiles(cfg.isPreallocateFiles());
+    cfg3.setCrc32cChecksum(cfg.isCrc32cChecksumEnabled());
+    cfg3.setCompactBlocks(cfg.isCompactBlocks());
+    cfg3.setCompressBlocks(cfg.isCompressBlocks());
+    cfg3.setLogKeyOffsetBits(cfg.getLogKeyOffsetBits());
+    cfg3.setReplayReadAhead(cfg.getReplayReadAhead());
+    cfg3.setStateFileEnabled(cfg.isStateFileEnabled());
 
     verifyConfiguration(cfg3);
   }
@@ -461,6 +513,8 @@ public class ConfigurationTest extends TestCase
     cfg = new Configuration();
     cfg.setLogFileMode("rw");
     cfg.setLogFileMode("rwd");
+    cfg.setLogFileMode("direct");
+    cfg.setLogFileMode("dsync");
     try {
       cfg.setLogFileMode("r");
       fail(getName() + ": expected LogConfigurationException");
@@ -39,6 +39,9 @@ package org.objectweb.howl.log;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 
 import junit.extensions.RepeatedTest;
 import junit.framework.Test;
@@ -175,6 +178,1497 @@ public class LogTest extends TestDriver {
       throw reader.exception;
   }
 
+  /**
+   * Verifies that putAsync() returns the log key immediately and the
+   * LogKeyFuture completes with the same key once the record is forced.
+   * 
+   * @throws Exception
+   */
+  public void testPutAsync() throws Exception {
+    log.open();
+    log.setAutoMark(true);
+    verifyPutAsync();
+    log.close();
+  }
+
+  /**
+   * Verifies putAsync() with a dedicated force thread.
+   * 
+   * @throws Exception
+   */
+  public void testPutAsync_DFT() throws Exception {
+    cfg.setDedicatedForceThread(true);
+    log = new Logger(cfg);
+    log.open();
+    log.setAutoMark(true);
+    verifyPutAsync();
+    log.close();
+  }
+
+  private void verifyPutAsync() throws Exception {
+    // keep the number of records small enough that files do not wrap
+    LogKeyFuture[] futures = new LogKeyFuture[10];
+    for (int i = 0; i < futures.length; ++i) {
+      futures[i] = log.putAsync(new byte[][] { ("record " + i).getBytes() });
+      assertTrue(getName() + ": log key", futures[i].getKey() > 0L);
+    }
+
+    for (int i = 0; i < futures.length; ++i) {
+      Long key = futures[i].get(10, TimeUnit.SECONDS);
+      assertEquals(getName() + ": future key", futures[i].getKey(), key.longValue());
+      LogRecord lr = log.get(null, key.longValue());
+      assertEquals(getName() + ": record type", LogRecordType.USER, lr.type);
+      assertEquals(getName() + ": record data", "record " + i, new String(lr.getFields()[0]));
+    }
+  }
+
+  /**
+   * Verifies that putBatch() returns a key for each record
+   * and that each record can be read using its key.
+   * 
+   * @throws Exception
+   */
+  public void testPutBatch() throws Exception {
+    log.open();
+    log.setAutoMark(true);
+    verifyPutBatch(20, 10);
+    log.close();
+  }
+
+  /**
+   * Verifies putBatch() with a batch that fills more buffers than
+   * the minimum buffer pool size.
+   * 
+   * @throws Exception
+   */
+  public void testPutBatch_MultipleBuffers() throws Exception {
+    log.open();
+    log.setAutoMark(true);
+    // three records per buffer
+    verifyPutBatch(cfg.getMinBuffers() * 3 * 3, (cfg.getBufferSize() * 1024) / 4);
+    log.close();
+  }
+
+  private void verifyPutBatch(int count, int size) throws Exception {
+    byte[][][] records = new byte[count][][];
+    for (int i = 0; i < count; ++i) {
+      byte[] data = new byte[size];
+      Arrays.fill(data, (byte)('A' + (i % 26)));
+      records[i] = new byte[][] { data };
+    }
+
+    long[] keys = log.putBatch(records, true);
+    assertEquals(getName() + ": key count", count, keys.length);
+
+    for (int i = 0; i < count; ++i) {
+      if (i > 0)
+        assertTrue(getName() + ": keys out of order", keys[i] > keys[i - 1]);
+      LogRecord lr = log.get(null, keys[i]);
+      assertEquals(getName() + ": record type", LogRecordType.USER, lr.type);
+      assertEquals(getName() + ": record key", keys[i], lr.key);
+      assertEquals(getName() + ": record data", new String(records[i][0]), new String(lr.getFields()[0]));
+    }
+  }
+
+  /**
+   * deletes the log files and opens a new Logger
+   * with the current configuration.
+   */
+  private void openNewLog() throws Exception {
+    deleteLogFiles(); // so we know exactly how many records to expect
+    log = new Logger(cfg);
+    log.open();
+  }
+
+  /**
+   * puts <i> count </i> records containing <i> prefix </i>
+   * followed by the record number.
+   * @return log keys of the records.
+   */
+  private long[] putRecords(String prefix, int count, boolean sync) throws Exception {
+    long[] keys = new long[count];
+    for (int i = 0; i < count; ++i)
+      keys[i] = log.put((prefix + i).getBytes(), sync);
+    return keys;
+  }
+
+  /**
+   * replays the open log and verifies the number of records.
+   */
+  private void assertReplayCount(long expected) throws Exception {
+    assertReplayCount(new TestLogReader(), expected);
+  }
+
+  private void assertReplayCount(TestLogReader reader, long expected) throws Exception {
+    reader.run(log);
+    assertNull(getName() + ": replay error", reader.exception);
+    assertEquals(getName() + ": unexpected record count:", expected, reader.recordCount);
+  }
+
+  /**
+   * closes the log, opens it with the current configuration
+   * and verifies the number of records replayed.
+   * <p>The log is left open.
+   */
+  private void reopenAndReplay(long expected) throws Exception {
+    log.close();
+    log = new Logger(cfg);
+    log.open();
+    assertReplayCount(expected);
+  }
+
+  /**
+   * Verifies that buffers written together by a gathering
+   * write, including groups that end at a log file switch,
+   * are replayed after the log is reopened.
+   * 
+   * @throws Exception
+   */
+  public void testGatheringWrite() throws Exception {
+    final int batches = 3;
+    final int count = cfg.getMinBuffers() * 3 * 3;  // three records per buffer
+
+    openNewLog();
+    long gathering = log.bmgr.gatheringWriteCount;
+    for (int i = 0; i < batches; ++i)
+      verifyPutBatch(count, (cfg.getBufferSize() * 1024) / 4);
+    assertTrue(getName() + ": no gathering writes",
+        log.bmgr.gatheringWriteCount > gathering);
+    assertTrue(getName() + ": log file was not switched",
+        log.lfmgr.fileSet[1].firstBSN > 0);
+    reopenAndReplay(batches * count);
+    log.close();
+  }
+
+  /**
+   * BlockLogBuffer that is not written when its BSN is a
+   * multiple of SKIP, and counts the buffers it writes.
+   * @see #testGatheringWrite_SkippedBuffer()
+   */
+  static class SkipWriteLogBuffer extends BlockLogBuffer {
+    static final int SKIP = 4;
+    static long written = 0;
+
+    SkipWriteLogBuffer(Configuration config) {
+      super(config);
+    }
+
+    boolean prepareWrite() throws IOException {
+      if (!super.prepareWrite() || bsn % SKIP == 0) return false;
+      ++written;   // synchronized by forceManagerLock
+      return true;
+    }
+  }
+
+  /**
+   * Verifies that a buffer that must not be written ends
+   * a gathering write, and the other buffers of the
+   * group are still written.
+   * 
+   * @throws Exception
+   */
+  public void testGatheringWrite_SkippedBuffer() throws Exception {
+    final int count = cfg.getMinBuffers() * 3 * 3;  // three records per buffer
+    final int size = (cfg.getBufferSize() * 1024) / 4;
+
+    cfg.setBufferClassName(SkipWriteLogBuffer.class.getName());
+    openNewLog();
+    SkipWriteLogBuffer.written = 0;
+    long bytes = log.lfmgr.fileSet[0].bytesWritten;
+    long gathering = log.bmgr.gatheringWriteCount;
+
+    try {
+      byte[][][] records = new byte[count][][];
+      for (int i = 0; i < count; ++i)
+        records[i] = new byte[][] { new byte[size] };
+      log.putBatch(records, true);
+
+      long written = 0;
+      for (int i = 0; i < log.lfmgr.fileSet.length; ++i)
+        written += log.lfmgr.fileSet[i].bytesWritten;
+      assertTrue(getName() + ": no gathering writes", log.bmgr.gatheringWriteCount > gathering);
+      assertEquals(getName() + ": bytes written", SkipWriteLogBuffer.written * cfg.getBufferSize() * 1024,
+          written - bytes);
+    } finally {
+      // the skipped blocks are missing from the log files
+      log.close();
+      deleteLogFiles();
+    }
+  }
+
+  /**
+   * Verifies that records written from heap and direct ByteBuffers
+   * are stored in the same format as byte[][] records.
+   * 
+   * @throws Exception
+   */
+  public void testPutByteBuffer() throws Exception {
+    log.open();
+    log.setAutoMark(true);
+
+    byte[] field1 = "ByteBuffer_heap".getBytes();
+    byte[] field2 = "ByteBuffer_direct".getBytes();
+    ByteBuffer heap = ByteBuffer.wrap(field1);
+    ByteBuffer direct = ByteBuffer.allocateDirect(field2.length);
+    direct.put(field2).flip();
+
+    long key = log.put(new ByteBuffer[] { heap, direct }, true);
+    assertEquals(getName() + ": heap position", 0, heap.position());
+    assertEquals(getName() + ": direct position", 0, direct.position());
+
+    long key2 = log.put(new byte[][] { field1, field2 }, true);
+
+    LogRecord lr = log.get(null, key);
+    LogRecord lr2 = log.get(null, key2);
+    assertEquals(getName() + ": record type", LogRecordType.USER, lr.type);
+    assertEquals(getName() + ": record length", lr2.length, lr.length);
+    byte[][] fields = lr.getFields();
+    assertEquals(getName() + ": field count", 2, fields.length);
+    assertEquals(getName() + ": heap field", new String(field1), new String(fields[0]));
+    assertEquals(getName() + ": direct field", new String(field2), new String(fields[1]));
+    log.close();
+  }
+
+  /**
+   * Verifies that records encoded in place with reserve() and
+   * commit() are returned by get().
+   * 
+   * @throws Exception
+   */
+  public void testReserve() throws Exception {
+    log.open();
+    log.setAutoMark(true);
+
+    // enough records to fill more than one buffer
+    int size = 200;
+    int count = ((cfg.getBufferSize() * 1024) / size) * 2;
+    long[] keys = new long[count];
+    for (int i = 0; i < count; ++i) {
+      LogReservation reservation = log.reserve(size);
+      ByteBuffer bb = reservation.getBuffer();
+      assertEquals(getName() + ": reserved size", size, bb.remaining());
+      while (bb.hasRemaining())
+        bb.put((byte)('A' + (i % 26)));
+      keys[i] = reservation.commit(i == count - 1);
+      assertEquals(getName() + ": commit key", reservation.getKey(), keys[i]);
+      if (i > 0)
+        assertTrue(getName() + ": keys out of order", keys[i] > keys[i - 1]);
+    }
+
+    for (int i = 0; i < count; ++i) {
+      LogRecord lr = log.get(null, keys[i]);
+      assertEquals(getName() + ": record type", LogRecordType.USER, lr.type);
+      byte[][] fields = lr.getFields();
+      assertEquals(getName() + ": field count", 1, fields.length);
+      assertEquals(getName() + ": field size", size, fields[0].length);
+      assertEquals(getName() + ": record data", (byte)('A' + (i % 26)), fields[0][size - 1]);
+    }
+    log.close();
+  }
+
+  /**
+   * Verifies that a reservation whose encoder fails can be
+   * aborted, that the buffer is still written, and that
+   * the aborted space is not returned by replay.
+   * 
+   * @throws Exception
+   */
+  public void testReserveAbort() throws Exception {
+    final int size = 200;
+    final int count = ((cfg.getBufferSize() * 1024) / size) * 2;
+
+    openNewLog();
+    int committed = 0;
+    for (int i = 0; i < count; ++i) {
+      LogReservation reservation = log.reserve(size);
+      try {
+        encode(reservation.getBuffer(), i);
+        reservation.commit(false);
+        ++committed;
+      } catch (IllegalArgumentException e) {
+        reservation.abort();
+      }
+    }
+    LogReservation reservation = log.reserve(size);
+    reservation.abort();
+    try {
+      reservation.commit(false);
+      fail(getName() + ": aborted reservation was committed");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    log.put("last".getBytes(), true);
+
+    final int[] invalid = new int[1];
+    TestLogReader reader = new TestLogReader() {
+      public void onRecord(LogRecord lr) {
+        if (lr.type != LogRecordType.END_OF_LOG && lr.key > activeMark) {
+          byte[] data = lr.getFields()[0];
+          if (data.length == size && (data[0] % 3 == 0 || data[size - 1] != data[0]))
+            ++invalid[0];
+        }
+        super.onRecord(lr);
+      }
+    };
+    assertReplayCount(reader, committed + 1);
+    assertEquals(getName() + ": aborted records replayed", 0, invalid[0]);
+    log.close();
+  }
+
+  /**
+   * encoder used by testReserveAbort().
+   * <p>fills <i> bb </i> with <i> i </i>, but throws after
+   * half of the record has been encoded when <i> i </i>
+   * is a multiple of three.
+   */
+  private void encode(ByteBuffer bb, int i) {
+    byte b = (byte)(i % 120);
+    while (bb.hasRemaining()) {
+      if (i % 3 == 0 && bb.remaining() == bb.capacity() / 2)
+        throw new IllegalArgumentException("encoding failed for record " + i);
+      bb.put(b);
+    }
+  }
+
+  /**
+   * Verifies that blocks written with CRC32C checksums
+   * computed by put(), reserve() and put(ByteBuffer[])
+   * are validated when the log is replayed, whatever
+   * the crc32cChecksum option of the reader.
+   * 
+   * @throws Exception
+   */
+  public void testCrc32cChecksum() throws Exception {
+    final int records = 60;   // enough to fill several blocks
+
+    cfg.setChecksumEnabled(true);
+    cfg.setCrc32cChecksum(true);
+    openNewLog();
+    for (int i = 0; i < records; i += 3) {
+      log.put(("crc32c_" + i + "_abcdefghijklmnopqrstuvwxyz").getBytes(), false);
+      log.put(new ByteBuffer[] { ByteBuffer.wrap(("crc32c_" + (i + 1)).getBytes()) }, false);
+      LogReservation reservation = log.reserve(100);
+      ByteBuffer bb = reservation.getBuffer();
+      while (bb.hasRemaining())
+        bb.put((byte)('A' + (i % 26)));
+      reservation.commit(i + 3 >= records);
+    }
+    reopenAndReplay(records);
+
+    // the block header records which checksum was used
+    cfg.setCrc32cChecksum(false);
+    reopenAndReplay(records);
+    putRecords("adler32_", 10, true);
+    cfg.setCrc32cChecksum(true);
+    reopenAndReplay(records + 10);
+    log.close();
+  }
+
+  /**
+   * Verifies that partial buffers are written as compact
+   * blocks, and that compact blocks are located by get(),
+   * replay() and restart.
+   * 
+   * @throws Exception
+   */
+  public void testCompactBlocks() throws Exception {
+    final int records = 30;   // sync puts switch to the second file
+    final int blockSize = 32 * 1024;
+
+    cfg.setBufferSize(blockSize / 1024);
+    cfg.setCompactBlocks(true);
+    openNewLog();
+    long[] keys = putRecords("compact_", records, true);
+
+    long bytesWritten = 0;
+    for (int i = 0; i < log.lfmgr.fileSet.length; ++i)
+      bytesWritten += log.lfmgr.fileSet[i].bytesWritten;
+    assertTrue(getName() + ": blocks not compact: " + bytesWritten,
+        bytesWritten < (long)records * blockSize / 2);
+
+    LogRecord lr = log.get(null, keys[records - 1]);
+    assertEquals(getName() + ": record data", "compact_" + (records - 1), new String(lr.getFields()[0]));
+    log.close();
+
+    // restart locates the end of the log and continues writing
+    log = new Logger(cfg);
+    log.open();
+    long lastKey = 0;
+    for (int i = 0; i < records; ++i)
+      lastKey = log.put(("compact_" + (records + i)).getBytes(), true);
+    reopenAndReplay(records * 2);
+    lr = log.get(null, keys[records / 2]);
+    assertEquals(getName() + ": record data", "compact_" + (records / 2), new String(lr.getFields()[0]));
+
+    // the FILE_HEADER tells the LogFileManager which files have compact blocks
+    cfg.setCompactBlocks(false);
+    reopenAndReplay(records * 2);
+    lr = log.get(null, keys[records / 2]);
+    assertEquals(getName() + ": record data", "compact_" + (records / 2), new String(lr.getFields()[0]));
+    // mark the log so the next file can be reused with full blocks
+    log.mark(lastKey, true);
+    putRecords("full_", records, true);
+    assertFalse(getName() + ": compact blocks written", log.lfmgr.currentLogFile.compactBlocks);
+    reopenAndReplay(records + 1);
+
+    cfg.setCompactBlocks(true);
+    reopenAndReplay(records + 1);
+    log.close();
+  }
+
+  /**
+   * Verifies that blocks with compressed records are
+   * decompressed by get() and replay(), including blocks
+   * that were written without compression.
+   * 
+   * @throws Exception
+   */
+  public void testCompressBlocks() throws Exception {
+    final int records = 1000;  // enough to fill several buffers
+    final int blockSize = 32 * 1024;
+    final String xid = "XID_0123456789_branch_qualifier_abcdefghijklmnopqrstuvwxyz_";
+
+    cfg.setBufferSize(blockSize / 1024);
+    cfg.setCompressBlocks(true);
+    openNewLog();
+    long[] keys = new long[records];
+    long bytesPut = 0;
+    for (int i = 0; i < records; ++i) {
+      byte[] data = (xid + i).getBytes();
+      keys[i] = log.put(data, i == records - 1);
+      bytesPut += data.length;
+    }
+
+    // random data does not compress, so it is written as a plain block
+    byte[] random = new byte[blockSize / 2];
+    new java.util.Random(1).nextBytes(random);
+    long randomKey = log.put(random, true);
+
+    long bytesWritten = 0;
+    for (int i = 0; i < log.lfmgr.fileSet.length; ++i)
+      bytesWritten += log.lfmgr.fileSet[i].bytesWritten;
+    assertTrue(getName() + ": blocks not compressed: " + bytesWritten,
+        bytesWritten < bytesPut / 2 + random.length + 2 * BlockLogBuffer.COMPACT_ALIGNMENT);
+
+    LogRecord lr = log.get(null, keys[records / 2]);
+    assertEquals(getName() + ": record data", xid + (records / 2), new String(lr.getFields()[0]));
+    lr = log.get(null, randomKey);
+    assertEquals(getName() + ": random record length", random.length, lr.getFields()[0].length);
+    reopenAndReplay(records + 1);
+
+    // the block header tells read() which blocks are compressed
+    cfg.setCompressBlocks(false);
+    reopenAndReplay(records + 1);
+    lr = log.get(null, keys[records / 2]);
+    assertEquals(getName() + ": record data", xid + (records / 2), new String(lr.getFields()[0]));
+    putRecords("plain_", 10, true);
+    cfg.setCompressBlocks(true);
+    reopenAndReplay(records + 11);
+    log.close();
+  }
+
+  /**
+   * Verifies that a record larger than a block is stored
+   * as fragments in consecutive blocks and reassembled
+   * by get() and replay().
+   * 
+   * @throws Exception
+   */
+  public void testContinuedRecords() throws Exception {
+    final int records = 5;
+
+    cfg.setBufferSize(1);
+    openNewLog();
+    putRecords("before_", records, false);
+
+    // spans several 1K blocks
+    byte[] first = new byte[3000];
+    byte[] second = new byte[5000];
+    new java.util.Random(1).nextBytes(first);
+    new java.util.Random(2).nextBytes(second);
+    long key = log.put(new byte[][] { first, second }, true);
+    long after = log.put("after".getBytes(), true);
+    assertTrue(getName() + ": record not continued", log.bmgr.bsnFromMark(after) > log.bmgr.bsnFromMark(key) + 1);
+
+    LogRecord lr = new LogRecord(80);
+    lr.setFilterCtrlRecords(true);
+    lr = log.get(lr, key);
+    assertEquals(getName() + ": record key", key, lr.key);
+    assertEquals(getName() + ": record type", LogRecordType.USER, lr.type);
+    byte[][] fields = lr.getFields();
+    assertEquals(getName() + ": field count", 2, fields.length);
+    assertTrue(getName() + ": first field", java.util.Arrays.equals(first, fields[0]));
+    assertTrue(getName() + ": second field", java.util.Arrays.equals(second, fields[1]));
+    lr = log.getNext(lr);
+    assertEquals(getName() + ": next record", "after", new String(lr.getFields()[0]));
+    reopenAndReplay(records + 2);
+    log.close();
+
+    // another lane holds the block that follows the lane of this thread
+    cfg.setAppendLanes(2);
+    openNewLog();
+    long a0 = log.put("A0".getBytes(), false);
+    putFromOtherLane("B0".getBytes());
+    log.put(first, false);
+    putFromOtherLane("B1".getBytes());
+    log.put("A1".getBytes(), true);
+
+    java.util.Set found = new java.util.HashSet();
+    lr = new LogRecord(80);
+    lr.setFilterCtrlRecords(true);
+    for (lr = log.get(lr, a0); lr.type != LogRecordType.END_OF_LOG; lr = log.getNext(lr)) {
+      if (lr.isEOB()) continue;
+      byte[] data = lr.getFields()[0];
+      found.add(data.length == first.length ? "first" : new String(data));
+    }
+    assertEquals(getName() + ": records found by getNext()",
+        new java.util.HashSet(java.util.Arrays.asList(new String[] { "A0", "B0", "first", "B1", "A1" })), found);
+    reopenAndReplay(5);
+    log.close();
+
+    // blocks can only be read with the same bufferSize
+    deleteLogFiles();
+  }
+
+  /**
+   * Verifies that a thread holding a stale reference to a
+   * LogBuffer cannot put a record between the fragments
+   * of a continued record.
+   * 
+   * @throws Exception
+   */
+  public void testContinuedRecords_StaleBuffer() throws Exception {
+    final int records = 200;
+    final int writers = 4;
+
+    cfg.setBufferSize(1);
+    cfg.setMaxBlocksPerFile(1000);  // so the log does not overflow
+    openNewLog();
+
+    // puts directly into every buffer of the pool, as a thread
+    // that read a fillBuffer before it was reused would do
+    final LogBuffer[] pool = log.bmgr.bufferList;
+    final boolean[] stop = new boolean[1];
+    final java.util.concurrent.atomic.AtomicLong stale = new java.util.concurrent.atomic.AtomicLong();
+    final Exception[] error = new Exception[1];
+    Thread[] t = new Thread[writers];
+    for (int w = 0; w < writers; ++w) {
+      t[w] = new Thread() {
+        public void run() {
+          byte[][] data = new byte[][] { "stale".getBytes() };
+          try {
+            while (!stop[0]) {
+              for (int i = 0; i < pool.length; ++i) {
+                try {
+                  if (pool[i].put(LogRecordType.USER, data, false) != 0) stale.incrementAndGet();
+                } catch (LogRecordSizeException e) {
+                  // buffer has not been used yet
+                }
+              }
+            }
+          } catch (Exception e) {
+            error[0] = e;
+          }
+        }
+      };
+      t[w].start();
+    }
+
+    byte[] continued = new byte[3000];
+    try {
+      for (int i = 0; i < records; ++i)
+        log.put(continued, false);
+    } finally {
+      stop[0] = true;
+      for (int w = 0; w < writers; ++w)
+        t[w].join();
+    }
+    if (error[0] != null) throw error[0];
+    log.put("last".getBytes(), true);
+
+    assertReplayCount(records + stale.get() + 1);
+    log.close();
+
+    // blocks can only be read with the same bufferSize
+    deleteLogFiles();
+  }
+
+
+  /**
+   * returns a Thread that uses a different lane than the
+   * current thread when the log has two append lanes.
+   * @param r Runnable to be run by the Thread.
+   * @return Thread that has not been started.
+   */
+  private Thread otherLaneThread(Runnable r) {
+    Thread t = null;
+    do {
+      t = new Thread(r);
+    } while (t.getId() % 2 == Thread.currentThread().getId() % 2);
+    return t;
+  }
+
+  /**
+   * puts <i> data </i> from a thread that uses the other
+   * of two append lanes.
+   * @param data record to be put.
+   * @throws Exception
+   */
+  private void putFromOtherLane(final byte[] data) throws Exception {
+    final Exception[] error = new Exception[1];
+    Thread t = otherLaneThread(new Runnable() {
+      public void run() {
+        try {
+          log.put(data, false);
+        } catch (Exception e) {
+          error[0] = e;
+        }
+      }
+    });
+    t.start();
+    t.join();
+    if (error[0] != null) throw error[0];
+  }
+
+  /**
+   * Verifies that the log key offset bits are stored in the
+   * FILE_HEADER and used instead of the configured value
+   * when existing log files are opened.
+   *
+   * @throws Exception
+   */
+  public void testLogKeyOffsetBits() throws Exception {
+    deleteLogFiles();
+    cfg.setLogKeyOffsetBits(16);
+    log = new Logger(cfg);
+    log.open();
+    long key = log.put("offset_16".getBytes(), true);
+    assertEquals(getName() + ": offset bits", 16, log.bmgr.offsetBits);
+    assertEquals(getName() + ": block", key >> 16, log.bmgr.bsnFromMark(key));
+    assertTrue(getName() + ": offset " + Long.toHexString(key), (key & 0xffff) > 0);
+    log.close();
+
+    cfg.setLogKeyOffsetBits(24);
+    log = new Logger(cfg);
+    log.open();
+    assertEquals(getName() + ": offset bits from FILE_HEADER", 16, log.bmgr.offsetBits);
+    LogRecord lr = new LogRecord(80);
+    lr.setFilterCtrlRecords(true);
+    lr = log.get(lr, key);
+    assertEquals(getName() + ": record key", key, lr.key);
+    assertEquals(getName() + ": record data", "offset_16", new String(lr.getFields()[0]));
+    long next = log.put("next".getBytes(), true);
+    assertTrue(getName() + ": next key", next > key);
+    reopenAndReplay(2);
+    log.close();
+
+    // the log key format of the files is fixed when the files are created
+    deleteLogFiles();
+  }
+
+  /**
+   * Verifies that replay returns every record in sequence
+   * when blocks are read ahead by the ReplayReader.
+   *
+   * @throws Exception
+   */
+  public void testReplayReadAhead() throws Exception {
+    final int records = 1000;
+
+    cfg.setReplayReadAhead(4);
+    openNewLog();
+    byte[] data = new byte[100];
+    for (int i = 0; i < records; ++i)
+      log.put(data, false);
+    log.put(data, true);
+    reopenAndReplay(records + 1);
+    log.close();
+  }
+
+  /**
+   * Verifies that open() resumes writing after the last block
+   * of a reused log file that still contains blocks written
+   * before the file was reused.
+   *
+   * @throws Exception
+   */
+  public void testFindLastBlock() throws Exception {
+    deleteLogFiles();
+    log.open();
+    log.setAutoMark(true);
+    int blocks = cfg.getMaxLogFiles() * cfg.getMaxBlocksPerFile() + 5;
+    byte[] data = new byte[100];
+    long key = 0;
+    while (log.bmgr.bsnFromMark(key) < blocks)
+      key = log.put(data, false);
+    key = log.put(data, true);
+    log.close();
+
+    log = new Logger(cfg);
+    log.open();
+    long next = log.put(data, true);
+    long bsn = log.bmgr.bsnFromMark(key);
+    long nextBSN = log.bmgr.bsnFromMark(next);
+    assertTrue(getName() + ": next block " + nextBSN + " after " + bsn,
+        nextBSN > bsn && nextBSN <= bsn + 2);
+    log.close();
+  }
+
+  /**
+   * Verifies that the state saved by a clean close is used
+   * by the next open(), and ignored after the log files
+   * have been written without updating the state file.
+   *
+   * @throws Exception
+   */
+  public void testStateFile() throws Exception {
+    final int records = 500;
+
+    cfg.setStateFileEnabled(true);
+    File stateFile = new File(cfg.getLogFileDir(), cfg.getLogFileName() + ".state");
+    stateFile.delete();
+    openNewLog();
+    byte[] data = new byte[100];
+    for (int i = 0; i < records; ++i)
+      log.put(data, false);
+    long key = log.put(data, true);
+    log.close();
+    assertTrue(getName() + ": state file not saved", stateFile.exists());
+
+    // clean close -- the state file is used
+    log = new Logger(cfg);
+    log.open();
+    assertTrue(getName() + ": state not restored", log.lfmgr.stateRestored);
+    assertFalse(getName() + ": state file not locked", stateFile.exists());
+    long next = log.put(data, true);
+    long bsn = log.bmgr.bsnFromMark(key);
+    long nextBSN = log.bmgr.bsnFromMark(next);
+    assertTrue(getName() + ": next block " + nextBSN + " after " + bsn,
+        nextBSN > bsn && nextBSN <= bsn + 2);
+    log.close();
+
+    // write to the log without saving the state
+    cfg.setStateFileEnabled(false);
+    log = new Logger(cfg);
+    log.open();
+    log.put(data, true);
+    log.close();
+    assertTrue(getName() + ": state file deleted", stateFile.exists());
+
+    cfg.setStateFileEnabled(true);
+    log = new Logger(cfg);
+    log.open();
+    assertFalse(getName() + ": stale state restored", log.lfmgr.stateRestored);
+    assertReplayCount(records + 3);
+    log.close();
+  }
+
+  /**
+   * Verifies that records put by many threads while buffers
+   * are being sealed and written are replayed exactly once
+   * and are not overwritten by other records.
+   *
+   * @throws Exception
+   */
+  public void testConcurrentPuts() throws Exception {
+    final int threads = 8;
+    final int records = 200;
+
+    openNewLog();
+
+    final Exception[] error = new Exception[1];
+    Thread[] t = new Thread[threads];
+    for (int i = 0; i < threads; ++i) {
+      final int id = i;
+      t[i] = new Thread() {
+        public void run() {
+          try {
+            for (int r = 0; r < records; ++r) {
+              // record length varies so records straddle the end of each block
+              byte[] data = new byte[8 + (r % 40)];
+              Arrays.fill(data, (byte)('a' + id));
+              ByteBuffer.wrap(data).putShort((short)id).putShort((short)r);
+              log.put(data, r == records - 1);
+            }
+          } catch (Exception e) {
+            error[0] = e;
+          }
+        }
+      };
+      t[i].start();
+    }
+    for (int i = 0; i < threads; ++i)
+      t[i].join();
+    if (error[0] != null) throw error[0];
+
+    final boolean[][] seen = new boolean[threads][records];
+    final String[] invalid = new String[1];
+    TestLogReader reader = new TestLogReader() {
+      public void onRecord(LogRecord lr) {
+        if (lr.type != LogRecordType.END_OF_LOG && lr.key > activeMark) {
+          byte[] data = lr.getFields()[0];
+          ByteBuffer bb = ByteBuffer.wrap(data);
+          int id = bb.getShort();
+          int r = bb.getShort();
+          boolean valid = id >= 0 && id < threads && r >= 0 && r < records &&
+            data.length == 8 + (r % 40) && !seen[id][r];
+          for (int i = 4; valid && i < data.length; ++i)
+            valid = data[i] == (byte)('a' + id);
+          if (!valid && invalid[0] == null)
+            invalid[0] = Long.toHexString(lr.key);
+          else if (valid)
+            seen[id][r] = true;
+        }
+        super.onRecord(lr);
+      }
+    };
+    assertReplayCount(reader, threads * records);
+    assertNull(getName() + ": invalid or duplicate record at key " + invalid[0], invalid[0]);
+    log.close();
+  }
+
+  /**
+   * Verifies that a thread waiting for another thread's force
+   * stops waiting when it is interrupted, and that its
+   * ForceWaiter is removed from the queue.
+   * 
+   * @throws Exception
+   */
+  public void testForceWaiter_Interrupted() throws Exception {
+    log.open();
+    final LogBufferManager bmgr = log.bmgr;
+    final long bsn = bmgr.bsnFromMark(log.put("unforced".getBytes(), false));
+    final LogBufferManager.ForceWaiter[] waiter = new LogBufferManager.ForceWaiter[1];
+    final Exception[] error = new Exception[1];
+    Thread t = new Thread() {
+      public void run() {
+        synchronized(bmgr.forceManagerLock) {
+          waiter[0] = bmgr.addForceWaiter(bsn);
+        }
+        try {
+          bmgr.awaitForce(waiter[0], true);
+        } catch (Exception e) {
+          error[0] = e;
+        }
+      }
+    };
+    t.start();
+    awaitParked(t);
+    t.interrupt();
+    t.join(5000);
+    assertFalse(getName() + ": interrupted waiter still waiting", t.isAlive());
+    assertTrue(getName() + ": expected InterruptedException: " + error[0],
+        error[0] instanceof InterruptedException);
+    synchronized(bmgr.forceManagerLock) {
+      assertFalse(getName() + ": waiter not removed", bmgr.forceWaiters.contains(waiter[0]));
+    }
+    log.close();
+  }
+
+  /**
+   * Verifies that a thread that wrote buffers keeps waiting
+   * for the force when it is interrupted, so the buffers
+   * are not abandoned, and that the interrupt is
+   * reasserted when the force completes.
+   * 
+   * @throws Exception
+   */
+  public void testForceWaiter_Writer() throws Exception {
+    log.open();
+    final LogBufferManager bmgr = log.bmgr;
+    final long bsn = bmgr.bsnFromMark(log.put("unforced".getBytes(), false));
+    final LogBufferManager.ForceWaiter[] waiter = new LogBufferManager.ForceWaiter[1];
+    final Exception[] error = new Exception[1];
+    final boolean[] interrupted = new boolean[1];
+    Thread t = new Thread() {
+      public void run() {
+        synchronized(bmgr.forceManagerLock) {
+          waiter[0] = bmgr.addForceWaiter(bsn);
+        }
+        try {
+          bmgr.awaitForce(waiter[0], false);
+          interrupted[0] = isInterrupted();
+        } catch (Exception e) {
+          error[0] = e;
+        }
+      }
+    };
+    t.start();
+    awaitParked(t);
+    t.interrupt();
+    t.join(200);
+    assertTrue(getName() + ": writer abandoned the wait", t.isAlive());
+
+    // force the block the writer is waiting for
+    log.put("forced".getBytes(), true);
+    t.join(5000);
+    assertFalse(getName() + ": writer not woken by force", t.isAlive());
+    assertNull(getName() + ": writer error", error[0]);
+    assertTrue(getName() + ": interrupt not reasserted", interrupted[0]);
+    log.close();
+  }
+
+  /**
+   * Verifies that every thread waiting for a force is
+   * woken when the log reports an IOException, including
+   * threads waiting for blocks that will never be forced.
+   * 
+   * @throws Exception
+   */
+  public void testForceWaiter_IOException() throws Exception {
+    final int threads = 4;
+
+    deleteLogFiles();
+    log.open();
+    final LogBufferManager bmgr = log.bmgr;
+    final long bsn = bmgr.bsnFromMark(log.put("unforced".getBytes(), false));
+    final LogBufferManager.ForceWaiter[] waiter = new LogBufferManager.ForceWaiter[threads];
+    Thread[] t = new Thread[threads];
+    for (int i = 0; i < threads; ++i) {
+      final int id = i;
+      t[i] = new Thread() {
+        public void run() {
+          synchronized(bmgr.forceManagerLock) {
+            waiter[id] = bmgr.addForceWaiter(bsn + id * 100);
+          }
+          try {
+            bmgr.awaitForce(waiter[id], false);
+          } catch (InterruptedException e) {
+            // not interruptible
+          }
+        }
+      };
+      t[i].start();
+    }
+    for (int i = 0; i < threads; ++i)
+      awaitParked(t[i]);
+
+    // the next write fails
+    log.lfmgr.currentLogFile.channel.close();
+    try {
+      log.put("failed".getBytes(), true);
+      fail(getName() + ": IOException expected");
+    } catch (IOException e) {
+      // expected
+    }
+
+    for (int i = 0; i < threads; ++i) {
+      t[i].join(5000);
+      assertFalse(getName() + ": waiter " + i + " not woken", t[i].isAlive());
+      assertTrue(getName() + ": waiter " + i + " not done", waiter[i].done);
+    }
+    try {
+      log.close();
+    } catch (IOException e) {
+      // the log files were closed by the test
+    }
+    deleteLogFiles();
+  }
+
+  /**
+   * waits for <i> t </i> to park in awaitForce().
+   */
+  private void awaitParked(Thread t) throws InterruptedException {
+    for (int i = 0; i < 500 && t.getState() != Thread.State.WAITING; ++i)
+      Thread.sleep(10);
+    assertEquals(getName() + ": thread not parked", Thread.State.WAITING, t.getState());
+  }
+
+  /**
+   * Verifies the percentiles reported by a LatencyHistogram
+   * and that sync puts record their latency.
+   * 
+   * @throws Exception
+   */
+  public void testLatencyHistogram() throws Exception {
+    LatencyHistogram h = new LatencyHistogram();
+    assertEquals(getName() + ": empty histogram", 0L, h.getValueAtPercentile(99.0));
+    for (long i = 1; i <= 1000; ++i)
+      h.record(i * 1000L);   // 1 to 1000 microseconds
+    assertEquals(getName() + ": count", 1000L, h.getCount());
+    assertEquals(getName() + ": max", 1000000L, h.getMax());
+    assertEquals(getName() + ": p100", 1000000L, h.getValueAtPercentile(100.0));
+    long p50 = h.getValueAtPercentile(50.0);
+    long p99 = h.getValueAtPercentile(99.0);
+    assertTrue(getName() + ": p50 " + p50, p50 >= 500000L && p50 <= 500000L * 17 / 16);
+    assertTrue(getName() + ": p99 " + p99, p99 >= 990000L && p99 <= 1000000L);
+
+    log.open();
+    long count = log.bmgr.putLatency.getCount();
+    putRecords("latency_", 10, true);
+    assertEquals(getName() + ": putLatency count", count + 10, log.bmgr.putLatency.getCount());
+    assertTrue(getName() + ": forceLatency count", log.bmgr.forceLatency.getCount() > 0);
+    log.close();
+  }
+
+  /**
+   * Verifies that AdaptiveForcePolicy grows the hold time in
+   * sub-millisecond steps while the 99th percentile latency is
+   * within the target, and cuts it when the target is exceeded.
+   * 
+   * @throws Exception
+   */
+  public void testAdaptiveForcePolicy() throws Exception {
+    final long ms = 1000000L;
+    cfg.setCommitLatencyTarget(20);
+    AdaptiveForcePolicy policy = new AdaptiveForcePolicy(cfg);
+    assertEquals(getName() + ": initial hold", 0L, policy.getHoldTime());
+
+    // 1 ms forces shared by many commits, well within the target
+    policy.forceComplete(1 * ms, 2 * ms, 1000);  // first force measures the arrival rate
+    policy.forceComplete(1 * ms, 2 * ms, 1000);
+    assertEquals(getName() + ": first step", AdaptiveForcePolicy.HOLD_STEP, policy.getHoldTime());
+    assertTrue(getName() + ": step not below 1 ms", AdaptiveForcePolicy.HOLD_STEP < ms);
+    for (int i = 0; i < 48; ++i)
+      policy.forceComplete(1 * ms, 2 * ms, 1000);
+    long hold = policy.getHoldTime();
+    assertTrue(getName() + ": hold did not grow " + hold, hold > AdaptiveForcePolicy.HOLD_STEP);
+    assertTrue(getName() + ": hold grew faster than HOLD_STEP " + hold,
+        hold <= 49 * AdaptiveForcePolicy.HOLD_STEP);
+    assertEquals(getName() + ": hold for new record", hold, policy.getHoldTime(0));
+    assertEquals(getName() + ": hold beyond target", 0L, policy.getHoldTime(20 * ms));
+
+    // latency above the target
+    policy.forceComplete(1 * ms, 30 * ms, 1000);
+    assertEquals(getName() + ": hold not halved", hold / 2, policy.getHoldTime());
+    for (int i = 0; i < 64 && policy.getHoldTime() > 0; ++i)
+      policy.forceComplete(1 * ms, 30 * ms, 1000);
+    assertEquals(getName() + ": hold not released", 0L, policy.getHoldTime());
+  }
+
+  /**
+   * Verifies that records put by several threads into
+   * striped append lanes are replayed in key sequence.
+   * 
+   * @throws Exception
+   */
+  public void testAppendLanes() throws Exception {
+    final int threads = 4;
+    final int records = 50;
+
+    cfg.setAppendLanes(2);
+    openNewLog();
+
+    final Exception[] error = new Exception[1];
+    Thread[] t = new Thread[threads];
+    for (int i = 0; i < threads; ++i) {
+      final int id = i;
+      t[i] = new Thread() {
+        public void run() {
+          try {
+            for (int r = 0; r < records; ++r)
+              log.put(("lane_" + id + "_" + r).getBytes(), r == records - 1);
+          } catch (Exception e) {
+            error[0] = e;
+          }
+        }
+      };
+      t[i].start();
+    }
+    for (int i = 0; i < threads; ++i)
+      t[i].join();
+    if (error[0] != null) throw error[0];
+
+    assertReplayCount(threads * records);
+    log.close();
+  }
+
+  /**
+   * Verifies that a lane with a lower BSN keeps filling its
+   * buffer when another lane fills its buffer, and that it
+   * is not written as a partial block.
+   * 
+   * @throws Exception
+   */
+  public void testAppendLanes_PendingBlocks() throws Exception {
+    cfg.setAppendLanes(2);
+    cfg.setFlushSleepTime(60 * 1000); // so the FlushManager does not write the lanes
+    openNewLog();
+
+    // the first record starts a buffer in the lane of this thread
+    final long key = log.put("older lane".getBytes(), false);
+    final long partial = log.bmgr.partialLaneBlocks;
+
+    // fill a buffer in the other lane
+    final Exception[] error = new Exception[1];
+    Thread t = otherLaneThread(new Runnable() {
+      public void run() {
+        try {
+          long next = 0;
+          do {
+            next = log.put("other lane".getBytes(), false);
+          } while (log.bmgr.bsnFromMark(next) <= log.bmgr.bsnFromMark(key) + 1);
+        } catch (Exception e) {
+          error[0] = e;
+        }
+      }
+    });
+    t.start();
+    t.join();
+    if (error[0] != null) throw error[0];
+
+    assertEquals(getName() + ": partial block written", partial, log.bmgr.partialLaneBlocks);
+    long next = log.put("same block".getBytes(), false);
+    assertEquals(getName() + ": older lane BSN", log.bmgr.bsnFromMark(key), log.bmgr.bsnFromMark(next));
+
+    // forcing the older lane also writes the buffer held back by it
+    log.put("sync".getBytes(), true);
+    assertEquals(getName() + ": partial block written", partial, log.bmgr.partialLaneBlocks);
+    LogRecord lr = log.get(null, key);
+    assertEquals(getName() + ": record data", "older lane", new String(lr.getFields()[0]));
+    log.close();
+  }
+
+  /**
+   * Verifies that a lane with few records does not cause
+   * the buffers of a busy lane to be written as partial
+   * blocks, so the log uses no more blocks than the busy
+   * lane needs plus the one block of the quiet lane.
+   * 
+   * @throws Exception
+   */
+  public void testAppendLanes_BlocksWritten() throws Exception {
+    final int batches = 5;
+    final int batchSize = 20;
+    final byte[] data = new byte[50];
+    final long[] busy = new long[2];  // first and last key of the busy lane
+
+    cfg.setAppendLanes(2);
+    cfg.setBufferSize(1);
+    cfg.setMinBuffers(16);
+    cfg.setMaxBuffers(16);
+    cfg.setFlushSleepTime(60 * 1000); // so the FlushManager does not write the lanes
+    openNewLog();
+
+    long first = log.put("quiet_0".getBytes(), false);
+    for (int b = 1; b <= batches; ++b) {
+      final Exception[] error = new Exception[1];
+      Thread t = otherLaneThread(new Runnable() {
+        public void run() {
+          try {
+            for (int r = 0; r < batchSize; ++r) {
+              busy[1] = log.put(data, false);
+              if (busy[0] == 0) busy[0] = busy[1];
+            }
+          } catch (Exception e) {
+            error[0] = e;
+          }
+        }
+      });
+      t.start();
+      t.join();
+      if (error[0] != null) throw error[0];
+
+      log.put(("quiet_" + b).getBytes(), false);
+    }
+    long last = log.put("sync".getBytes(), true);
+
+    long busyBlocks = log.bmgr.bsnFromMark(busy[1]) - log.bmgr.bsnFromMark(busy[0]) + 1;
+    long blocks = Math.max(log.bmgr.bsnFromMark(busy[1]), log.bmgr.bsnFromMark(last))
+      - log.bmgr.bsnFromMark(first) + 1;
+    assertTrue(getName() + ": busy lane did not fill several blocks", busyBlocks > batches);
+    assertEquals(getName() + ": partial blocks", 0L, log.bmgr.partialLaneBlocks);
+    assertEquals(getName() + ": blocks used", busyBlocks + 1, blocks);
+
+    assertReplayCount(batches * batchSize + batches + 2);
+    log.close();
+
+    // blocks can only be read with the same bufferSize
+    deleteLogFiles();
+  }
+
+  /**
+   * Verifies that preallocated files are extended to their
+   * full size and that the log can be reopened and replayed
+   * when some of the files have never been written.
+   * 
+   * @throws Exception
+   */
+  public void testPreallocateFiles() throws Exception {
+    final int records = 30;   // sync puts switch to the second file
+
+    cfg.setPreallocateFiles(true);
+    openNewLog();
+    putRecords("preallocate_", records, true);
+
+    long fileSize = (long)cfg.getMaxBlocksPerFile() * cfg.getBufferSize() * 1024;
+    for (int i = 0; i < 2; ++i) {
+      LogFile lf = log.lfmgr.fileSet[i];
+      assertEquals(getName() + ": " + lf.file.getName() + " size", fileSize, lf.file.length());
+    }
+    reopenAndReplay(records);
+
+    // resume writing in the middle of the preallocated file
+    for (int i = 0; i < 10; ++i)
+      log.put(("preallocate_" + (records + i)).getBytes(), true);
+    assertReplayCount(records + 10);
+    log.close();
+  }
+
+  /**
+   * Verifies that records written by MappedBlockLogBuffer
+   * can be replayed by MappedBlockLogBuffer and by BlockLogBuffer.
+   * 
+   * @throws Exception
+   */
+  public void testMappedBlockLogBuffer() throws Exception {
+    final int records = 60;   // sync puts switch to the third file
+
+    cfg.setBufferClassName("org.objectweb.howl.log.MappedBlockLogBuffer");
+    openNewLog();
+    long[] keys = putRecords("mapped_", records, true);
+
+    assertReplayCount(records);
+
+    LogRecord lr = log.get(null, keys[records - 1]);
+    assertEquals(getName() + ": record data", "mapped_" + (records - 1),
+        new String(lr.getFields()[0]));
+
+    cfg.setBufferClassName("org.objectweb.howl.log.BlockLogBuffer");
+    reopenAndReplay(records);
+    log.close();
+  }
+
+  /**
+   * Verifies that LogFile.force() forces the region of a
+   * mapped file that was changed, and then starts a new region.
+   * 
+   * @throws Exception
+   */
+  public void testMappedLogFile_ForceRange() throws Exception {
+    File file = new File(cfg.getLogFileDir(), "mapped_force.log");
+    file.delete();
+    LogFile lf = new LogFile(file).open("rw");
+    try {
+      ByteBuffer mapped = lf.map(8192).duplicate();
+      mapped.position(4096);
+      mapped.put("dirty".getBytes());
+      lf.markDirty(4096, 512);
+      lf.markDirty(1024, 512);
+      assertEquals(getName() + ": dirtyStart", 1024, lf.dirtyStart);
+      assertEquals(getName() + ": dirtyEnd", 4608, lf.dirtyEnd);
+
+      lf.force(false);
+      assertEquals(getName() + ": dirtyStart after force", Integer.MAX_VALUE, lf.dirtyStart);
+      assertEquals(getName() + ": dirtyEnd after force", 0, lf.dirtyEnd);
+
+      // nothing recorded -- the entire mapping is forced
+      lf.force(false);
+    } finally {
+      lf.close();
+      file.delete();
+    }
+  }
+
+  /**
+   * Verifies that a log written with logFileMode direct
+   * and preallocated files can be reopened and replayed.
+   * 
+   * @throws Exception
+   */
+  public void testDirectLogFileMode() throws Exception {
+    final int records = 30;   // sync puts switch to the second file
+
+    cfg.setLogFileMode("direct");
+    cfg.setPreallocateFiles(true);
+    openNewLog();
+    putRecords("direct_", records, true);
+    reopenAndReplay(records);
+    log.close();
+  }
+
+  /**
+   * Verifies that a log written with logFileMode dsync
+   * can be reopened and replayed.
+   * 
+   * @throws Exception
+   */
+  public void testDsyncLogFileMode() throws Exception {
+    final int records = 30;   // sync puts switch to the second file
+
+    cfg.setLogFileMode("dsync");
+    openNewLog();
+    putRecords("dsync_", records, true);
+    reopenAndReplay(records);
+    log.close();
+  }
+
+  /**
+   * Verifies that an exception thrown by the DurableMarkListener
+   * is counted and reported to the LogEventListener.
+   * 
+   * @throws Exception
+   */
+  public void testDurability_ListenerException() throws Exception {
+    final Throwable[] logged = new Throwable[1];
+
+    openNewLog();
+    log.setLogEventListener(new LogEventListener() {
+      public void logOverflowNotification(long logkey) { }
+      public boolean isLoggable(int level) { return level >= ERROR; }
+      public void log(int level, String message) { }
+      public void log(int level, String message, Throwable thrown) {
+        synchronized(logged) { logged[0] = thrown; }
+      }
+    });
+    log.setDurableMarkListener(new DurableMarkListener() {
+      public void durableMarkAdvanced(long durableMark) {
+        throw new IllegalStateException("durable mark " + Long.toHexString(durableMark));
+      }
+    });
+
+    log.put("forced".getBytes(), Durability.FORCED);
+    for (int i = 0; i < 50; ++i) {
+      synchronized(logged) {
+        if (logged[0] != null) break;
+      }
+      Thread.sleep(100);
+    }
+    synchronized(logged) {
+      assertTrue(getName() + ": exception not logged", logged[0] instanceof IllegalStateException);
+    }
+    assertTrue(getName() + ": exception not counted", log.bmgr.durableMarkListenerErrors > 0);
+    log.close();
+  }
+
+  /**
+   * Verifies the durability levels of put() and that the
+   * DurableMarkListener is notified as the durable mark advances.
+   * 
+   * @throws Exception
+   */
+  public void testDurability() throws Exception {
+    final long[] notified = new long[1];
+    final int records = 20;
+
+    openNewLog();
+    log.setDurableMarkListener(new DurableMarkListener() {
+      public void durableMarkAdvanced(long durableMark) {
+        synchronized(notified) {
+          assertTrue("durable mark went backwards", durableMark > notified[0]);
+          notified[0] = durableMark;
+        }
+      }
+    });
+
+    long key = log.put("buffered".getBytes(), Durability.BUFFERED);
+    assertTrue(getName() + ": BUFFERED key", key != 0L);
+
+    key = log.put("written".getBytes(), Durability.WRITTEN);
+    assertTrue(getName() + ": WRITTEN record not written",
+        log.bmgr.nextWriteBSN > log.bmgr.bsnFromMark(key));
+
+    key = log.put("forced".getBytes(), Durability.FORCED);
+    assertTrue(getName() + ": durable mark not past FORCED record",
+        log.getDurableMark() > key);
+
+    for (int i = 0; i < 50; ++i) {
+      synchronized(notified) {
+        if (notified[0] > key) break;
+      }
+      Thread.sleep(100);
+    }
+    synchronized(notified) {
+      assertTrue(getName() + ": listener not notified", notified[0] > key);
+    }
+
+    try {
+      log.put("invalid".getBytes(), -1);
+      fail(getName() + ": IllegalArgumentException expected");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+
+    // buffers that are written but never forced must not hang close()
+    for (int i = 0; i < records; ++i)
+      log.put(("written_" + i).getBytes(), Durability.WRITTEN);
+    reopenAndReplay(records + 3);
+    log.close();
+  }
+
+  /**
+   * Verifies that ShardedLogger routes records by shard key
+   * and replays the records of all shards in the order they were put.
+   * 
+   * @throws Exception
+   */
+  public void testShardedLogger() throws Exception {
+    final int shards = 3;
+    final int records = 30;
+
+    Configuration[] config = new Configuration[shards];
+    for (int i = 0; i < shards; ++i) {
+      config[i] = new Configuration(new File(baseDir, "src/test-resources/log.properties"));
+      config[i].setLogFileDir(cfg.getLogFileDir() + "/shard" + i);
+      File[] files = new File(config[i].getLogFileDir()).listFiles();
+      for (int f = 0; files != null && f < files.length; ++f)
+        files[f].delete();
+    }
+
+    ShardedLogger slog = new ShardedLogger(config);
+    slog.open();
+    slog.setAutoMark(false);
+    for (int i = 0; i < records; ++i) {
+      long key = slog.put(i, ("shard_record_" + i).getBytes(), i == records - 1);
+      assertEquals(getName() + ": shard", slog.getShard(i), ShardedLogger.shardFromKey(key));
+      LogRecord lr = slog.get(null, key);
+      assertEquals(getName() + ": get", "shard_record_" + i, new String(lr.getFields()[0]));
+    }
+    slog.close();
+
+    // sequence numbers continue after the shards are reopened
+    slog = new ShardedLogger(config);
+    slog.open();
+    slog.put(0, ("shard_record_" + records).getBytes(), true);
+
+    final java.util.ArrayList replayed = new java.util.ArrayList();
+    final LogException[] error = new LogException[1];
+    slog.replay(new ReplayListener() {
+      LogRecord lr = new LogRecord(80);
+      public void onRecord(LogRecord lr) {
+        if (lr.type == LogRecordType.USER)
+          replayed.add(new String(lr.getFields()[0]));
+      }
+      public void onError(LogException exception) { error[0] = exception; }
+      public LogRecord getLogRecord() { return lr; }
+    });
+    slog.close();
+
+    assertNull(getName() + ": replay error", error[0]);
+    assertEquals(getName() + ": record count", records + 1, replayed.size());
+    for (int i = 0; i <= records; ++i)
+      assertEquals(getName() + ": replay order", "shard_record_" + i, replayed.get(i));
+  }
+
+  /**
+   * Verifies that ShardedLogger.open() rejects a shard whose
+   * log keys would not fit below the shard index of a composite key.
+   * 
+   * @throws Exception
+   */
+  public void testShardedLogger_KeyBits() throws Exception {
+    Configuration[] config = new Configuration[1];
+    config[0] = new Configuration(new File(baseDir, "src/test-resources/log.properties"));
+    config[0].setLogFileDir(cfg.getLogFileDir() + "/shard_bits");
+    File[] files = new File(config[0].getLogFileDir()).listFiles();
+    for (int f = 0; files != null && f < files.length; ++f)
+      files[f].delete();
+
+    // 4 files of 2^31 blocks need 34 BSN bits, plus 24 offset bits
+    config[0].setMaxLogFiles(4);
+    config[0].setMaxBlocksPerFile(Integer.MAX_VALUE);
+    config[0].setLogKeyOffsetBits(24);
+
+    ShardedLogger slog = new ShardedLogger(config);
+    try {
+      slog.open();
+      slog.close();
+      fail(getName() + ": LogConfigurationException not thrown");
+    } catch (LogConfigurationException e) {
+      assertTrue(getName() + ": " + e.getMessage(), e.getMessage().indexOf("BSN bits") > 0);
+    }
+  }
+
   public void testMultipleClose() throws Exception {
     log.open();
     log.close();
@@ -404,8 +1898,8 @@ public class LogTest extends TestDriver {
 
   public void testLogRecordSizeException() throws Exception {
     log.open();
-    // record size == block size is guaranteed to fail
-    byte[] data = new byte[cfg.getBufferSize() * 1024]; // BUG 300957
+    // records larger than a block are continued, so the limit is LogRecord.length
+    byte[] data = new byte[Short.MAX_VALUE];
 
     try {
       log.put(data, false);
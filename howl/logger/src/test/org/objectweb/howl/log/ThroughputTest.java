@@ -201,6 +201,118 @@ public class ThroughputTest extends TestDriver {
     // log.close(); called by runWorkers()
   }
 
+  /**
+   * Runs 200 worker threads with a dedicated force thread.
+   * <p>Worker threads never write or force the log files
+   * in this mode.
+   * @throws Exception
+   * @throws LogException
+   */
+  public void testThroughput_200_DFT() throws Exception, LogException {
+    cfg.setFlushPartialBuffers(true);
+    cfg.setDedicatedForceThread(true);
+    log = new Logger(cfg);
+    log.open();
+    log.setAutoMark(true);
+    workers = 200;
+    runWorkers(LogTestWorker.class);
+    // log.close(); called by runWorkers()
+  }
+
+  public void testThroughput_200_AFP() throws Exception, LogException {
+    cfg.setFlushPartialBuffers(true);
+    cfg.setForcePolicyClassName("org.objectweb.howl.log.AdaptiveForcePolicy");
+    log = new Logger(cfg);
+    log.open();
+    log.setAutoMark(true);
+    workers = 200;
+    runWorkers(LogTestWorker.class);
+    // log.close(); called by runWorkers()
+  }
+
+  public void testThroughput_200_Lanes() throws Exception, LogException {
+    cfg.setFlushPartialBuffers(true);
+    cfg.setMinBuffers(8);
+    cfg.setAppendLanes(4);
+    log = new Logger(cfg);
+    log.open();
+    log.setAutoMark(true);
+    workers = 200;
+    runWorkers(LogTestWorker.class);
+    // log.close(); called by runWorkers()
+  }
+
+  public void testThroughput_200_Preallocated() throws Exception, LogException {
+    cfg.setFlushPartialBuffers(true);
+    cfg.setPreallocateFiles(true);
+    log = new Logger(cfg);
+    log.open();
+    log.setAutoMark(true);
+    workers = 200;
+    runWorkers(LogTestWorker.class);
+    // log.close(); called by runWorkers()
+  }
+
+  public void testThroughput_200_Mapped() throws Exception, LogException {
+    cfg.setFlushPartialBuffers(true);
+    cfg.setBufferClassName("org.objectweb.howl.log.MappedBlockLogBuffer");
+    log = new Logger(cfg);
+    log.open();
+    log.setAutoMark(true);
+    workers = 200;
+    runWorkers(LogTestWorker.class);
+    // log.close(); called by runWorkers()
+  }
+
+  public void testThroughput_200_DSYNC() throws Exception, LogException {
+    cfg.setFlushPartialBuffers(true);
+    cfg.setLogFileMode("dsync");
+    log = new Logger(cfg);
+    log.open();
+    log.setAutoMark(true);
+    workers = 200;
+    runWorkers(LogTestWorker.class);
+    // log.close(); called by runWorkers()
+  }
+
+  public void testThroughput_200_CRC32C() throws Exception, LogException {
+    cfg.setFlushPartialBuffers(true);
+    cfg.setChecksumEnabled(true);
+    cfg.setCrc32cChecksum(true);
+    log = new Logger(cfg);
+    log.open();
+    log.setAutoMark(true);
+    workers = 200;
+    runWorkers(LogTestWorker.class);
+    // log.close(); called by runWorkers()
+  }
+
+  public void testThroughput_200_Compact() throws Exception, LogException {
+    cfg.setFlushPartialBuffers(true);
+    cfg.setBufferSize(16);
+    cfg.setCompactBlocks(true);
+    cfg.setChecksumEnabled(true);
+    cfg.setCrc32cChecksum(true);
+    log = new Logger(cfg);
+    log.open();
+    log.setAutoMark(true);
+    workers = 200;
+    runWorkers(LogTestWorker.class);
+    // log.close(); called by runWorkers()
+  }
+
+  public void testThroughput_200_Compressed() throws Exception, LogException {
+    cfg.setFlushPartialBuffers(true);
+    cfg.setBufferSize(16);
+    cfg.setCompressBlocks(true);
+    log = new Logger(cfg);
+    log.open();
+    log.setAutoMark(true);
+    workers = 200;
+    runWorkers(LogTestWorker.class);
+    // log.close(); called by runWorkers()
+  }
+
   public void testThroughput_1200() throws Exception, LogException {
     cfg.setLogFileName("log_12k");
     cfg.setBufferSize(12);
@@ -41,6 +41,8 @@ import java.lang.reflect.Method;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import junit.extensions.RepeatedTest;
 import junit.framework.Test;
@@ -493,6 +495,55 @@ public class XALoggerTest extends TestDriver
     
   }
   
+  /**
+   * Verify that putCommitAsync() adds the transaction to the
+   * list of active transactions once the COMMIT record is forced.
+   * 
+   * @throws Exception
+   */
+  public void test_090_PutCommitAsync() throws Exception
+  {
+    log.open(openListener);
+    assertNull("openListener.exception", openListener.exception);
+    int activeTxUsed = log.getActiveTxUsed();
+
+    XACommittingTx tx = log.putCommitAsync(new byte[][] { getName().getBytes() }).get(10, TimeUnit.SECONDS);
+    assertEquals("activeTxUsed", activeTxUsed + 1, log.getActiveTxUsed());
+
+    log.putDone(null, tx);
+    assertEquals("activeTxUsed", activeTxUsed, log.getActiveTxUsed());
+    log.close();
+  }
+  
+  /**
+   * Verify that overflow processing moves the COMMIT record of
+   * a putCommitAsync() whose future has not completed.
+   * 
+   * @throws Exception
+   */
+  public void test_100_PutCommitAsync_Overflow() throws Exception
+  {
+    // so the future stays pending
+    cfg.setFlushPartialBuffers(false);
+    cfg.setFlushSleepTime(60 * 1000);
+    log = new XALogger(cfg);
+    super.log = log;
+    log.open(openListener);
+    assertNull("openListener.exception", openListener.exception);
+
+    CompletableFuture<XACommittingTx> future = log.putCommitAsync(new byte[][] { getName().getBytes() });
+    long key = log.put(new byte[][] { getName().getBytes() }, false);
+    assertFalse("future completed before overflow", future.isDone());
+
+    // the COMMIT record is below the fence
+    log.logOverflowNotification(key);
+    XACommittingTx tx = future.get(10, TimeUnit.SECONDS);
+    assertTrue("COMMIT record not moved", tx.getLogKey() > key);
+
+    log.putDone(null, tx);
+    log.close();
+  }
+  
   /**
    * Construct a TestSuite with tests ordered on test name.
    * 